@@ -0,0 +1,114 @@
+package nzi.fhir.validator.core.config;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Settings for fetching IG packages from remote package servers, read from the {@code package.servers}
+ * object of config.json. The same keys prefixed with {@code package.servers.} in application.properties,
+ * system properties or the environment take precedence.
+ *
+ * @author Md Nazrul Islam
+ */
+public class PackageServerConfig {
+    public static final int DEFAULT_MAX_CONCURRENT = 3;
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+    public static final long DEFAULT_HEDGE_DELAY_MS = 1500;
+    public static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_BREAKER_OPEN_MS = 30000;
+
+    private final int maxConcurrent;
+    private final long timeout;
+    private final long hedgeDelay;
+    private final int breakerFailureThreshold;
+    private final long breakerOpenMillis;
+    private final String localDirectory;
+    private final boolean offline;
+
+    public PackageServerConfig(int maxConcurrent, long timeout) {
+        this(maxConcurrent, timeout, DEFAULT_HEDGE_DELAY_MS, DEFAULT_BREAKER_FAILURE_THRESHOLD, DEFAULT_BREAKER_OPEN_MS);
+    }
+
+    public PackageServerConfig(int maxConcurrent, long timeout, long hedgeDelay, int breakerFailureThreshold, long breakerOpenMillis) {
+        this(maxConcurrent, timeout, hedgeDelay, breakerFailureThreshold, breakerOpenMillis, null, false);
+    }
+
+    public PackageServerConfig(int maxConcurrent, long timeout, long hedgeDelay, int breakerFailureThreshold, long breakerOpenMillis,
+                               String localDirectory, boolean offline) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.timeout = timeout;
+        this.hedgeDelay = hedgeDelay;
+        this.breakerFailureThreshold = Math.max(1, breakerFailureThreshold);
+        this.breakerOpenMillis = breakerOpenMillis;
+        this.localDirectory = localDirectory == null || localDirectory.isBlank() ? null : localDirectory;
+        this.offline = offline;
+    }
+
+    public static PackageServerConfig fromConfig(JsonObject config) {
+        JsonObject servers = config.getJsonObject("package", new JsonObject()).getJsonObject("servers", new JsonObject());
+        JsonObject breaker = servers.getJsonObject("breaker", new JsonObject());
+        JsonObject local = servers.getJsonObject("local", new JsonObject());
+        return new PackageServerConfig(
+                (int) get("maxConcurrent", servers.getInteger("maxConcurrent", DEFAULT_MAX_CONCURRENT)),
+                get("timeout", servers.getLong("timeout", DEFAULT_TIMEOUT_MS)),
+                get("hedgeDelay", servers.getLong("hedgeDelay", DEFAULT_HEDGE_DELAY_MS)),
+                (int) get("breaker.failureThreshold", breaker.getInteger("failureThreshold", DEFAULT_BREAKER_FAILURE_THRESHOLD)),
+                get("breaker.openMillis", breaker.getLong("openMillis", DEFAULT_BREAKER_OPEN_MS)),
+                ApplicationConfig.get("package.servers.local.directory", local.getString("directory", "")),
+                Boolean.parseBoolean(ApplicationConfig.get("package.servers.offline", String.valueOf(servers.getBoolean("offline", false)))));
+    }
+
+    private static long get(String key, long value) {
+        String override = ApplicationConfig.get("package.servers." + key);
+        return override != null ? Long.parseLong(override) : value;
+    }
+
+    public static PackageServerConfig defaults() {
+        return fromConfig(new JsonObject());
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return timeout of a single package server request in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return how long to wait for a package server before asking the next one, in milliseconds
+     */
+    public long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * @return consecutive failures after which a package server is skipped
+     */
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    /**
+     * @return how long a failing package server is skipped before it is tried again, in milliseconds
+     */
+    public long getBreakerOpenMillis() {
+        return breakerOpenMillis;
+    }
+
+    /**
+     * @return directory of package tarballs served as a local package server, or null if none is configured
+     */
+    public String getLocalDirectory() {
+        return localDirectory;
+    }
+
+    /**
+     * @return whether packages are only fetched from the local package directory
+     */
+    public boolean isOffline() {
+        return offline;
+    }
+}
@@ -0,0 +1,146 @@
+package nzi.fhir.validator.core.model;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Background inclusion of an IG package into a validator, polled by clients through its id.
+ * <p>
+ * The job goes through {@code QUEUED}, {@code LOADING} (the IG package and its dependencies are
+ * loaded into a new validation support), {@code BUILDING} (the validator is built and swapped in)
+ * and {@code SAVING} (the validator state is persisted), and ends as {@code SUCCEEDED} or
+ * {@code FAILED}. The time spent in each stage is reported.
+ *
+ * @author Md Nazrul Islam
+ */
+public class IgInclusionJob {
+    public enum Status {
+        QUEUED, LOADING, BUILDING, SAVING, SUCCEEDED, FAILED
+    }
+
+    private final String id;
+    private final ValidatorIdentity validatorIdentity;
+    private final IGPackageIdentity igPackageIdentity;
+    private final long createdAt;
+    private volatile Status status = Status.QUEUED;
+    private volatile long loadingAt;
+    private volatile long buildingAt;
+    private volatile long savingAt;
+    private volatile long finishedAt;
+    private volatile String error;
+    // IG packages loaded so far into the support being built
+    private volatile Supplier<List<IGPackageIdentity>> loadedIgPackages = List::of;
+
+    public IgInclusionJob(ValidatorIdentity validatorIdentity, IGPackageIdentity igPackageIdentity) {
+        this.id = UUID.randomUUID().toString();
+        this.validatorIdentity = validatorIdentity;
+        this.igPackageIdentity = igPackageIdentity;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @param loadedIgPackages IG packages loaded so far, read whenever the job is reported
+     */
+    public synchronized void markLoading(Supplier<List<IGPackageIdentity>> loadedIgPackages) {
+        this.loadedIgPackages = loadedIgPackages;
+        this.loadingAt = System.currentTimeMillis();
+        this.status = Status.LOADING;
+    }
+
+    public synchronized void markBuilding() {
+        this.buildingAt = System.currentTimeMillis();
+        this.status = Status.BUILDING;
+    }
+
+    public synchronized void markSaving() {
+        this.savingAt = System.currentTimeMillis();
+        this.status = Status.SAVING;
+    }
+
+    public synchronized void markSucceeded() {
+        finish(Status.SUCCEEDED);
+    }
+
+    public synchronized void markFailed(Throwable cause) {
+        this.error = cause != null && cause.getMessage() != null ? cause.getMessage() : String.valueOf(cause);
+        finish(Status.FAILED);
+    }
+
+    private void finish(Status status) {
+        this.finishedAt = System.currentTimeMillis();
+        // The last loaded packages are kept rather than the support being built
+        List<IGPackageIdentity> loaded = loadedIgPackages.get();
+        this.loadedIgPackages = () -> loaded;
+        this.status = status;
+    }
+
+    public boolean isFinished() {
+        Status current = status;
+        return current == Status.SUCCEEDED || current == Status.FAILED;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public ValidatorIdentity getValidatorIdentity() {
+        return validatorIdentity;
+    }
+
+    public IGPackageIdentity getIgPackageIdentity() {
+        return igPackageIdentity;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public synchronized JsonObject toJson() {
+        long now = System.currentTimeMillis();
+        JsonObject timings = new JsonObject()
+                .put("queuedMs", elapsed(createdAt, loadingAt, now))
+                .put("loadingMs", elapsed(loadingAt, buildingAt, now))
+                .put("buildingMs", elapsed(buildingAt, savingAt, now))
+                .put("savingMs", elapsed(savingAt, finishedAt, now))
+                .put("totalMs", (finishedAt > 0 ? finishedAt : now) - createdAt);
+        JsonObject json = new JsonObject()
+                .put("jobId", id)
+                .put("status", status.name())
+                .put("validatorId", validatorIdentity.getId())
+                .put("fhirVersion", validatorIdentity.getFhirVersion().name())
+                .put("igPackageId", igPackageIdentity.getName())
+                .put("igPackageVersion", igPackageIdentity.getVersion())
+                .put("loadedIgPackages", new JsonArray(loadedIgPackages.get().stream()
+                        .map(loaded -> loaded.getName() + "#" + loaded.getVersion())
+                        .toList()))
+                .put("createdAt", createdAt)
+                .put("finishedAt", finishedAt > 0 ? finishedAt : null)
+                .put("timings", timings);
+        if (error != null) {
+            json.put("error", error);
+        }
+        return json;
+    }
+
+    /**
+     * @return time spent in a stage, up to now if it is in progress, 0 if it was not reached
+     */
+    private long elapsed(long startedAt, long endedAt, long now) {
+        if (startedAt == 0) {
+            return 0;
+        }
+        if (endedAt == 0) {
+            // A failed job ends in the stage it was in
+            endedAt = finishedAt > 0 ? finishedAt : now;
+        }
+        return Math.max(0, endedAt - startedAt);
+    }
+}
@@ -2,6 +2,8 @@ package nzi.fhir.validator.core.model;
 
 import org.apache.commons.lang3.Validate;
 
+import java.util.Objects;
+
 public class IgPackageName {
 
     private final String name;
@@ -27,6 +29,19 @@ public class IgPackageName {
         return version;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IgPackageName that = (IgPackageName) o;
+        return Objects.equals(name, that.name) && Objects.equals(version, that.version);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, version);
+    }
+
     @Override
     public String toString() {
         return "IgPackageName{" + "name='" + name + '\'' + ", version='" + version + '\'' + '}';
@@ -0,0 +1,144 @@
+package nzi.fhir.validator.core.model;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Which resources of an IG package a validator loads: the package folders to read and the resource
+ * types to keep. Anything else is neither parsed nor kept on the heap.
+ * <p>
+ * Folders are given as in the package tarball, e.g. {@code package} or {@code package/example}. A
+ * resource type of {@code *} loads every type. The defaults are read from
+ * {@code validator.resources.types} and {@code validator.resources.folders} (comma separated).
+ *
+ * @author Md Nazrul Islam
+ */
+public class IgResourceLoadPolicy {
+    public static final String ALL_RESOURCE_TYPES = "*";
+    public static final List<String> CONFORMANCE_RESOURCE_TYPES = List.of(
+            "StructureDefinition", "ValueSet", "CodeSystem", "ConceptMap", "NamingSystem", "Questionnaire");
+    public static final String PACKAGE_FOLDER = "package";
+
+    private final Set<String> resourceTypes;
+    private final Set<String> folders;
+
+    public IgResourceLoadPolicy(Collection<String> resourceTypes, Collection<String> folders) {
+        this.resourceTypes = new LinkedHashSet<>();
+        for (String resourceType : resourceTypes) {
+            if (resourceType != null && !resourceType.isBlank()) {
+                this.resourceTypes.add(resourceType.trim());
+            }
+        }
+        this.folders = new LinkedHashSet<>();
+        for (String folder : folders) {
+            if (folder != null && !folder.isBlank()) {
+                this.folders.add(normalizeFolder(folder));
+            }
+        }
+        if (this.resourceTypes.isEmpty() || this.folders.isEmpty()) {
+            throw new IllegalArgumentException("Resource load policy needs at least one resource type and one folder");
+        }
+    }
+
+    public static IgResourceLoadPolicy defaults() {
+        return new IgResourceLoadPolicy(
+                split(ApplicationConfig.get("validator.resources.types", String.join(",", CONFORMANCE_RESOURCE_TYPES))),
+                split(ApplicationConfig.get("validator.resources.folders", PACKAGE_FOLDER)));
+    }
+
+    /**
+     * @param json policy with optional {@code resourceTypes} and {@code folders} arrays, missing ones take the default
+     */
+    public static IgResourceLoadPolicy fromJson(JsonObject json) {
+        IgResourceLoadPolicy defaults = defaults();
+        if (json == null) {
+            return defaults;
+        }
+        JsonArray resourceTypes = json.getJsonArray("resourceTypes");
+        JsonArray folders = json.getJsonArray("folders");
+        return new IgResourceLoadPolicy(
+                resourceTypes != null ? toStrings(resourceTypes) : defaults.resourceTypes,
+                folders != null ? toStrings(folders) : defaults.getFolders());
+    }
+
+    public JsonObject toJson() {
+        return new JsonObject()
+                .put("resourceTypes", new JsonArray(new ArrayList<>(resourceTypes)))
+                .put("folders", new JsonArray(getFolders()));
+    }
+
+    public boolean allowsResourceType(String resourceType) {
+        return resourceTypes.contains(ALL_RESOURCE_TYPES) || resourceTypes.contains(resourceType);
+    }
+
+    /**
+     * @param folderName name of an {@code NpmPackage} folder, e.g. {@code package} or {@code example}
+     */
+    public boolean allowsFolder(String folderName) {
+        return folders.contains(folderName);
+    }
+
+    public Set<String> getResourceTypes() {
+        return Set.copyOf(resourceTypes);
+    }
+
+    /**
+     * @return the folders as given in the package tarball
+     */
+    public List<String> getFolders() {
+        return folders.stream().map(folder -> PACKAGE_FOLDER.equals(folder) ? folder : PACKAGE_FOLDER + "/" + folder).toList();
+    }
+
+    /**
+     * {@code NpmPackage} names the sub folders of {@code package} without the prefix.
+     */
+    private static String normalizeFolder(String folder) {
+        String normalized = folder.trim();
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (normalized.startsWith(PACKAGE_FOLDER + "/")) {
+            normalized = normalized.substring(PACKAGE_FOLDER.length() + 1);
+        }
+        return normalized;
+    }
+
+    private static List<String> split(String value) {
+        return Arrays.stream(value.split(",")).map(String::trim).filter(part -> !part.isEmpty()).toList();
+    }
+
+    private static List<String> toStrings(JsonArray array) {
+        List<String> values = new ArrayList<>();
+        for (Object value : array) {
+            values.add(value != null ? value.toString() : null);
+        }
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IgResourceLoadPolicy that = (IgResourceLoadPolicy) o;
+        return resourceTypes.equals(that.resourceTypes) && folders.equals(that.folders);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(resourceTypes, folders);
+    }
+
+    @Override
+    public String toString() {
+        return toJson().encode();
+    }
+}
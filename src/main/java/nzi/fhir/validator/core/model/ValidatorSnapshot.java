@@ -0,0 +1,95 @@
+package nzi.fhir.validator.core.model;
+
+import nzi.fhir.validator.core.enums.SupportedFhirVersion;
+import nzi.fhir.validator.core.npm.ParsedResourceCodec;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Binary form of the parsed IG resources held by a validator, so a restart can skip downloading,
+ * decompressing and parsing every IG package again.
+ * <p>
+ * Snapshots are written by {@link ParsedResourceCodec}. The fingerprint covers the IG set and the
+ * HAPI FHIR version, as serialized resources are only readable by the same model classes.
+ *
+ * @author Md Nazrul Islam
+ */
+public class ValidatorSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String fingerprint;
+    private final ArrayList<IgPackageEntry> igPackages;
+
+    public ValidatorSnapshot(String fingerprint, List<IgPackageEntry> igPackages) {
+        this.fingerprint = fingerprint;
+        this.igPackages = new ArrayList<>(igPackages);
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public List<IgPackageEntry> getIgPackages() {
+        return igPackages;
+    }
+
+    /**
+     * Parsed resources of a single IG package.
+     */
+    public record IgPackageEntry(String name, String version, SupportedFhirVersion fhirVersion, long estimatedHeapBytes,
+                                 ArrayList<IBaseResource> resources) implements Serializable {
+        public IGPackageIdentity asIgPackageIdentity() {
+            return new IGPackageIdentity(name, version, fhirVersion);
+        }
+    }
+
+    /**
+     * Fingerprint of an IG set, independent of the order in which the packages were included.
+     */
+    public static String fingerprint(List<IGPackageIdentity> igPackageIdentities) {
+        return fingerprint(igPackageIdentities, null);
+    }
+
+    /**
+     * Fingerprint of an IG set loaded with the given resource load policy, as the policy decides which
+     * resources a snapshot holds.
+     */
+    public static String fingerprint(List<IGPackageIdentity> igPackageIdentities, IgResourceLoadPolicy resourceLoadPolicy) {
+        List<IGPackageIdentity> sorted = new ArrayList<>(igPackageIdentities);
+        sorted.sort(Comparator.comparing(IGPackageIdentity::asId));
+        StringBuilder builder = new StringBuilder(ParsedResourceCodec.formatStamp());
+        for (IGPackageIdentity igPackageIdentity : sorted) {
+            builder.append('|').append(igPackageIdentity.asId());
+        }
+        if (resourceLoadPolicy != null) {
+            builder.append("|policy:").append(resourceLoadPolicy);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(builder.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public byte[] toBytes() throws IOException {
+        return ParsedResourceCodec.encode(this);
+    }
+
+    public static ValidatorSnapshot fromBytes(byte[] bytes) throws IOException {
+        Object decoded = ParsedResourceCodec.decode(bytes);
+        if (!(decoded instanceof ValidatorSnapshot snapshot)) {
+            throw new IOException("Not a validator snapshot");
+        }
+        return snapshot;
+    }
+}
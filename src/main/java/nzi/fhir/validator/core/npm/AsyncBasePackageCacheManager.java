@@ -14,21 +14,28 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.client.WebClient;
 
 import javax.annotation.Nonnull;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.charset.StandardCharsets;
 
 public abstract class AsyncBasePackageCacheManager implements IAsyncPackageCacheManager {
     protected final List<PackageServer> packageServers;
     private static final Logger logger = LoggerFactory.getLogger(AsyncBasePackageCacheManager.class);
     protected WebClient webClient;
+    protected final PackageServerClient packageServerClient;
 
-    public AsyncBasePackageCacheManager(List<PackageServer> packageServers, WebClient webClient) {
+    public AsyncBasePackageCacheManager(List<PackageServer> packageServers, PackageServerClient packageServerClient) {
         this.packageServers = packageServers;
-        this.webClient = webClient;
+        this.packageServerClient = packageServerClient;
+        this.webClient = packageServerClient.getWebClient();
+    }
+
+    public PackageServerClient getPackageServerClient() {
+        return packageServerClient;
     }
 
     public List<PackageServer> getPackageServers() {
@@ -58,6 +65,10 @@ public abstract class AsyncBasePackageCacheManager implements IAsyncPackageCache
         String version = hashIndex >= 0 ? packageIdAndVersion.substring(hashIndex + 1) : null;
 
         for (PackageServer server : getPackageServers()) {
+            if (server instanceof LocalPackageServer localServer) {
+                futures.add(verifyLocalPackage(localServer, id, version));
+                continue;
+            }
             String url = version != null ?
                 Utilities.pathURL(server.getUrl(), id, version) :
                 Utilities.pathURL(server.getUrl(), id);
@@ -84,6 +95,10 @@ public abstract class AsyncBasePackageCacheManager implements IAsyncPackageCache
         
         List<Future<String>> futures = new ArrayList<>();
         for (PackageServer server : getPackageServers()) {
+            if (server instanceof LocalPackageServer) {
+                // A package directory has no catalog to search
+                continue;
+            }
             String url = Utilities.pathURL(server.getUrl(), "catalog") + 
                     "?pkgcanonical=" + 
                     URLEncoder.encode(canonicalUrl, StandardCharsets.UTF_8);
@@ -129,6 +144,16 @@ public abstract class AsyncBasePackageCacheManager implements IAsyncPackageCache
         });
 }
 
+    private Future<String> verifyLocalPackage(LocalPackageServer server, String id, String version) {
+        return packageServerClient.getVertx().executeBlocking(() -> {
+            if (version != null) {
+                Path file = server.packageFile(id, version);
+                return file != null ? file.toUri().toString() : null;
+            }
+            return server.versions(id).isEmpty() ? null : server.packageDirectory(id).toUri().toString();
+        }, false);
+    }
+
     private Future<String> searchPackageId(String url, String serverUrl) {
         return webClient.getAbs(url)
             .putHeader("Accept", "application/json")
@@ -155,44 +180,42 @@ public abstract class AsyncBasePackageCacheManager implements IAsyncPackageCache
     }
 
     protected Future<NpmPackage> fetchPackage(String id, String version) {
-        List<Future<NpmPackage>> futures = new ArrayList<>();
-        for (PackageServer server : getPackageServers()) {
-            futures.add(fetchFromServer(server, id, version));
-        }
-        
-        return CompositeFuture.any(new ArrayList<>(futures))
-            .map(cf -> {
-                for (int i = 0; i < futures.size(); i++) {
-                    NpmPackage pkg = cf.resultAt(i);
-                    if (pkg != null) {
-                        return pkg;
-                    }
+        return packageServerClient.download(getPackageServers(), id, version)
+            .compose(download -> {
+                if (download == null) {
+                    return Future.succeededFuture(null);
                 }
-                return null;
+                return addPackageToCache(download.getFile(), download.getContentHash())
+                    .eventually(() -> download.discard(packageServerClient.getVertx()));
             });
     }
 
-    private Future<NpmPackage> fetchFromServer(PackageServer server, String id, String version) {
-        String packageUrl = Utilities.pathURL(server.getUrl(), id, version);
-        return webClient.getAbs(packageUrl)
-            .send()
-            .compose(response -> {
-                if (response.statusCode() != 200) {
-                    logger.info("Failed to fetch {}#{} from {}: HTTP {}", 
-                        id, version, server.getUrl(), response.statusCode());
-                    return Future.succeededFuture(null);
-                }
-                ByteArrayInputStream inputStream = new ByteArrayInputStream(response.body().getBytes());
-                try {
-                    return addPackageToCache(inputStream);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+    /**
+     * Stores a downloaded package tarball. The file is left in place.
+     */
+    public Future<NpmPackage> addPackageToCache(Path tgzFile, String contentHash) {
+        try {
+            return addPackageToCache(Files.newInputStream(tgzFile));
+        } catch (IOException e) {
+            return Future.failedFuture(e);
+        }
     }
+
     protected Future<String> getLatestVersion(String id) {
         List<Future<String>> futures = new ArrayList<>();
         for (PackageServer server : getPackageServers()) {
+            if (server instanceof LocalPackageServer localServer) {
+                futures.add(packageServerClient.getVertx().executeBlocking(() -> {
+                    String latest = null;
+                    for (String v : localServer.versions(id)) {
+                        if (latest == null || isLaterVersion(v, latest)) {
+                            latest = v;
+                        }
+                    }
+                    return latest;
+                }, false));
+                continue;
+            }
             String versionsUrl = Utilities.pathURL(server.getUrl(), id);
             futures.add(webClient.getAbs(versionsUrl)
                     .putHeader("Accept", "application/json")
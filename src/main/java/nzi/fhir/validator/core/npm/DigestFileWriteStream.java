@@ -0,0 +1,127 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.streams.WriteStream;
+
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Write stream into a temporary file which computes the SHA-256 of the bytes as they arrive, so a
+ * downloaded package never has to be held on the heap nor read a second time for hashing.
+ */
+public class DigestFileWriteStream implements WriteStream<Buffer> {
+    private final Path file;
+    private final AsyncFile asyncFile;
+    private final MessageDigest digest;
+    private long size;
+    private String contentHash;
+    private volatile boolean ended;
+
+    private DigestFileWriteStream(Path file, AsyncFile asyncFile) {
+        this.file = file;
+        this.asyncFile = asyncFile;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public static Future<DigestFileWriteStream> create(Vertx vertx) {
+        return vertx.fileSystem().createTempFile("ig-package-", ".tgz")
+                .compose(path -> vertx.fileSystem().open(path, new OpenOptions().setWrite(true).setTruncateExisting(true))
+                        .map(asyncFile -> new DigestFileWriteStream(Path.of(path), asyncFile)));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return hex encoded SHA-256 of the bytes written, only meaningful once the stream has ended
+     */
+    public synchronized String getContentHash() {
+        if (contentHash == null) {
+            contentHash = HexFormat.of().formatHex(digest.digest());
+        }
+        return contentHash;
+    }
+
+    /**
+     * Closes the file, if still open, and deletes it.
+     */
+    public Future<Void> discard(Vertx vertx) {
+        Future<Void> closed = Future.succeededFuture();
+        if (!ended) {
+            ended = true;
+            try {
+                closed = asyncFile.close();
+            } catch (IllegalStateException e) {
+                // Already closed
+            }
+        }
+        return closed
+                .recover(e -> Future.succeededFuture())
+                .compose(v -> vertx.fileSystem().delete(file.toString()))
+                .recover(e -> Future.succeededFuture());
+    }
+
+    @Override
+    public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+        asyncFile.exceptionHandler(handler);
+        return this;
+    }
+
+    @Override
+    public Future<Void> write(Buffer data) {
+        update(data);
+        return asyncFile.write(data);
+    }
+
+    @Override
+    public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+        update(data);
+        asyncFile.write(data, handler);
+    }
+
+    @Override
+    public void end(Handler<AsyncResult<Void>> handler) {
+        ended = true;
+        asyncFile.end(handler);
+    }
+
+    @Override
+    public WriteStream<Buffer> setWriteQueueMaxSize(int maxSize) {
+        asyncFile.setWriteQueueMaxSize(maxSize);
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return asyncFile.writeQueueFull();
+    }
+
+    @Override
+    public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+        asyncFile.drainHandler(handler);
+        return this;
+    }
+
+    private synchronized void update(Buffer data) {
+        digest.update(data.getBytes());
+        size += data.length();
+    }
+}
@@ -0,0 +1,221 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.pgclient.PgException;
+import io.vertx.sqlclient.Cursor;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+
+import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEMA_NAME;
+
+/**
+ * Content addressed store of IG package tarballs in Postgres. Each distinct tarball is stored once, keyed
+ * by its SHA-256, as fixed-size chunks which are streamed in both directions through temporary files, so
+ * at most one chunk is held on the heap at a time.
+ * <p>
+ * The chunk size is configured with {@code package.storage.chunkSize} (bytes, defaults to 1 MB).
+ */
+public class IgPackageBlobStore {
+    private static final Logger logger = LogManager.getLogger(IgPackageBlobStore.class);
+    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final String FOREIGN_KEY_VIOLATION = "23503";
+    private final Vertx vertx;
+    private final Pool pgPool;
+    private final int chunkSize;
+
+    public IgPackageBlobStore(Vertx vertx, Pool pgPool) {
+        this.vertx = vertx;
+        this.pgPool = pgPool;
+        this.chunkSize = Integer.parseInt(ApplicationConfig.get("package.storage.chunkSize", String.valueOf(DEFAULT_CHUNK_SIZE)));
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Copies a stream into a temporary file, hashing it on the way.
+     * @return the temporary file and the hex encoded SHA-256 of its content
+     */
+    public Future<Map.Entry<Path, String>> spool(InputStream inputStream) {
+        return vertx.executeBlocking(() -> {
+            Path tempFile = Files.createTempFile("ig-package-", ".tgz");
+            try (DigestInputStream digestStream = new DigestInputStream(inputStream, sha256());
+                 OutputStream out = Files.newOutputStream(tempFile, StandardOpenOption.TRUNCATE_EXISTING)) {
+                digestStream.transferTo(out);
+                return Map.entry(tempFile, HexFormat.of().formatHex(digestStream.getMessageDigest().digest()));
+            } catch (IOException e) {
+                Files.deleteIfExists(tempFile);
+                throw e;
+            } finally {
+                inputStream.close();
+            }
+        }, false);
+    }
+
+    /**
+     * @return hex encoded SHA-256 of a file, read as a stream
+     */
+    public Future<String> hash(Path file) {
+        return vertx.executeBlocking(() -> {
+            try (DigestInputStream digestStream = new DigestInputStream(Files.newInputStream(file), sha256())) {
+                digestStream.transferTo(OutputStream.nullOutputStream());
+                return HexFormat.of().formatHex(digestStream.getMessageDigest().digest());
+            }
+        }, false);
+    }
+
+    /**
+     * Stores the file as the blob of the given content hash. Blobs are content addressed, so when the hash
+     * is already stored nothing is written. An existing blob is locked until the transaction of the
+     * connection ends, so {@link #deleteIfUnreferenced(String)} waits for the package row referencing it.
+     * @return true if the blob was written, false if it already existed
+     */
+    public Future<Boolean> write(SqlConnection connection, String contentHash, Path file) {
+        String existsSql = "SELECT 1 FROM %s.fhir_ig_package_blobs WHERE content_hash = $1 FOR SHARE".formatted(DB_POSTGRES_SCHEMA_NAME);
+        String blobSql = """
+                INSERT INTO %s.fhir_ig_package_blobs (content_hash, content_size, chunk_count)
+                VALUES ($1, $2, $3)
+                ON CONFLICT (content_hash) DO NOTHING
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+        String chunkSql = """
+                INSERT INTO %s.fhir_ig_package_chunks (content_hash, chunk_index, chunk)
+                VALUES ($1, $2, $3)
+                ON CONFLICT (content_hash, chunk_index) DO NOTHING
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+        return connection.preparedQuery(existsSql).execute(Tuple.of(contentHash))
+                .compose(rows -> {
+                    if (rows.size() > 0) {
+                        logger.debug("Blob {} already stored", contentHash);
+                        return Future.succeededFuture(false);
+                    }
+                    return vertx.executeBlocking(() -> Files.size(file), false)
+                            .compose(size -> {
+                                int chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+                                // The blob row goes first so chunks always reference an existing blob
+                                return connection.preparedQuery(blobSql).execute(Tuple.of(contentHash, size, chunkCount))
+                                        .compose(v -> writeChunk(connection, chunkSql, contentHash, file, 0, chunkCount));
+                            })
+                            .map(true);
+                });
+    }
+
+    private Future<Void> writeChunk(SqlConnection connection, String sql, String contentHash, Path file, int index, int chunkCount) {
+        if (index >= chunkCount) {
+            return Future.succeededFuture();
+        }
+        return vertx.executeBlocking(() -> readChunk(file, index), false)
+                .compose(chunk -> connection.preparedQuery(sql).execute(Tuple.of(contentHash, index, Buffer.buffer(chunk))))
+                .compose(rows -> writeChunk(connection, sql, contentHash, file, index + 1, chunkCount));
+    }
+
+    private byte[] readChunk(Path file, int index) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "r")) {
+            long offset = (long) index * chunkSize;
+            int length = (int) Math.min(chunkSize, Math.max(0, randomAccessFile.length() - offset));
+            byte[] chunk = new byte[length];
+            randomAccessFile.seek(offset);
+            randomAccessFile.readFully(chunk);
+            return chunk;
+        }
+    }
+
+    /**
+     * Streams the chunks of a content hash into a temporary file, one chunk at a time.
+     * @return the temporary file, or null if no chunks are stored for the hash
+     */
+    public Future<Path> readToFile(String contentHash) {
+        String sql = "SELECT chunk FROM %s.fhir_ig_package_chunks WHERE content_hash = $1 ORDER BY chunk_index".formatted(DB_POSTGRES_SCHEMA_NAME);
+        return vertx.executeBlocking(() -> Files.createTempFile("ig-package-", ".tgz"), false)
+                .compose(tempFile -> pgPool.withTransaction(connection -> connection.prepare(sql)
+                                .compose(statement -> {
+                                    Cursor cursor = statement.cursor(Tuple.of(contentHash));
+                                    return readNextChunk(cursor, tempFile, 0)
+                                            .eventually(() -> cursor.close());
+                                }))
+                        .transform(ar -> {
+                            if (ar.succeeded() && ar.result() > 0) {
+                                logger.debug("Streamed {} chunk(s) of {} from database", ar.result(), contentHash);
+                                return Future.succeededFuture(tempFile);
+                            }
+                            return vertx.executeBlocking(() -> Files.deleteIfExists(tempFile), false)
+                                    .compose(deleted -> ar.succeeded() ? Future.succeededFuture((Path) null) : Future.failedFuture(ar.cause()));
+                        }));
+    }
+
+    private Future<Integer> readNextChunk(Cursor cursor, Path target, int chunksRead) {
+        if (!cursor.hasMore() && chunksRead > 0) {
+            return Future.succeededFuture(chunksRead);
+        }
+        return cursor.read(1).compose(rows -> {
+            if (rows.size() == 0) {
+                return Future.succeededFuture(chunksRead);
+            }
+            byte[] chunk = rows.iterator().next().getBuffer(0).getBytes();
+            return vertx.executeBlocking(() -> Files.write(target, chunk, StandardOpenOption.APPEND), false)
+                    .compose(path -> readNextChunk(cursor, target, chunksRead + 1));
+        });
+    }
+
+    /**
+     * Removes the blob of a content hash, and its chunks, unless a package still references it. The blob
+     * is locked first, so a registration reusing it in {@link #write(SqlConnection, String, Path)} either
+     * commits its reference before the check, which then keeps the blob, or finds the blob gone and
+     * writes it again.
+     */
+    public Future<Void> deleteIfUnreferenced(String contentHash) {
+        String lockSql = "SELECT 1 FROM %s.fhir_ig_package_blobs WHERE content_hash = $1 FOR UPDATE".formatted(DB_POSTGRES_SCHEMA_NAME);
+        String sql = """
+                DELETE FROM %1$s.fhir_ig_package_blobs WHERE content_hash = $1
+                AND NOT EXISTS (SELECT 1 FROM %1$s.fhir_implementation_guides WHERE content_hash = $1)
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+        return pgPool.withTransaction(connection -> connection.preparedQuery(lockSql).execute(Tuple.of(contentHash))
+                        // A new statement, which sees references committed while waiting for the lock
+                        .compose(locked -> locked.size() > 0 ? connection.preparedQuery(sql).execute(Tuple.of(contentHash)).mapEmpty() : Future.<Void>succeededFuture()))
+                .recover(e -> {
+                    if (e instanceof PgException pgException && FOREIGN_KEY_VIOLATION.equals(pgException.getSqlState())) {
+                        logger.debug("Blob {} is still referenced, kept", contentHash);
+                        return Future.succeededFuture();
+                    }
+                    return Future.failedFuture(e);
+                });
+    }
+
+    public Future<Void> deleteAll() {
+        return pgPool.query("DELETE FROM %s.fhir_ig_package_blobs".formatted(DB_POSTGRES_SCHEMA_NAME)).execute().mapEmpty();
+    }
+
+    public Future<Void> deleteTempFile(Path file) {
+        if (file == null) {
+            return Future.succeededFuture();
+        }
+        return vertx.executeBlocking(() -> Files.deleteIfExists(file), false).mapEmpty();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package nzi.fhir.validator.core.npm;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+import nzi.fhir.validator.core.enums.FhirCoreIgPackageType;
+import nzi.fhir.validator.core.enums.SupportedFhirVersion;
+import nzi.fhir.validator.core.model.IgPackageName;
+import nzi.fhir.validator.core.model.IgResourceLoadPolicy;
+import nzi.fhir.validator.core.service.CustomNpmPackageValidationSupport;
+import nzi.fhir.validator.core.service.FhirContextLoader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEMA_NAME;
+
+/**
+ * Parsed conformance resources of the package folder of an IG package, stored in binary form next to
+ * the package, so validators loading it skip parsing the JSON.
+ * <p>
+ * The form is generated when the package is registered, as long as validators load IG packages eagerly
+ * with a policy it covers, see {@link #isUsable()}, and holds the resource types loaded by default
+ * ({@link IgResourceLoadPolicy#CONFORMANCE_RESOURCE_TYPES}). It is written by {@link ParsedResourceCodec},
+ * like validator snapshots, and only readable by the same binary format and HAPI FHIR version; a stale form is ignored
+ * until the package is registered again. Core packages are never loaded by validators and get no form.
+ */
+public class IgPackageConformanceBinary {
+    private static final Logger logger = LogManager.getLogger(IgPackageConformanceBinary.class);
+    private final Vertx vertx;
+    private final Pool pgPool;
+
+    public IgPackageConformanceBinary(Vertx vertx, Pool pgPool) {
+        this.vertx = vertx;
+        this.pgPool = pgPool;
+    }
+
+    /**
+     * A parsed resource with the size of its JSON, from which its retained heap is estimated.
+     */
+    public record Entry(String resourceType, long rawJsonBytes, IBaseResource resource) implements Serializable {
+    }
+
+    /**
+     * Generates and stores the binary form of a package.
+     * @return false if the package gets no binary form
+     */
+    public Future<Boolean> write(SqlConnection connection, IgPackageName igPackageName, NpmPackage npmPackage) {
+        if (FhirCoreIgPackageType.getNameList().contains(igPackageName.getName())) {
+            return Future.succeededFuture(false);
+        }
+        FhirContext fhirContext;
+        try {
+            fhirContext = FhirContextLoader.getInstance().getContext(SupportedFhirVersion.fromVersionNumber(npmPackage.fhirVersion()));
+        } catch (RuntimeException e) {
+            logger.debug("No binary form for {}#{}: {}", igPackageName.getName(), igPackageName.getVersion(), e.getMessage());
+            return Future.succeededFuture(false);
+        }
+        String sql = "UPDATE %s.fhir_implementation_guides SET conformance_binary = $3, conformance_binary_format = $4 WHERE ig_package_id = $1 AND ig_package_version = $2".formatted(DB_POSTGRES_SCHEMA_NAME);
+        return vertx.executeBlocking(() -> {
+                    long startedAt = System.currentTimeMillis();
+                    byte[] bytes = encode(parse(fhirContext, igPackageName, npmPackage));
+                    logger.debug("Generated the binary form of {}#{} in {} ms, {} bytes", igPackageName.getName(), igPackageName.getVersion(),
+                            System.currentTimeMillis() - startedAt, bytes.length);
+                    return bytes;
+                }, false)
+                .compose(bytes -> connection.preparedQuery(sql).execute(Tuple.of(
+                        igPackageName.getName(), igPackageName.getVersion(), Buffer.buffer(bytes), ParsedResourceCodec.formatStamp())))
+                .map(rows -> rows.rowCount() > 0);
+    }
+
+    /**
+     * @return whether the package has a binary form readable by this version
+     */
+    public Future<Boolean> isCurrent(SqlConnection connection, IgPackageName igPackageName) {
+        return connection.preparedQuery("SELECT conformance_binary_format = $3 FROM %s.fhir_implementation_guides WHERE ig_package_id = $1 AND ig_package_version = $2".formatted(DB_POSTGRES_SCHEMA_NAME))
+                .execute(Tuple.of(igPackageName.getName(), igPackageName.getVersion(), ParsedResourceCodec.formatStamp()))
+                .map(rows -> rows.size() > 0 && Boolean.TRUE.equals(rows.iterator().next().getBoolean(0)));
+    }
+
+    /**
+     * Reads the binary form of a package.
+     * @param fhirContext context of the validator, whose model classes the resources must be of
+     * @return the parsed resources, null if the package has no binary form readable by this version
+     */
+    public Future<List<Entry>> read(IgPackageName igPackageName, FhirContext fhirContext) {
+        String sql = "SELECT conformance_binary FROM %s.fhir_implementation_guides WHERE ig_package_id = $1 AND ig_package_version = $2 AND conformance_binary_format = $3".formatted(DB_POSTGRES_SCHEMA_NAME);
+        return pgPool.preparedQuery(sql)
+                .execute(Tuple.of(igPackageName.getName(), igPackageName.getVersion(), ParsedResourceCodec.formatStamp()))
+                .compose(rows -> {
+                    Buffer buffer = rows.size() > 0 ? rows.iterator().next().getBuffer(0) : null;
+                    if (buffer == null) {
+                        return Future.succeededFuture(null);
+                    }
+                    return vertx.executeBlocking(() -> {
+                        try {
+                            return decode(buffer.getBytes(), fhirContext);
+                        } catch (IOException e) {
+                            logger.warn("Ignoring the binary form of {}#{}: {}", igPackageName.getName(), igPackageName.getVersion(), e.getMessage());
+                            return null;
+                        }
+                    }, false);
+                });
+    }
+
+    /**
+     * Parses the conformance resources of the package folder.
+     */
+    static ArrayList<Entry> parse(FhirContext fhirContext, IgPackageName igPackageName, NpmPackage npmPackage) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<>();
+        NpmPackage.NpmPackageFolder packageFolder = npmPackage.getFolders().get(IgResourceLoadPolicy.PACKAGE_FOLDER);
+        if (packageFolder == null) {
+            return entries;
+        }
+        IParser parser = fhirContext.newJsonParser();
+        for (String fileName : packageFolder.listFiles()) {
+            if (!fileName.toLowerCase(Locale.ROOT).endsWith(".json") || fileName.startsWith(".") || fileName.equals("package.json")) {
+                continue;
+            }
+            IBaseResource resource;
+            try {
+                resource = parser.parseResource(NpmPackageDiskCache.readFile(packageFolder, fileName));
+            } catch (RuntimeException e) {
+                logger.debug("Skipping {} of {}#{}: {}", fileName, igPackageName.getName(), igPackageName.getVersion(), e.getMessage());
+                continue;
+            }
+            String resourceType = fhirContext.getResourceType(resource);
+            if (IgResourceLoadPolicy.CONFORMANCE_RESOURCE_TYPES.contains(resourceType)) {
+                entries.add(new Entry(resourceType, NpmPackageDiskCache.fileSize(packageFolder, fileName), resource));
+            }
+        }
+        return entries;
+    }
+
+    static byte[] encode(ArrayList<Entry> entries) throws IOException {
+        return ParsedResourceCodec.encode(entries);
+    }
+
+    /**
+     * @throws IOException if the bytes are stale or hold resources of another FHIR version than the context
+     */
+    @SuppressWarnings("unchecked")
+    static List<Entry> decode(byte[] bytes, FhirContext fhirContext) throws IOException {
+        Object decoded = ParsedResourceCodec.decode(bytes);
+        if (!(decoded instanceof ArrayList<?> list)) {
+            throw new IOException("Not a binary form of conformance resources");
+        }
+        List<Entry> entries = (List<Entry>) list;
+        if (!entries.isEmpty() && entries.get(0).resource().getStructureFhirVersionEnum() != fhirContext.getVersion().getVersion()) {
+            throw new IOException("Resources of FHIR " + entries.get(0).resource().getStructureFhirVersionEnum());
+        }
+        return entries;
+    }
+
+    /**
+     * @return whether validators read the binary form with the configured defaults, i.e. they load IG
+     * packages eagerly and with a policy it covers
+     */
+    public static boolean isUsable() {
+        return !CustomNpmPackageValidationSupport.isLazyLoadingEnabled() && covers(IgResourceLoadPolicy.defaults());
+    }
+
+    /**
+     * @return whether the binary form holds everything the policy loads
+     */
+    public static boolean covers(IgResourceLoadPolicy policy) {
+        return policy.getFolders().equals(List.of(IgResourceLoadPolicy.PACKAGE_FOLDER))
+                && IgResourceLoadPolicy.CONFORMANCE_RESOURCE_TYPES.containsAll(policy.getResourceTypes());
+    }
+}
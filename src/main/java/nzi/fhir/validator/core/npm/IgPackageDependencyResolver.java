@@ -0,0 +1,253 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+import nzi.fhir.validator.core.enums.FhirCoreIgPackageType;
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEMA_NAME;
+
+/**
+ * Resolves the transitive dependencies of an IG package as a DAG.
+ * <p>
+ * The graph is expanded wave by wave: the dependencies of every package already in Postgres are read
+ * with a single query per wave, and the missing packages of a wave are fetched from the package servers
+ * in parallel, at most {@code package.servers.maxConcurrent} at a time. Each package is visited once,
+ * so shared dependencies and cycles are fetched only once. The resolved graph, in topological order
+ * (dependencies first), is recorded on the package row.
+ */
+public class IgPackageDependencyResolver {
+    private static final Logger logger = LogManager.getLogger(IgPackageDependencyResolver.class);
+    private final PostgresPackageCacheManager cacheManager;
+    private final Pool pgPool;
+    private final int maxConcurrent;
+
+    public IgPackageDependencyResolver(PostgresPackageCacheManager cacheManager, Pool pgPool, int maxConcurrent) {
+        this.cacheManager = cacheManager;
+        this.pgPool = pgPool;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    public Future<DependencyGraph> resolve(NpmPackage npmPackage) {
+        long startedAt = System.currentTimeMillis();
+        IgPackageName root = new IgPackageName(npmPackage.name(), npmPackage.version());
+        Map<IgPackageName, List<IgPackageName>> edges = new ConcurrentHashMap<>();
+        Set<IgPackageName> missing = ConcurrentHashMap.newKeySet();
+        edges.put(root, toIgPackageNames(npmPackage.dependencies()));
+
+        return expand(edges, missing, edges.get(root))
+                .compose(v -> {
+                    DependencyGraph graph = new DependencyGraph(root, edges, topologicalOrder(edges), missing);
+                    logger.info("Resolved {} dependencies of {}#{} in {} ms ({} missing)",
+                            graph.order().size() - 1, root.getName(), root.getVersion(),
+                            System.currentTimeMillis() - startedAt, missing.size());
+                    return record(graph).map(graph);
+                });
+    }
+
+    private Future<Void> expand(Map<IgPackageName, List<IgPackageName>> edges, Set<IgPackageName> missing, Collection<IgPackageName> frontier) {
+        List<IgPackageName> pending = frontier.stream()
+                .filter(name -> !edges.containsKey(name) && !missing.contains(name))
+                .distinct()
+                .toList();
+        if (pending.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        return lookupCached(pending)
+                .compose(cached -> {
+                    edges.putAll(cached);
+                    List<IgPackageName> toFetch = pending.stream().filter(name -> !cached.containsKey(name)).toList();
+                    return runBounded(toFetch, maxConcurrent, name -> cacheManager.fetchPackage(name)
+                            .otherwise(e -> {
+                                logger.warn("Failed to fetch dependency {}#{}: {}", name.getName(), name.getVersion(), e.getMessage());
+                                return null;
+                            })
+                            .map(fetched -> {
+                                if (fetched == null) {
+                                    missing.add(name);
+                                } else {
+                                    edges.put(name, toIgPackageNames(fetched.dependencies()));
+                                }
+                                return null;
+                            }));
+                })
+                .compose(v -> {
+                    List<IgPackageName> next = new ArrayList<>();
+                    for (IgPackageName name : pending) {
+                        next.addAll(edges.getOrDefault(name, List.of()));
+                    }
+                    return expand(edges, missing, next);
+                });
+    }
+
+    /**
+     * Reads the direct dependencies of the packages already stored, in one query.
+     */
+    Future<Map<IgPackageName, List<IgPackageName>>> lookupCached(List<IgPackageName> names) {
+        String sql = """
+                SELECT ig_package_id, ig_package_version, dependencies FROM %s.fhir_implementation_guides
+                WHERE (ig_package_id, ig_package_version) IN (SELECT * FROM unnest($1::text[], $2::text[]))
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+        String[] ids = names.stream().map(IgPackageName::getName).toArray(String[]::new);
+        String[] versions = names.stream().map(IgPackageName::getVersion).toArray(String[]::new);
+        return pgPool.preparedQuery(sql)
+                .execute(Tuple.tuple().addArrayOfString(ids).addArrayOfString(versions))
+                .map(rows -> {
+                    Map<IgPackageName, List<IgPackageName>> cached = new HashMap<>();
+                    for (Row row : rows) {
+                        String[] dependencies = row.getArrayOfStrings("dependencies");
+                        cached.put(new IgPackageName(row.getString("ig_package_id"), row.getString("ig_package_version")),
+                                toIgPackageNames(dependencies != null ? List.of(dependencies) : List.of()));
+                    }
+                    return cached;
+                });
+    }
+
+    private Future<Void> record(DependencyGraph graph) {
+        String sql = "UPDATE %s.fhir_implementation_guides SET resolved_dependencies = $3 WHERE ig_package_id = $1 AND ig_package_version = $2".formatted(DB_POSTGRES_SCHEMA_NAME);
+        return pgPool.preparedQuery(sql)
+                .execute(Tuple.of(graph.root().getName(), graph.root().getVersion(), graph.toJson()))
+                .<Void>mapEmpty()
+                .otherwise(e -> {
+                    logger.warn("Failed to record dependency graph of {}#{}: {}", graph.root().getName(), graph.root().getVersion(), e.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * Runs a task per item with at most {@code limit} tasks in flight.
+     */
+    static <T> Future<Void> runBounded(List<T> items, int limit, Function<T, Future<?>> task) {
+        if (items.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, items.size()); i++) {
+            workers.add(drain(queue, task));
+        }
+        return Future.all(workers).mapEmpty();
+    }
+
+    private static <T> Future<Void> drain(Queue<T> queue, Function<T, Future<?>> task) {
+        T next = queue.poll();
+        if (next == null) {
+            return Future.succeededFuture();
+        }
+        return task.apply(next).compose(v -> drain(queue, task));
+    }
+
+    /**
+     * Orders the nodes so that every package comes after its dependencies. Nodes on a cycle are
+     * appended in discovery order.
+     */
+    static List<IgPackageName> topologicalOrder(Map<IgPackageName, List<IgPackageName>> edges) {
+        Map<IgPackageName, Integer> pendingDependencies = new LinkedHashMap<>();
+        Map<IgPackageName, List<IgPackageName>> dependents = new HashMap<>();
+        for (Map.Entry<IgPackageName, List<IgPackageName>> entry : edges.entrySet()) {
+            Set<IgPackageName> dependencies = new LinkedHashSet<>(entry.getValue());
+            dependencies.retainAll(edges.keySet());
+            pendingDependencies.put(entry.getKey(), dependencies.size());
+            for (IgPackageName dependency : dependencies) {
+                dependents.computeIfAbsent(dependency, k -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+        Deque<IgPackageName> ready = new ArrayDeque<>();
+        pendingDependencies.forEach((name, count) -> {
+            if (count == 0) {
+                ready.add(name);
+            }
+        });
+        List<IgPackageName> order = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            IgPackageName name = ready.poll();
+            order.add(name);
+            for (IgPackageName dependent : dependents.getOrDefault(name, List.of())) {
+                if (pendingDependencies.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (order.size() < pendingDependencies.size()) {
+            List<IgPackageName> cyclic = pendingDependencies.keySet().stream().filter(name -> !order.contains(name)).toList();
+            logger.warn("Dependency cycle between {}", cyclic);
+            order.addAll(cyclic);
+        }
+        return order;
+    }
+
+    private static List<IgPackageName> toIgPackageNames(Collection<String> dependencies) {
+        List<IgPackageName> names = new ArrayList<>();
+        if (dependencies == null) {
+            return names;
+        }
+        for (String dependency : dependencies) {
+            if (dependency == null || !dependency.contains("#")) {
+                logger.debug("Skipping dependency without version: {}", dependency);
+                continue;
+            }
+            IgPackageName name = IgPackageName.fromIdAndVersion(dependency);
+            if (!FhirCoreIgPackageType.getNameList().contains(name.getName())) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Resolved dependencies of a package.
+     *
+     * @param order all packages of the graph, dependencies before their dependents
+     * @param missing dependencies that could not be found on any package server
+     */
+    public record DependencyGraph(IgPackageName root, Map<IgPackageName, List<IgPackageName>> edges,
+                                  List<IgPackageName> order, Set<IgPackageName> missing) {
+
+        public DependencyGraph {
+            edges = Collections.unmodifiableMap(new LinkedHashMap<>(edges));
+            order = List.copyOf(order);
+            missing = Set.copyOf(missing);
+        }
+
+        public JsonObject toJson() {
+            JsonObject edgesJson = new JsonObject();
+            for (IgPackageName name : order) {
+                JsonArray dependencies = new JsonArray();
+                edges.getOrDefault(name, List.of()).forEach(dependency -> dependencies.add(asId(dependency)));
+                edgesJson.put(asId(name), dependencies);
+            }
+            return new JsonObject()
+                    .put("root", asId(root))
+                    .put("order", new JsonArray(order.stream().map(DependencyGraph::asId).toList()))
+                    .put("edges", edgesJson)
+                    .put("missing", new JsonArray(missing.stream().map(DependencyGraph::asId).sorted().toList()));
+        }
+
+        private static String asId(IgPackageName name) {
+            return name.getName() + "#" + name.getVersion();
+        }
+    }
+}
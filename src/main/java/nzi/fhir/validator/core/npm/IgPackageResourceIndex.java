@@ -0,0 +1,162 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEMA_NAME;
+
+/**
+ * Exploded view of the canonical resources of IG packages, one row per resource, so a single
+ * StructureDefinition, ValueSet or CodeSystem can be resolved by canonical URL without loading and
+ * extracting the whole package.
+ */
+public class IgPackageResourceIndex {
+    private static final Logger logger = LogManager.getLogger(IgPackageResourceIndex.class);
+    private static final int BATCH_SIZE = 200;
+    private final Vertx vertx;
+    private final Pool pgPool;
+
+    public IgPackageResourceIndex(Vertx vertx, Pool pgPool) {
+        this.vertx = vertx;
+        this.pgPool = pgPool;
+    }
+
+    /**
+     * Replaces the indexed resources of a package. Files are read and written a batch at a time, so
+     * only the JSON of one batch is held in memory.
+     */
+    public Future<Integer> write(SqlConnection connection, IgPackageName igPackageName, NpmPackage npmPackage) {
+        String deleteSql = "DELETE FROM %s.fhir_ig_resources WHERE ig_package_id = $1 AND ig_package_version = $2".formatted(DB_POSTGRES_SCHEMA_NAME);
+        String insertSql = """
+                INSERT INTO %s.fhir_ig_resources
+                    (ig_package_id, ig_package_version, resource_type, resource_id, url, resource_version, resource_json)
+                VALUES ($1, $2, $3, $4, $5, $6, $7)
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+        NpmPackage.NpmPackageFolder packageFolder = npmPackage.getFolders().get("package");
+        return vertx.executeBlocking(() -> resourceFiles(packageFolder), false)
+                .compose(fileNames -> connection.preparedQuery(deleteSql)
+                        .execute(Tuple.of(igPackageName.getName(), igPackageName.getVersion()))
+                        .compose(v -> writeBatch(connection, insertSql, igPackageName, packageFolder, fileNames, 0, 0)))
+                .map(count -> {
+                    logger.debug("Indexed {} resources of {}#{}", count, igPackageName.getName(), igPackageName.getVersion());
+                    return count;
+                });
+    }
+
+    private Future<Integer> writeBatch(SqlConnection connection, String sql, IgPackageName igPackageName,
+                                       NpmPackage.NpmPackageFolder packageFolder, List<String> fileNames, int offset, int count) {
+        if (offset >= fileNames.size()) {
+            return Future.succeededFuture(count);
+        }
+        List<String> batch = fileNames.subList(offset, Math.min(fileNames.size(), offset + BATCH_SIZE));
+        return vertx.executeBlocking(() -> explode(igPackageName, packageFolder, batch), false)
+                .compose(rows -> rows.isEmpty()
+                        ? Future.succeededFuture(count)
+                        : connection.preparedQuery(sql).executeBatch(rows).map(v -> count + rows.size()))
+                .compose(written -> writeBatch(connection, sql, igPackageName, packageFolder, fileNames, offset + BATCH_SIZE, written));
+    }
+
+    public Future<Boolean> isIndexed(SqlConnection connection, IgPackageName igPackageName) {
+        return connection.preparedQuery("SELECT EXISTS(SELECT 1 FROM %s.fhir_ig_resources WHERE ig_package_id = $1 AND ig_package_version = $2)".formatted(DB_POSTGRES_SCHEMA_NAME))
+                .execute(Tuple.of(igPackageName.getName(), igPackageName.getVersion()))
+                .map(rows -> rows.iterator().next().getBoolean(0));
+    }
+
+    /**
+     * Resolves a resource by canonical URL. The URL may carry a {@code |version} suffix.
+     *
+     * @param version resource version, or null for the most recently indexed one
+     * @return the resource JSON, or null if no package provides it
+     */
+    public Future<JsonObject> find(String url, String version) {
+        return find(url, version, null);
+    }
+
+    /**
+     * Like {@link #find(String, String)}, but only among the resources of the given packages.
+     *
+     * @param igPackageNames packages to look in, or null for all of them
+     */
+    public Future<JsonObject> find(String url, String version, List<IgPackageName> igPackageNames) {
+        int separator = url.lastIndexOf('|');
+        if (separator > 0 && version == null) {
+            version = url.substring(separator + 1);
+            url = url.substring(0, separator);
+        }
+        StringBuilder sql = new StringBuilder("SELECT resource_json FROM %s.fhir_ig_resources WHERE url = $1".formatted(DB_POSTGRES_SCHEMA_NAME));
+        Tuple tuple = Tuple.tuple().addString(url);
+        if (version != null) {
+            tuple.addString(version);
+            sql.append(" AND resource_version = $").append(tuple.size());
+        }
+        if (igPackageNames != null) {
+            tuple.addArrayOfString(igPackageNames.stream().map(IgPackageName::getName).toArray(String[]::new))
+                    .addArrayOfString(igPackageNames.stream().map(IgPackageName::getVersion).toArray(String[]::new));
+            sql.append(" AND (ig_package_id, ig_package_version) IN (SELECT * FROM unnest($%d::text[], $%d::text[]))"
+                    .formatted(tuple.size() - 1, tuple.size()));
+        }
+        sql.append(" ORDER BY id DESC LIMIT 1");
+        return pgPool.preparedQuery(sql.toString())
+                .execute(tuple)
+                .map(result -> result.size() > 0 ? (JsonObject) result.iterator().next().getJson(0) : null);
+    }
+
+    /**
+     * @return the JSON files of the package folder which may hold a resource
+     */
+    static List<String> resourceFiles(NpmPackage.NpmPackageFolder packageFolder) throws IOException {
+        List<String> fileNames = new ArrayList<>();
+        if (packageFolder == null) {
+            return fileNames;
+        }
+        for (String fileName : packageFolder.listFiles()) {
+            if (fileName.toLowerCase(Locale.ROOT).endsWith(".json") && !fileName.startsWith(".") && !fileName.equals("package.json")) {
+                fileNames.add(fileName);
+            }
+        }
+        return fileNames;
+    }
+
+    /**
+     * Parses the canonical resources among the given files of the package folder into insert rows.
+     */
+    static List<Tuple> explode(IgPackageName igPackageName, NpmPackage.NpmPackageFolder packageFolder, List<String> fileNames) throws IOException {
+        List<Tuple> rows = new ArrayList<>();
+        for (String fileName : fileNames) {
+            JsonObject resource;
+            try {
+                resource = new JsonObject(NpmPackageDiskCache.readFile(packageFolder, fileName));
+            } catch (RuntimeException e) {
+                logger.debug("Skipping {} of {}#{}: {}", fileName, igPackageName.getName(), igPackageName.getVersion(), e.getMessage());
+                continue;
+            }
+            String url = resource.getString("url");
+            String resourceType = resource.getString("resourceType");
+            if (url == null || resourceType == null) {
+                continue;
+            }
+            rows.add(Tuple.of(
+                    igPackageName.getName(),
+                    igPackageName.getVersion(),
+                    resourceType,
+                    resource.getString("id"),
+                    url,
+                    resource.getString("version"),
+                    resource));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,87 @@
+package nzi.fhir.validator.core.npm;
+
+import org.hl7.fhir.utilities.npm.PackageServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Package server backed by a local directory of package tarballs, for deployments without access to
+ * the public package servers. Tarballs are laid out by package id, one directory per id segment:
+ * {@code <root>/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz}.
+ */
+public class LocalPackageServer extends PackageServer {
+    private static final String TGZ_SUFFIX = ".tgz";
+    private final Path rootDirectory;
+
+    public LocalPackageServer(Path rootDirectory) {
+        super(rootDirectory.toAbsolutePath().normalize().toUri().toString());
+        this.rootDirectory = rootDirectory.toAbsolutePath().normalize();
+    }
+
+    public Path getRootDirectory() {
+        return rootDirectory;
+    }
+
+    public Path packageDirectory(String id) {
+        Path directory = rootDirectory;
+        for (String segment : id.split("\\.")) {
+            directory = directory.resolve(segment);
+        }
+        return directory.normalize();
+    }
+
+    /**
+     * @return the tarball of the package, or null if the directory does not provide it
+     */
+    public Path packageFile(String id, String version) {
+        Path file = packageDirectory(id).resolve(id + "-" + version + TGZ_SUFFIX).normalize();
+        if (!file.startsWith(rootDirectory) || !Files.isRegularFile(file)) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * @return the versions of a package found in the directory
+     */
+    public List<String> versions(String id) throws IOException {
+        List<String> versions = new ArrayList<>();
+        Path directory = packageDirectory(id);
+        if (!directory.startsWith(rootDirectory) || !Files.isDirectory(directory)) {
+            return versions;
+        }
+        String prefix = id + "-";
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.endsWith(TGZ_SUFFIX))
+                    .map(name -> name.substring(prefix.length(), name.length() - TGZ_SUFFIX.length()))
+                    .forEach(versions::add);
+        }
+        return versions;
+    }
+
+    /**
+     * @return all package tarballs below the root directory, in path order
+     */
+    public List<Path> listPackageFiles() throws IOException {
+        return listPackageFiles(rootDirectory);
+    }
+
+    public static List<Path> listPackageFiles(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(TGZ_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package nzi.fhir.validator.core.npm;
+
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Local directory of extracted IG packages, laid out as {@code <root>/<id>/<version>/<content hash>/package/...}.
+ * <p>
+ * It sits between the in-memory cache and Postgres, so a pod (or several pods sharing a volume) only
+ * transfers and extracts a tarball once. Packages are extracted into a temporary directory and moved
+ * into place, so a partially written package is never visible to readers.
+ */
+public class NpmPackageDiskCache {
+    private static final Logger logger = LogManager.getLogger(NpmPackageDiskCache.class);
+    private static final String PACKAGE_JSON = "package" + File.separator + "package.json";
+    // Package ids and versions become path segments, so they must not name a parent or contain separators
+    private static final Pattern PACKAGE_ID = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+    private static final Pattern PACKAGE_VERSION = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._+-]*");
+    private static final Pattern CONTENT_HASH = Pattern.compile("[A-Za-z0-9]+");
+    private final Path rootDirectory;
+
+    public NpmPackageDiskCache(Path rootDirectory) {
+        this.rootDirectory = rootDirectory.toAbsolutePath().normalize();
+    }
+
+    public Path getRootDirectory() {
+        return rootDirectory;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the id, version or content hash is not a valid path segment
+     */
+    public Path packageDirectory(IgPackageName igPackageName, String contentHash) {
+        if (contentHash == null || !CONTENT_HASH.matcher(contentHash).matches()) {
+            throw new IllegalArgumentException("Invalid package content hash: " + contentHash);
+        }
+        return contained(versionDirectory(igPackageName).resolve(contentHash));
+    }
+
+    private Path versionDirectory(IgPackageName igPackageName) {
+        String id = igPackageName.getName();
+        String version = igPackageName.getVersion();
+        if (id == null || !PACKAGE_ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("Invalid package id: " + id);
+        }
+        if (version == null || !PACKAGE_VERSION.matcher(version).matches()) {
+            throw new IllegalArgumentException("Invalid package version: " + version);
+        }
+        return contained(rootDirectory.resolve(id).resolve(version));
+    }
+
+    private Path contained(Path path) {
+        Path normalized = path.normalize();
+        if (!normalized.startsWith(rootDirectory) || normalized.equals(rootDirectory)) {
+            throw new IllegalArgumentException("Package path is outside of the package cache: " + path);
+        }
+        return normalized;
+    }
+
+    /**
+     * @return the folder backed package, or null if it has not been extracted yet
+     */
+    public NpmPackage load(IgPackageName igPackageName, String contentHash) throws IOException {
+        Path directory = packageDirectory(igPackageName, contentHash);
+        if (!Files.isRegularFile(directory.resolve(PACKAGE_JSON))) {
+            return null;
+        }
+        return NpmPackage.fromFolder(directory.toString());
+    }
+
+    /**
+     * Extracts a package tarball and returns the folder backed package. Other extracted contents of the
+     * same package id and version are removed.
+     */
+    public NpmPackage store(IgPackageName igPackageName, String contentHash, InputStream tgzStream) throws IOException {
+        Files.createDirectories(rootDirectory);
+        Path tempDirectory = rootDirectory.resolve(".tmp-" + UUID.randomUUID());
+        try {
+            NpmPackage.extractFromTgz(tgzStream, igPackageName.getName() + "#" + igPackageName.getVersion(), tempDirectory.toString(), false);
+            return moveIntoPlace(tempDirectory, igPackageName, contentHash);
+        } finally {
+            FileUtils.deleteQuietly(tempDirectory.toFile());
+        }
+    }
+
+    /**
+     * Extracts a package tarball whose id and version are not known yet, taking them from its package.json.
+     */
+    public NpmPackage store(Path tgzFile, String contentHash) throws IOException {
+        Files.createDirectories(rootDirectory);
+        Path tempDirectory = rootDirectory.resolve(".tmp-" + UUID.randomUUID());
+        try (InputStream tgzStream = Files.newInputStream(tgzFile)) {
+            NpmPackage.extractFromTgz(tgzStream, contentHash, tempDirectory.toString(), false);
+            NpmPackage extracted = NpmPackage.fromFolder(tempDirectory.toString());
+            return moveIntoPlace(tempDirectory, new IgPackageName(extracted.name(), extracted.version()), contentHash);
+        } finally {
+            FileUtils.deleteQuietly(tempDirectory.toFile());
+        }
+    }
+
+    private NpmPackage moveIntoPlace(Path extractedDirectory, IgPackageName igPackageName, String contentHash) throws IOException {
+        Path directory = packageDirectory(igPackageName, contentHash);
+        Path versionDirectory = directory.getParent();
+        Files.createDirectories(versionDirectory);
+        try {
+            try {
+                Files.move(extractedDirectory, directory, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(extractedDirectory, directory);
+            }
+        } catch (IOException e) {
+            if (Files.isRegularFile(directory.resolve(PACKAGE_JSON))) {
+                // Extracted concurrently by another loader
+                logger.debug("Package {}#{} already extracted to {}", igPackageName.getName(), igPackageName.getVersion(), directory);
+            } else {
+                throw e;
+            }
+        }
+        removeStaleContents(versionDirectory, contentHash);
+        logger.debug("Package {}#{} extracted to {}", igPackageName.getName(), igPackageName.getVersion(), directory);
+        return NpmPackage.fromFolder(directory.toString());
+    }
+
+    public void remove(IgPackageName igPackageName) {
+        Path versionDirectory;
+        try {
+            versionDirectory = versionDirectory(igPackageName);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Not removing package from disk cache: {}", e.getMessage());
+            return;
+        }
+        FileUtils.deleteQuietly(versionDirectory.toFile());
+    }
+
+    public void clear() {
+        File[] children = rootDirectory.toFile().listFiles();
+        if (children != null) {
+            for (File child : children) {
+                FileUtils.deleteQuietly(child);
+            }
+        }
+    }
+
+    private void removeStaleContents(Path versionDirectory, String contentHash) {
+        File[] children = versionDirectory.toFile().listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (!child.getName().equals(contentHash) && !child.getName().startsWith(".tmp-")) {
+                FileUtils.deleteQuietly(child);
+            }
+        }
+    }
+
+    /**
+     * Reads a file of a package folder as UTF-8 text. Files of folder backed packages are read through a
+     * memory-mapped buffer and decoded without an intermediate byte array.
+     */
+    public static String readFile(NpmPackage.NpmPackageFolder folder, String fileName) throws IOException {
+        if (folder.getContent() != null && folder.getContent().containsKey(fileName)) {
+            return new String(folder.getContent().get(fileName), StandardCharsets.UTF_8);
+        }
+        if (folder.getFolderPath() == null) {
+            return new String(folder.fetchFile(fileName), StandardCharsets.UTF_8);
+        }
+        Path file = Path.of(folder.getFolderPath(), fileName);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        }
+    }
+
+    /**
+     * @return size of a file of a package folder in bytes, 0 if it cannot be found
+     */
+    public static long fileSize(NpmPackage.NpmPackageFolder folder, String fileName) throws IOException {
+        if (folder.getContent() != null && folder.getContent().containsKey(fileName)) {
+            byte[] content = folder.getContent().get(fileName);
+            return content != null ? content.length : 0;
+        }
+        if (folder.getFolderPath() == null) {
+            return 0;
+        }
+        Path file = Path.of(folder.getFolderPath(), fileName);
+        return Files.isRegularFile(file) ? Files.size(file) : 0;
+    }
+}
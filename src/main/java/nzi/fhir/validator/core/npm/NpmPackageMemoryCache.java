@@ -0,0 +1,133 @@
+package nzi.fhir.validator.core.npm;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.vertx.core.json.JsonObject;
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size weighted LRU of parsed {@link NpmPackage}s, so that a package stored as a tarball is
+ * decompressed only once while it stays hot.
+ * <p>
+ * Packages are keyed by the SHA-256 of their tarball, so re-registering byte-identical content keeps the
+ * parsed package. Package names are aliases of a content hash, dropped together with the package. The
+ * weight of a package is the total size of its (uncompressed) files, read from disk for folder backed
+ * packages, and at least {@link #MIN_WEIGHT}.
+ */
+public class NpmPackageMemoryCache {
+    /**
+     * Parsed indexes and metadata of a package, even one whose files stay on disk.
+     */
+    static final long MIN_WEIGHT = 64 * 1024;
+    private final Cache<String, NpmPackage> cache;
+    private final Map<IgPackageName, String> contentHashes = new ConcurrentHashMap<>();
+    private final long maxBytes;
+
+    public NpmPackageMemoryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, NpmPackage value) -> (int) Math.min(Integer.MAX_VALUE, weigh(value)))
+                .executor(Runnable::run)
+                .removalListener((String key, NpmPackage value, RemovalCause cause) -> dropAliases(key, cause))
+                .recordStats()
+                .build();
+    }
+
+    public NpmPackage get(IgPackageName igPackageName) {
+        String contentHash = contentHashes.get(igPackageName);
+        return contentHash != null ? cache.getIfPresent(contentHash) : null;
+    }
+
+    public NpmPackage get(String contentHash) {
+        return cache.getIfPresent(contentHash);
+    }
+
+    public String getContentHash(IgPackageName igPackageName) {
+        return contentHashes.get(igPackageName);
+    }
+
+    public void put(IgPackageName igPackageName, String contentHash, NpmPackage npmPackage) {
+        if (npmPackage != null && contentHash != null) {
+            // Aliased first, so evicting the package right away drops the alias too
+            contentHashes.put(igPackageName, contentHash);
+            cache.put(contentHash, npmPackage);
+        }
+    }
+
+    /**
+     * Drops the alias of a package name. The parsed content stays cached under its hash until evicted.
+     */
+    public void invalidate(IgPackageName igPackageName) {
+        contentHashes.remove(igPackageName);
+    }
+
+    /**
+     * Drops the alias of a package name together with the parsed content, e.g. once its extracted files
+     * have been deleted.
+     */
+    public void invalidateContent(IgPackageName igPackageName) {
+        String contentHash = contentHashes.remove(igPackageName);
+        if (contentHash != null) {
+            cache.invalidate(contentHash);
+        }
+    }
+
+    public void invalidateAll() {
+        contentHashes.clear();
+        cache.invalidateAll();
+    }
+
+    private void dropAliases(String contentHash, RemovalCause cause) {
+        // Unless the package was cached again in the meantime
+        if (contentHash != null && cause != RemovalCause.REPLACED && !cache.asMap().containsKey(contentHash)) {
+            contentHashes.values().removeIf(contentHash::equals);
+        }
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    public JsonObject stats() {
+        CacheStats stats = cache.stats();
+        long weight = cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+        return new JsonObject()
+                .put("entries", cache.estimatedSize())
+                .put("weightBytes", weight)
+                .put("maxBytes", maxBytes)
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("evictions", stats.evictionCount());
+    }
+
+    /**
+     * @return total size of the files of all folders in the package, at least {@link #MIN_WEIGHT}
+     */
+    public static long weigh(NpmPackage npmPackage) {
+        long total = 0;
+        for (NpmPackage.NpmPackageFolder folder : npmPackage.getFolders().values()) {
+            if (folder.getContent() != null && !folder.getContent().isEmpty()) {
+                for (byte[] content : folder.getContent().values()) {
+                    total += content != null ? content.length : 0;
+                }
+            } else if (folder.getFolderPath() != null) {
+                for (String fileName : folder.listFiles()) {
+                    try {
+                        total += NpmPackageDiskCache.fileSize(folder, fileName);
+                    } catch (IOException e) {
+                        // Counted by the minimum weight only
+                    }
+                }
+            }
+        }
+        return Math.max(MIN_WEIGHT, total);
+    }
+}
@@ -0,0 +1,326 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import nzi.fhir.validator.core.config.PackageServerConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.npm.PackageServer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP access to the package servers through one shared, tuned client.
+ * <p>
+ * Package downloads are hedged: the healthiest server is asked first and the next one only when no
+ * answer arrived within {@code package.servers.hedgeDelay}. The first successful download wins and
+ * the remaining requests are reset. Each server has a circuit breaker that skips it for
+ * {@code package.servers.breaker.openMillis} after {@code package.servers.breaker.failureThreshold}
+ * consecutive failures, and keeps latency statistics used to rank the servers. A {@link LocalPackageServer}
+ * is read from disk instead.
+ */
+public class PackageServerClient {
+    private static final Logger logger = LogManager.getLogger(PackageServerClient.class);
+    private final Vertx vertx;
+    private final HttpClient httpClient;
+    private final WebClient webClient;
+    private final PackageServerConfig config;
+    private final Map<String, ServerStats> serverStats = new ConcurrentHashMap<>();
+
+    public PackageServerClient(Vertx vertx, PackageServerConfig config) {
+        this.vertx = vertx;
+        this.config = config;
+        HttpClientOptions options = new HttpClientOptions()
+                .setConnectTimeout((int) Math.min(Integer.MAX_VALUE, config.getTimeout()))
+                .setIdleTimeout((int) Math.max(1, config.getTimeout() / 1000))
+                .setKeepAlive(true)
+                .setDecompressionSupported(true)
+                .setMaxPoolSize(Math.max(5, config.getMaxConcurrent() * 2));
+        this.httpClient = vertx.createHttpClient(options);
+        this.webClient = WebClient.wrap(httpClient);
+    }
+
+    public Vertx getVertx() {
+        return vertx;
+    }
+
+    /**
+     * @return a web client sharing the connection pool of the package downloads
+     */
+    public WebClient getWebClient() {
+        return webClient;
+    }
+
+    /**
+     * Downloads a package tarball with hedged requests, streaming it into a temporary file.
+     *
+     * @return the downloaded file, to be discarded by the caller, or null if no server has the package
+     */
+    public Future<DigestFileWriteStream> download(List<PackageServer> servers, String id, String version) {
+        List<PackageServer> ranked = rank(servers);
+        if (ranked.isEmpty()) {
+            logger.warn("No package server available for {}#{}", id, version);
+            return Future.succeededFuture(null);
+        }
+        Promise<DigestFileWriteStream> result = Promise.promise();
+        HedgedDownload download = new HedgedDownload(ranked, id, version, result);
+        download.launchNext();
+        return result.future();
+    }
+
+    /**
+     * Orders servers by circuit state and observed latency. Servers with an open circuit are left out
+     * unless all circuits are open, in which case all servers are probed.
+     */
+    List<PackageServer> rank(List<PackageServer> servers) {
+        long now = System.currentTimeMillis();
+        List<PackageServer> available = new ArrayList<>();
+        for (PackageServer server : servers) {
+            if (stats(server).allowsRequest(now)) {
+                available.add(server);
+            }
+        }
+        if (available.isEmpty()) {
+            available.addAll(servers);
+        }
+        // Stable sort, so configured order decides between servers without measurements
+        available.sort(Comparator.comparingLong(server -> stats(server).rankingLatency(config.getHedgeDelay())));
+        return available;
+    }
+
+    private ServerStats stats(PackageServer server) {
+        return serverStats.computeIfAbsent(server.getUrl(), url -> new ServerStats(config.getBreakerFailureThreshold(), config.getBreakerOpenMillis()));
+    }
+
+    public JsonObject getStats() {
+        JsonObject json = new JsonObject();
+        serverStats.forEach((url, stats) -> json.put(url, stats.toJson()));
+        return json;
+    }
+
+    private final class HedgedDownload {
+        private final List<PackageServer> servers;
+        private final String id;
+        private final String version;
+        private final Promise<DigestFileWriteStream> result;
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final List<HttpClientRequest> requests = new CopyOnWriteArrayList<>();
+
+        private HedgedDownload(List<PackageServer> servers, String id, String version, Promise<DigestFileWriteStream> result) {
+            this.servers = servers;
+            this.id = id;
+            this.version = version;
+            this.result = result;
+        }
+
+        private void launchNext() {
+            if (result.future().isComplete()) {
+                return;
+            }
+            int index = nextIndex.getAndIncrement();
+            if (index >= servers.size()) {
+                if (inFlight.get() == 0) {
+                    logger.warn("Package {}#{} not found on any package server", id, version);
+                    result.tryComplete(null);
+                }
+                return;
+            }
+            PackageServer server = servers.get(index);
+            inFlight.incrementAndGet();
+            if (index + 1 < servers.size()) {
+                // Hedge: ask the next server when this one is slow
+                vertx.setTimer(Math.max(1, config.getHedgeDelay()), timerId -> {
+                    if (!result.future().isComplete() && nextIndex.get() == index + 1) {
+                        logger.debug("No answer from {} within {} ms, hedging {}#{}", server.getUrl(), config.getHedgeDelay(), id, version);
+                        launchNext();
+                    }
+                });
+            }
+            fetch(server).onComplete(ar -> {
+                inFlight.decrementAndGet();
+                if (ar.succeeded() && ar.result() != null) {
+                    if (result.tryComplete(ar.result())) {
+                        logger.debug("Fetched {}#{} ({} bytes) from {}", id, version, ar.result().getSize(), server.getUrl());
+                        cancelOthers();
+                    } else {
+                        ar.result().discard(vertx);
+                    }
+                } else if (nextIndex.get() == index + 1) {
+                    launchNext();
+                } else if (nextIndex.get() >= servers.size() && inFlight.get() == 0) {
+                    logger.warn("Package {}#{} not found on any package server", id, version);
+                    result.tryComplete(null);
+                }
+            });
+        }
+
+        private Future<DigestFileWriteStream> fetch(PackageServer server) {
+            ServerStats stats = stats(server);
+            long startedAt = System.nanoTime();
+            Future<DigestFileWriteStream> fetched = server instanceof LocalPackageServer localServer
+                    ? copyLocal(localServer)
+                    : download(server);
+            return fetched.onComplete(ar -> {
+                long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                if (ar.succeeded()) {
+                    stats.recordSuccess(latencyMillis);
+                } else if (!result.future().isComplete()) {
+                    // Requests reset after another server won are not failures of this server
+                    logger.warn("Failed to fetch {}#{} from {}: {}", id, version, server.getUrl(), ar.cause().getMessage());
+                    stats.recordFailure(System.currentTimeMillis());
+                }
+            });
+        }
+
+        private Future<DigestFileWriteStream> download(PackageServer server) {
+            String packageUrl = Utilities.pathURL(server.getUrl(), id, version);
+            RequestOptions options = new RequestOptions()
+                    .setMethod(HttpMethod.GET)
+                    .setAbsoluteURI(packageUrl)
+                    .setConnectTimeout(config.getTimeout())
+                    .setIdleTimeout(config.getTimeout());
+            return httpClient.request(options)
+                    .compose(request -> {
+                        requests.add(request);
+                        if (result.future().isComplete()) {
+                            // Another server won while this request was connecting, cancelOthers() missed it
+                            request.reset();
+                            return Future.failedFuture("Download of " + packageUrl + " no longer needed");
+                        }
+                        return request.send();
+                    })
+                    .compose(response -> {
+                        if (response.statusCode() == 404) {
+                            response.end();
+                            return Future.succeededFuture((DigestFileWriteStream) null);
+                        }
+                        if (response.statusCode() != 200) {
+                            // Drain the error body, so the connection returns to the pool
+                            return response.end()
+                                    .transform(ar -> Future.failedFuture("HTTP " + response.statusCode() + " from " + packageUrl));
+                        }
+                        // Stream the body to disk, hashing it on the way
+                        response.pause();
+                        return DigestFileWriteStream.create(vertx)
+                                .compose(target -> response.pipeTo(target)
+                                        .map(target)
+                                        .recover(e -> target.discard(vertx).compose(v -> Future.failedFuture(e))));
+                    });
+        }
+
+        /**
+         * Copies a tarball of a local package directory, so the caller may discard the result like a download.
+         */
+        private Future<DigestFileWriteStream> copyLocal(LocalPackageServer server) {
+            return vertx.executeBlocking(() -> server.packageFile(id, version), false)
+                    .compose(file -> {
+                        if (file == null) {
+                            return Future.succeededFuture((DigestFileWriteStream) null);
+                        }
+                        return vertx.fileSystem().open(file.toString(), new OpenOptions().setRead(true).setWrite(false))
+                                .compose(source -> DigestFileWriteStream.create(vertx)
+                                        .compose(target -> source.pipeTo(target)
+                                                .map(target)
+                                                .recover(e -> target.discard(vertx).compose(v -> Future.failedFuture(e))))
+                                        .eventually(() -> source.close().otherwiseEmpty()));
+                    });
+        }
+
+        private void cancelOthers() {
+            for (HttpClientRequest request : requests) {
+                try {
+                    request.reset();
+                } catch (RuntimeException e) {
+                    logger.debug("Failed to reset request: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Circuit breaker and latency statistics of a single package server.
+     */
+    static final class ServerStats {
+        private final int failureThreshold;
+        private final long openMillis;
+        private long requests;
+        private long failures;
+        private int consecutiveFailures;
+        private long openedAt;
+        private double latencyEwmaMillis = -1;
+
+        ServerStats(int failureThreshold, long openMillis) {
+            this.failureThreshold = failureThreshold;
+            this.openMillis = openMillis;
+        }
+
+        synchronized void recordSuccess(long latencyMillis) {
+            requests++;
+            consecutiveFailures = 0;
+            openedAt = 0;
+            latencyEwmaMillis = latencyEwmaMillis < 0 ? latencyMillis : latencyEwmaMillis * 0.8 + latencyMillis * 0.2;
+        }
+
+        synchronized void recordFailure(long now) {
+            requests++;
+            failures++;
+            consecutiveFailures++;
+            if (consecutiveFailures >= failureThreshold) {
+                openedAt = now;
+            }
+        }
+
+        /**
+         * A closed circuit allows requests, an open one allows a single probe once the open period elapsed.
+         */
+        synchronized boolean allowsRequest(long now) {
+            if (openedAt == 0) {
+                return true;
+            }
+            if (now - openedAt >= openMillis) {
+                // Half open: let one request through, a failure opens the circuit again
+                openedAt = now;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized String state(long now) {
+            if (openedAt == 0) {
+                return "CLOSED";
+            }
+            return now - openedAt >= openMillis ? "HALF_OPEN" : "OPEN";
+        }
+
+        synchronized long rankingLatency(long unknownLatency) {
+            return latencyEwmaMillis < 0 ? unknownLatency : (long) latencyEwmaMillis;
+        }
+
+        synchronized JsonObject toJson() {
+            return new JsonObject()
+                    .put("state", state(System.currentTimeMillis()))
+                    .put("requests", requests)
+                    .put("failures", failures)
+                    .put("consecutiveFailures", consecutiveFailures)
+                    .put("latencyEwmaMillis", latencyEwmaMillis < 0 ? null : Math.round(latencyEwmaMillis));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package nzi.fhir.validator.core.npm;
+
+import ca.uhn.fhir.util.VersionUtil;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary form of parsed FHIR resources: Java serialization in a gzip stream, stamped with the format
+ * and the HAPI FHIR version, as serialized resources are only readable by the same model classes.
+ * Validator snapshots and the binary form of IG packages are written with it.
+ * <p>
+ * Reading is restricted by {@link #DESERIALIZATION_FILTER} to the classes these forms hold, and to a
+ * bounded stream size and graph depth.
+ */
+public final class ParsedResourceCodec {
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * The model classes of the supported FHIR versions, the narrative classes and JDK types they are
+     * built of, and the records written by this service. Anything else is rejected.
+     */
+    static final ObjectInputFilter DESERIALIZATION_FILTER = ObjectInputFilter.Config.createFilter(String.join(";",
+            "maxdepth=" + ApplicationConfig.get("validator.snapshot.maxDepth", "200"),
+            "maxbytes=" + ApplicationConfig.get("validator.snapshot.maxBytes", String.valueOf(1024L * 1024 * 1024)),
+            "maxarray=" + ApplicationConfig.get("validator.snapshot.maxArray", "10000000"),
+            "org.hl7.fhir.r4.model.*",
+            "org.hl7.fhir.r4b.model.*",
+            "org.hl7.fhir.r5.model.*",
+            "org.hl7.fhir.utilities.xhtml.NodeType",
+            "org.hl7.fhir.utilities.xhtml.XhtmlNode",
+            "org.hl7.fhir.utilities.xhtml.XhtmlNode$Location",
+            "org.hl7.fhir.utilities.xhtml.XhtmlNodeList",
+            "java.lang.Object",
+            "java.lang.Enum",
+            "java.lang.Boolean",
+            "java.util.ArrayList",
+            "java.util.HashMap",
+            "java.util.Map$Entry",
+            "nzi.fhir.validator.core.enums.SupportedFhirVersion",
+            "nzi.fhir.validator.core.model.ValidatorSnapshot",
+            "nzi.fhir.validator.core.model.ValidatorSnapshot$IgPackageEntry",
+            "nzi.fhir.validator.core.npm.IgPackageConformanceBinary$Entry",
+            "!*"));
+
+    private ParsedResourceCodec() {
+    }
+
+    /**
+     * @return the binary format and HAPI FHIR version values written by {@link #encode(Serializable)} can be read back with
+     */
+    public static String formatStamp() {
+        return "format:" + FORMAT_VERSION + "|hapi:" + VersionUtil.getVersion();
+    }
+
+    /**
+     * Writes a serializable object graph as gzip compressed Java serialization stamped with the format and HAPI version.
+     */
+    public static byte[] encode(Serializable value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(baos))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(VersionUtil.getVersion());
+            out.writeObject(value);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Reads a value written by {@link #encode(Serializable)}.
+     * @throws IOException if the bytes were written by another format or HAPI version, or hold classes
+     * or a graph rejected by {@link #DESERIALIZATION_FILTER}
+     */
+    public static Object decode(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)))) {
+            in.setObjectInputFilter(DESERIALIZATION_FILTER);
+            int formatVersion = in.readInt();
+            String hapiVersion = in.readUTF();
+            if (formatVersion != FORMAT_VERSION || !VersionUtil.getVersion().equals(hapiVersion)) {
+                throw new IOException("Stale binary form: format %d, HAPI %s".formatted(formatVersion, hapiVersion));
+            }
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Incompatible binary form", e);
+        }
+    }
+}
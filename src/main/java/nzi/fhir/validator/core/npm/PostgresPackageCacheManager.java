@@ -1,32 +1,40 @@
 package nzi.fhir.validator.core.npm;
 
-import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.client.WebClient;
 import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlConnection;
 import io.vertx.sqlclient.Tuple;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+import nzi.fhir.validator.core.config.PackageServerConfig;
 import nzi.fhir.validator.core.model.IgPackageName;
 import nzi.fhir.validator.core.enums.FhirCoreIgPackageType;
+import nzi.fhir.validator.core.service.SingleFlight;
 import org.apache.commons.lang3.Validate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.utilities.npm.PackageServer;
-import io.vertx.core.buffer.Buffer;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.stream.Collectors;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEMA_NAME;
 
@@ -36,11 +44,63 @@ import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEM
 public class PostgresPackageCacheManager extends AsyncBasePackageCacheManager {
     private static final Logger logger = LogManager.getLogger(PostgresPackageCacheManager.class);
     private final Pool pgPool;
+    private final Vertx vertx;
+    private final NpmPackageMemoryCache memoryCache;
+    private final NpmPackageDiskCache diskCache;
+    private final IgPackageBlobStore blobStore;
+    private final IgPackageResourceIndex resourceIndex;
+    private final IgPackageConformanceBinary conformanceBinary;
+    private final IgPackageDependencyResolver dependencyResolver;
+    private final PackageServerConfig packageServerConfig;
+    // Concurrent loads and remote fetches of the same package share one in-flight future
+    private final SingleFlight<IgPackageName, NpmPackage> cacheLoads = new SingleFlight<>();
+    private final SingleFlight<IgPackageName, NpmPackage> remoteFetches = new SingleFlight<>();
 
     public PostgresPackageCacheManager(Vertx vertx, Pool pgPool) {
-        super(PackageServer.defaultServers(), WebClient.create(vertx));
+        this(vertx, pgPool, PackageServerConfig.defaults());
+    }
+
+    public PostgresPackageCacheManager(Vertx vertx, Pool pgPool, PackageServerConfig packageServerConfig) {
+        super(createPackageServers(packageServerConfig), new PackageServerClient(vertx, packageServerConfig));
+        this.vertx = vertx;
+        this.packageServerConfig = packageServerConfig;
+        this.dependencyResolver = new IgPackageDependencyResolver(this, pgPool, packageServerConfig.getMaxConcurrent());
         this.pgPool = pgPool;
+        this.blobStore = new IgPackageBlobStore(vertx, pgPool);
+        this.resourceIndex = new IgPackageResourceIndex(vertx, pgPool);
+        this.conformanceBinary = new IgPackageConformanceBinary(vertx, pgPool);
+        long maxBytes = Long.parseLong(ApplicationConfig.get("package.cache.memory.maxBytes", String.valueOf(256L * 1024 * 1024)));
+        this.memoryCache = new NpmPackageMemoryCache(maxBytes);
+        if (Boolean.parseBoolean(ApplicationConfig.get("package.cache.disk.enabled", "true"))) {
+            String defaultDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "fhir-validator", "packages").toString();
+            this.diskCache = new NpmPackageDiskCache(Paths.get(ApplicationConfig.get("package.cache.disk.directory", defaultDirectory)));
+            logger.info("Extracted IG packages are cached in {}", diskCache.getRootDirectory());
+        } else {
+            this.diskCache = null;
+        }
+    }
+
+    /**
+     * The local package directory, when configured, is asked before the public package servers, which
+     * are left out entirely in offline mode.
+     */
+    static List<PackageServer> createPackageServers(PackageServerConfig packageServerConfig) {
+        List<PackageServer> servers = new ArrayList<>();
+        if (packageServerConfig.getLocalDirectory() != null) {
+            LocalPackageServer localServer = new LocalPackageServer(Paths.get(packageServerConfig.getLocalDirectory()));
+            logger.info("IG packages are served from the local directory {}", localServer.getRootDirectory());
+            servers.add(localServer);
+        }
+        if (!packageServerConfig.isOffline()) {
+            servers.addAll(PackageServer.defaultServers());
+        } else if (servers.isEmpty()) {
+            logger.warn("Offline mode without a local package directory, IG packages can only be uploaded");
+        } else {
+            logger.info("Offline mode, public package servers are not used");
+        }
+        return servers;
     }
+
     public Future<NpmPackage> loadPackage(String idAndVer) {
         return loadPackage(idAndVer, true);
     }
@@ -61,7 +121,7 @@ public class PostgresPackageCacheManager extends AsyncBasePackageCacheManager {
         return loadPackage(igPackageName, cacheOnly, false);
     }
     public Future<NpmPackage> loadPackage(IgPackageName igPackageName, boolean cacheOnly, boolean loadDependencies) {
-        return loadPackageFromCache(igPackageName)
+        return cacheLoads.execute(igPackageName, () -> loadPackageFromCache(igPackageName))
             .compose(npmPackage -> {
                 if (npmPackage != null) {
                     logger.debug("Package {}#{} has been loaded from cache",
@@ -83,234 +143,326 @@ public class PostgresPackageCacheManager extends AsyncBasePackageCacheManager {
 
 
     protected Future<NpmPackage> loadPackageFromCache(IgPackageName igPackageName) {
-
-        String query = "SELECT content_raw FROM %s.fhir_implementation_guides WHERE ig_package_id = $1 AND ig_package_version = $2".formatted(DB_POSTGRES_SCHEMA_NAME);
+        NpmPackage cached = memoryCache.get(igPackageName);
+        if (cached != null) {
+            logger.debug("Package {}#{} served from memory", igPackageName.getName(), igPackageName.getVersion());
+            return Future.succeededFuture(cached);
+        }
+        // Only the hash travels over the network when the content is already held in memory or on disk
+        String query = "SELECT content_hash FROM %s.fhir_implementation_guides WHERE ig_package_id = $1 AND ig_package_version = $2".formatted(DB_POSTGRES_SCHEMA_NAME);
         return pgPool.preparedQuery(query)
                 .execute(Tuple.of(igPackageName.getName(), igPackageName.getVersion()))
-                .map(rows -> {
+                .compose(rows -> {
                     if (rows == null || rows.size() == 0) {
                         logger.debug("Package {}#{} not found in database", igPackageName.getName(), igPackageName.getVersion());
-                        return null;
+                        return Future.succeededFuture(null);
+                    }
+                    String contentHash = rows.iterator().next().getString(0);
+                    if (contentHash == null) {
+                        return loadPackageFromContentRaw(igPackageName);
+                    }
+                    NpmPackage sameContent = memoryCache.get(contentHash);
+                    if (sameContent != null) {
+                        logger.debug("Package {}#{} served from memory by content hash", igPackageName.getName(), igPackageName.getVersion());
+                        memoryCache.put(igPackageName, contentHash, sameContent);
+                        return Future.succeededFuture(sameContent);
                     }
-                    try {
-                        byte[] igBytes = rows.iterator().next().getBuffer(0).getBytes();
-                        return NpmPackage.fromPackage(new ByteArrayInputStream(igBytes));
-                    } catch (Exception e) {
-                        logger.error("Failed to parse package {}#{}: {}", igPackageName.getName(), igPackageName.getVersion(), e.getMessage(), e);
-                        throw new RuntimeException("Failed to load package " + igPackageName.getName() + "#" + igPackageName.getVersion() + " from cache", e);
+                    if (diskCache == null) {
+                        return loadPackageFromDatabase(igPackageName, contentHash);
                     }
+                    return vertx.executeBlocking(() -> diskCache.load(igPackageName, contentHash), false)
+                            .compose(npmPackage -> {
+                                if (npmPackage == null) {
+                                    return loadPackageFromDatabase(igPackageName, contentHash);
+                                }
+                                logger.debug("Package {}#{} served from disk", igPackageName.getName(), igPackageName.getVersion());
+                                memoryCache.put(igPackageName, contentHash, npmPackage);
+                                return Future.succeededFuture(npmPackage);
+                            });
                 });
     }
 
-    public Future<NpmPackage> addPackageToCache(InputStream inputStream) {
-    if (inputStream == null) {
-        return Future.failedFuture(new IllegalArgumentException("Input stream cannot be null"));
+    private Future<NpmPackage> loadPackageFromDatabase(IgPackageName igPackageName, String contentHash) {
+        return blobStore.readToFile(contentHash).compose(file -> {
+            if (file == null) {
+                return loadPackageFromContentRaw(igPackageName);
+            }
+            return openPackage(file, contentHash)
+                    .onSuccess(npmPackage -> memoryCache.put(igPackageName, contentHash, npmPackage))
+                    .eventually(() -> blobStore.deleteTempFile(file));
+        });
     }
 
-    try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-        inputStream.transferTo(baos);  // Java 9+ method, more efficient
-        return addPackageToCache(new ByteArrayInputStream(baos.toByteArray()));
-    } catch (IOException e) {
-        return Future.failedFuture(e);
-    } finally {
+    /**
+     * Loads a package stored as a single BYTEA, before chunked storage was introduced.
+     */
+    private Future<NpmPackage> loadPackageFromContentRaw(IgPackageName igPackageName) {
+        String query = "SELECT content_raw FROM %s.fhir_implementation_guides WHERE ig_package_id = $1 AND ig_package_version = $2 AND content_raw IS NOT NULL".formatted(DB_POSTGRES_SCHEMA_NAME);
+        return pgPool.preparedQuery(query)
+                .execute(Tuple.of(igPackageName.getName(), igPackageName.getVersion()))
+                .compose(rows -> {
+                    if (rows == null || rows.size() == 0) {
+                        logger.debug("Package {}#{} not found in database", igPackageName.getName(), igPackageName.getVersion());
+                        return Future.succeededFuture(null);
+                    }
+                    byte[] igBytes = rows.iterator().next().getBuffer(0).getBytes();
+                    return vertx.executeBlocking(() -> {
+                        try {
+                            NpmPackage npmPackage = null;
+                            String contentHash = computeContentHash(igBytes);
+                            if (diskCache != null) {
+                                try {
+                                    npmPackage = diskCache.store(igPackageName, contentHash, new ByteArrayInputStream(igBytes));
+                                } catch (IOException e) {
+                                    logger.warn("Unable to extract package {}#{} to disk: {}", igPackageName.getName(), igPackageName.getVersion(), e.getMessage());
+                                }
+                            }
+                            if (npmPackage == null) {
+                                npmPackage = NpmPackage.fromPackage(new ByteArrayInputStream(igBytes));
+                            }
+                            memoryCache.put(igPackageName, contentHash, npmPackage);
+                            return npmPackage;
+                        } catch (Exception e) {
+                            logger.error("Failed to parse package {}#{}: {}", igPackageName.getName(), igPackageName.getVersion(), e.getMessage(), e);
+                            throw new RuntimeException("Failed to load package " + igPackageName.getName() + "#" + igPackageName.getVersion() + " from cache", e);
+                        }
+                    }, false);
+                });
+    }
+
+    /**
+     * Opens a package tarball, extracting it into the disk tier when enabled. Without the disk tier the
+     * package is parsed into memory.
+     */
+    private Future<NpmPackage> openPackage(Path tgzFile, String contentHash) {
+        return vertx.executeBlocking(() -> {
+            if (diskCache != null) {
+                try {
+                    return diskCache.store(tgzFile, contentHash);
+                } catch (IOException e) {
+                    logger.warn("Unable to extract package {} to disk: {}", contentHash, e.getMessage());
+                }
+            }
+            try (InputStream inputStream = Files.newInputStream(tgzFile)) {
+                return NpmPackage.fromPackage(inputStream);
+            }
+        }, false);
+    }
+
+    /**
+     * @return hex encoded SHA-256 of a package tarball
+     */
+    public static String computeContentHash(byte[] content) {
         try {
-            inputStream.close();
-        } catch (IOException e) {
-            logger.warn("Failed to close input stream: {}", e.getMessage());
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
         }
     }
-}
-
-protected Future<NpmPackage> addPackageToCache(ByteArrayInputStream stream) {
-    if (stream == null) {
-        return Future.failedFuture(new IllegalArgumentException("Stream cannot be null"));
-    }
-
-    try {
-        // Read the stream only once
-        byte[] packageBytes = stream.readAllBytes();  // Java 9+ method
-        
-        NpmPackage npmPackage = NpmPackage.fromPackage(new ByteArrayInputStream(packageBytes));
-        JsonObject packageMeta = createNpmPackageMeta(npmPackage);
-        String[] dependenciesArray = npmPackage.dependencies().toArray(String[]::new);
-
-        String sql = """
-            INSERT INTO %s.fhir_implementation_guides 
-                (ig_package_id, ig_package_version, ig_package_meta, content_raw, dependencies)
-            VALUES ($1, $2, $3, $4, $5)
-            ON CONFLICT (ig_package_id, ig_package_version) 
-            DO UPDATE SET
-                ig_package_meta = $3,
-                content_raw = $4,
-                dependencies = $5
-            """.formatted(DB_POSTGRES_SCHEMA_NAME);
-
-        return pgPool.withTransaction(client -> 
-            client.preparedQuery(sql)
-                .execute(Tuple.of(
-                    npmPackage.name(),
-                    npmPackage.version(),
-                    packageMeta.encode(),
-                    packageBytes,
-                    dependenciesArray
+
+    public Future<NpmPackage> addPackageToCache(InputStream inputStream) {
+        if (inputStream == null) {
+            return Future.failedFuture(new IllegalArgumentException("Input stream cannot be null"));
+        }
+        return blobStore.spool(inputStream)
+                .compose(spooled -> addPackageToCache(spooled.getKey(), spooled.getValue())
+                        .eventually(() -> blobStore.deleteTempFile(spooled.getKey())));
+    }
+
+    /**
+     * Stores a package tarball from a local file, hashing it first. The file is left in place.
+     */
+    public Future<NpmPackage> addPackageToCache(Path tgzFile) {
+        return blobStore.hash(tgzFile).compose(contentHash -> addPackageToCache(tgzFile, contentHash));
+    }
+
+    /**
+     * Stores a package tarball from a local file. The blob is content addressed: when byte-identical
+     * content is already stored only the package metadata is written, and a package whose content did not
+     * change keeps its parsed and extracted forms. The file is left in place.
+     *
+     * @param tgzFile the package tarball
+     * @param contentHash hex encoded SHA-256 of the file
+     */
+    @Override
+    public Future<NpmPackage> addPackageToCache(Path tgzFile, String contentHash) {
+        NpmPackage cached = memoryCache.get(contentHash);
+        Future<NpmPackage> opened = cached != null ? Future.succeededFuture(cached) : openPackage(tgzFile, contentHash);
+        return opened.compose(npmPackage -> {
+            IgPackageName igPackageName = new IgPackageName(npmPackage.name(), npmPackage.version());
+            JsonObject packageMeta = createNpmPackageMeta(npmPackage);
+            String[] dependenciesArray = npmPackage.dependencies().toArray(String[]::new);
+            String previousHashSql = "SELECT content_hash FROM %s.fhir_implementation_guides WHERE ig_package_id = $1 AND ig_package_version = $2 FOR UPDATE".formatted(DB_POSTGRES_SCHEMA_NAME);
+            String metaSql = """
+                UPDATE %s.fhir_implementation_guides
+                SET ig_package_meta = $3, dependencies = $4, modified_at = NOW()
+                WHERE ig_package_id = $1 AND ig_package_version = $2
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+            String sql = """
+                INSERT INTO %s.fhir_implementation_guides
+                    (ig_package_id, ig_package_version, ig_package_meta, content_raw, dependencies, content_hash, content_size)
+                VALUES ($1, $2, $3, NULL, $4, $5, $6)
+                ON CONFLICT (ig_package_id, ig_package_version)
+                DO UPDATE SET
+                    ig_package_meta = $3,
+                    content_raw = NULL,
+                    dependencies = $4,
+                    content_hash = $5,
+                    content_size = $6,
+                    conformance_binary = NULL,
+                    conformance_binary_format = NULL,
+                    modified_at = NOW()
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+
+            return vertx.executeBlocking(() -> Files.size(tgzFile), false)
+                .compose(contentSize -> pgPool.withTransaction(client ->
+                    client.preparedQuery(previousHashSql)
+                        .execute(Tuple.of(npmPackage.name(), npmPackage.version()))
+                        .compose(rows -> {
+                            String previousHash = rows.size() > 0 ? rows.iterator().next().getString(0) : null;
+                            if (contentHash.equals(previousHash)) {
+                                logger.debug("Package {}#{} content unchanged, updating metadata only", npmPackage.name(), npmPackage.version());
+                                return client.preparedQuery(metaSql)
+                                    .execute(Tuple.of(npmPackage.name(), npmPackage.version(), packageMeta.encode(), dependenciesArray))
+                                    .compose(v -> resourceIndex.isIndexed(client, igPackageName))
+                                    .compose(indexed -> indexed ? Future.succeededFuture() : resourceIndex.write(client, igPackageName, npmPackage))
+                                    // Missing or stale after a HAPI FHIR upgrade
+                                    .compose(v -> IgPackageConformanceBinary.isUsable() ? conformanceBinary.isCurrent(client, igPackageName) : Future.succeededFuture(true))
+                                    .compose(current -> current ? Future.succeededFuture() : writeConformanceBinary(client, igPackageName, npmPackage))
+                                    .map(v -> previousHash);
+                            }
+                            return blobStore.write(client, contentHash, tgzFile)
+                                .compose(v -> client.preparedQuery(sql).execute(Tuple.of(
+                                    npmPackage.name(),
+                                    npmPackage.version(),
+                                    packageMeta.encode(),
+                                    dependenciesArray,
+                                    contentHash,
+                                    contentSize
+                                )))
+                                .compose(v -> resourceIndex.write(client, igPackageName, npmPackage))
+                                .compose(v -> writeConformanceBinary(client, igPackageName, npmPackage))
+                                .map(v -> previousHash);
+                        })
                 ))
-                .map(v -> {
+                .compose(previousHash -> {
                     logger.info("Cached package {}#{}", npmPackage.name(), npmPackage.version());
-                    return npmPackage;
+                    memoryCache.put(igPackageName, contentHash, npmPackage);
+                    if (previousHash != null && !previousHash.equals(contentHash)) {
+                        return blobStore.deleteIfUnreferenced(previousHash).otherwiseEmpty().map(v -> npmPackage);
+                    }
+                    return Future.succeededFuture(npmPackage);
                 })
-                .onFailure(e -> 
-                    logger.error("Failed to cache package {}#{}: {}", 
-                        npmPackage.name(), 
-                        npmPackage.version(), 
-                        e.getMessage(), 
+                .onFailure(e ->
+                    logger.error("Failed to cache package {}#{}: {}",
+                        npmPackage.name(),
+                        npmPackage.version(),
+                        e.getMessage(),
                         e)
-                )
-        );
-    } catch (Exception e) {
-        return Future.failedFuture(e);
+                );
+        });
+    }
+
+    /**
+     * Only generated when validators can read it. Packages whose resources cannot be parsed are still
+     * registered, validators parse them from the tarball.
+     */
+    private Future<Boolean> writeConformanceBinary(SqlConnection connection, IgPackageName igPackageName, NpmPackage npmPackage) {
+        if (!IgPackageConformanceBinary.isUsable()) {
+            return Future.succeededFuture(false);
+        }
+        return conformanceBinary.write(connection, igPackageName, npmPackage)
+                .recover(e -> {
+                    logger.warn("No binary form for package {}#{}: {}", igPackageName.getName(), igPackageName.getVersion(), e.getMessage());
+                    return Future.succeededFuture(false);
+                });
+    }
+
+    /**
+     * Imports every package tarball below a directory, e.g. a local package directory prepared for a new
+     * environment. Packages are stored in parallel, at most {@code package.import.concurrency} at a time,
+     * each in its own transaction, so one broken tarball does not abort the others. The dependency graphs
+     * are resolved once all packages are stored, so dependencies found in the directory are not fetched.
+     *
+     * @return the imported packages by file and the failures by file
+     */
+    public Future<JsonObject> importPackages(Path directory) {
+        long startedAt = System.currentTimeMillis();
+        int concurrency = Math.max(1, Integer.parseInt(ApplicationConfig.get("package.import.concurrency", "4")));
+        Map<String, String> imported = new ConcurrentSkipListMap<>();
+        Map<String, String> failed = new ConcurrentSkipListMap<>();
+        Map<IgPackageName, NpmPackage> packages = new ConcurrentHashMap<>();
+        return vertx.executeBlocking(() -> LocalPackageServer.listPackageFiles(directory), false)
+            .compose(files -> {
+                logger.info("Importing {} IG packages from {}", files.size(), directory);
+                return IgPackageDependencyResolver.runBounded(files, concurrency, file -> addPackageToCache(file)
+                    .map(npmPackage -> {
+                        imported.put(file.toString(), npmPackage.name() + "#" + npmPackage.version());
+                        packages.put(new IgPackageName(npmPackage.name(), npmPackage.version()), npmPackage);
+                        return null;
+                    })
+                    .otherwise(e -> {
+                        logger.warn("Failed to import {}: {}", file, e.getMessage());
+                        failed.put(file.toString(), String.valueOf(e.getMessage()));
+                        return null;
+                    }));
+            })
+            .compose(v -> IgPackageDependencyResolver.runBounded(new ArrayList<>(packages.values()), concurrency,
+                npmPackage -> resolveDependencies(npmPackage).otherwiseEmpty()))
+            .map(v -> {
+                long elapsed = System.currentTimeMillis() - startedAt;
+                logger.info("Imported {} IG packages from {} in {} ms ({} failed)", imported.size(), directory, elapsed, failed.size());
+                return new JsonObject()
+                    .put("directory", directory.toString())
+                    .put("imported", new JsonObject(new LinkedHashMap<>(imported)))
+                    .put("failed", new JsonObject(new LinkedHashMap<>(failed)))
+                    .put("elapsedMillis", elapsed);
+            });
     }
-}
 
     private Future<NpmPackage> fetchFromPackageServers(IgPackageName igPackageName ) {
         return fetchFromPackageServers(igPackageName, false);
     }
     private Future<NpmPackage> fetchFromPackageServers(IgPackageName igPackageName, boolean shouldResolveDependencies) {
         return fetchPackage(igPackageName).compose(npmPackage -> {
-            if (npmPackage == null) {
-                return Future.succeededFuture(null);  // Changed from return null to proper Future
-            }
-
-            if (!shouldResolveDependencies) {
+            if (npmPackage == null || !shouldResolveDependencies) {
                 return Future.succeededFuture(npmPackage);
             }
-
-            List<Future> dependencyFutures = new ArrayList<>();
-            List<Future<Boolean>> existChecks = new ArrayList<>();
-
-            for (String dependency : npmPackage.dependencies()) {
-                IgPackageName dependencyIgPackageName = IgPackageName.fromIdAndVersion(dependency);
-                if (FhirCoreIgPackageType.getNameList().contains(dependencyIgPackageName.getName())) {
-                    continue;
-                }
-
-                Future<Boolean> existCheck = isPackageExists(dependencyIgPackageName)
-                    .compose(exists -> {
-                        if (!exists) {
-                            Future<NpmPackage> fetchFuture = fetchFromPackageServers(dependencyIgPackageName, true);
-                            dependencyFutures.add(fetchFuture);
-                        }
-                        return Future.succeededFuture(exists);
-                    });
-                existChecks.add(existCheck);
-            }
-
-            // First, wait for all exist checks to complete
-            return CompositeFuture.all(new ArrayList<>(existChecks))
-                .compose(existResults -> {
-                    if (dependencyFutures.isEmpty()) {
-                        return Future.succeededFuture(npmPackage);
-                    }
-                    // Then wait for all dependency fetches to complete
-                    return CompositeFuture.all(dependencyFutures)
-                        .map(v -> npmPackage)
-                        .otherwise(err -> {
-                            logger.error("Failed to fetch dependencies for {}: {}",
-                                igPackageName.getName(),
-                                err.getMessage());
-                            return npmPackage;
-                        });
+            return resolveDependencies(npmPackage)
+                .map(graph -> npmPackage)
+                .otherwise(err -> {
+                    logger.error("Failed to fetch dependencies for {}: {}",
+                        igPackageName.getName(),
+                        err.getMessage());
+                    return npmPackage;
                 });
         });
     }
 
-    private Future<NpmPackage> fetchPackage(IgPackageName igPackageName) {
-        // Add tracking of successful fetch
-        AtomicBoolean hasSucceeded = new AtomicBoolean(false);
-        
-        List<Future<NpmPackage>> futures = getPackageServers().stream()
-            .map(server -> {
-                String packageUrl = Utilities.pathURL(server.getUrl(),
-                    igPackageName.getName(),
-                    igPackageName.getVersion());
-
-                return webClient.getAbs(packageUrl)
-                    .send()
-                    .compose(response -> {
-                        if (response.statusCode() != 200) {
-                            // Only log as error if we haven't succeeded yet
-                            if (!hasSucceeded.get()) {
-                                logger.warn("Failed to fetch from {}: HTTP {}", 
-                                    server.getUrl(), response.statusCode());
-                            }
-                            return Future.succeededFuture(null);
-                        }
-                        hasSucceeded.set(true);
+    /**
+     * Fetches the missing transitive dependencies of a package and records its dependency graph.
+     */
+    public Future<IgPackageDependencyResolver.DependencyGraph> resolveDependencies(NpmPackage npmPackage) {
+        return dependencyResolver.resolve(npmPackage);
+    }
 
-                        try {
-                            Buffer body = response.body();
-                            if (body == null || body.length() == 0) {
-                                logger.warn("Empty response body from {}", packageUrl);
-                                return Future.succeededFuture(null);
-                            }
-                            logger.debug("Fetched package from {}: {}", packageUrl, body.length());
-                            ByteArrayInputStream inputStream = new ByteArrayInputStream(body.getBytes());
-                            return addPackageToCache(inputStream)
-                                .onFailure(err -> {
-                                    logger.error("Failed to cache package from {}: {}",
-                                        packageUrl,
-                                        err.getMessage());
-                                });
-                        } catch (Exception e) {
-                            logger.error("Error processing response from {}: {}",
-                                packageUrl,
-                                e.getMessage());
-                            return Future.failedFuture(e);
-                        }
-                    })
-                    .onFailure(err -> {
-                        // Only log as an error if we haven't succeeded yet
-                        if (!hasSucceeded.get()) {
-                            logger.error("Failed to fetch package: {}", err.getMessage());
-                        } else {
-                            logger.debug("Additional fetch attempt failed (already succeeded from another server): {}",
-                                err.getMessage());
-                        }
-                    });
-            })
-            .collect(Collectors.toList());
+    Future<NpmPackage> fetchPackage(IgPackageName igPackageName) {
+        return remoteFetches.execute(igPackageName, () -> fetchPackageFromServers(igPackageName));
+    }
 
-        if (futures.isEmpty()) {
+    private Future<NpmPackage> fetchPackageFromServers(IgPackageName igPackageName) {
+        if (getPackageServers().isEmpty()) {
             logger.warn("No package servers configured for {}#{}",
                 igPackageName.getName(),
                 igPackageName.getVersion());
             return Future.succeededFuture(null);
         }
-
-        @SuppressWarnings("rawtypes")
-        List<Future> rawFutures = new ArrayList<>(futures);
-        return CompositeFuture.any(rawFutures)
-            .map(composite -> {
-                for (int i = 0; i < futures.size(); i++) {
-                    try {
-                        NpmPackage npm = composite.resultAt(i);
-                        if (npm != null) {
-                            logger.debug("Successfully fetched package {}#{} from server #{}", 
-                                igPackageName.getName(), 
-                                igPackageName.getVersion(), 
-                                i + 1);
-                            return npm;
-                        }
-                    } catch (Exception e) {
-                        logger.debug("Failed to get result from server #{}: {}", 
-                            i + 1, 
-                            e.getMessage());
-                    }
-                }
-                logger.warn("Failed to fetch package {}#{} from any server", 
-                    igPackageName.getName(), 
-                    igPackageName.getVersion());
-                return null;
-            });
+        // Only the winning download is written to the cache
+        return fetchPackage(igPackageName.getName(), igPackageName.getVersion())
+            .onFailure(err -> logger.error("Failed to cache package {}#{}: {}",
+                igPackageName.getName(),
+                igPackageName.getVersion(),
+                err.getMessage()));
     }
 
     public static Future<String> getLatestVersionFromCache(Pool pgPool, String lgPackageId) {
@@ -329,6 +481,16 @@ protected Future<NpmPackage> addPackageToCache(ByteArrayInputStream stream) {
     public Future<Void> clear() {
         return pgPool.preparedQuery("DELETE FROM %s.fhir_implementation_guides".formatted(DB_POSTGRES_SCHEMA_NAME))
                 .execute()
+                .compose(rows -> blobStore.deleteAll())
+                .onComplete(ar -> {
+                    memoryCache.invalidateAll();
+                    if (diskCache != null) {
+                        vertx.executeBlocking(() -> {
+                            diskCache.clear();
+                            return null;
+                        }, false);
+                    }
+                })
                 .mapEmpty();
     }
     public Future<Boolean> isPackageExists(IgPackageName igPackageName) {
@@ -340,11 +502,60 @@ protected Future<NpmPackage> addPackageToCache(ByteArrayInputStream stream) {
     }
 
     public Future<Void> removePackage(String id, String version) {
-        return pgPool.preparedQuery("DELETE FROM %s.fhir_implementation_guides WHERE ig_package_id = $1 AND ig_package_version = $2".formatted(DB_POSTGRES_SCHEMA_NAME))
+        return pgPool.preparedQuery("DELETE FROM %s.fhir_implementation_guides WHERE ig_package_id = $1 AND ig_package_version = $2 RETURNING content_hash".formatted(DB_POSTGRES_SCHEMA_NAME))
                 .execute(Tuple.of(id, version))
+                .compose(rows -> {
+                    String contentHash = rows.size() > 0 ? rows.iterator().next().getString(0) : null;
+                    return contentHash != null ? blobStore.deleteIfUnreferenced(contentHash) : Future.<Void>succeededFuture();
+                })
+                .onComplete(ar -> {
+                    IgPackageName igPackageName = new IgPackageName(id, version);
+                    if (diskCache != null) {
+                        // The parsed package points to the extracted files deleted below
+                        memoryCache.invalidateContent(igPackageName);
+                        vertx.executeBlocking(() -> {
+                            diskCache.remove(igPackageName);
+                            return null;
+                        }, false);
+                    } else {
+                        memoryCache.invalidate(igPackageName);
+                    }
+                })
                 .mapEmpty();
     }
 
+    /**
+     * Drops a parsed package from memory, e.g. after its row has been written outside this manager.
+     */
+    public void invalidateMemoryCache(IgPackageName igPackageName) {
+        memoryCache.invalidate(igPackageName);
+        // Extracted contents are keyed by hash, so stale ones are never served and get replaced on next load.
+    }
+
+    /**
+     * Loads a package without the parsed copy held in memory, e.g. once its extracted files were deleted.
+     */
+    public Future<NpmPackage> reloadPackage(IgPackageName igPackageName) {
+        memoryCache.invalidateContent(igPackageName);
+        return loadPackage(igPackageName, true);
+    }
+
+    public NpmPackageMemoryCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    public PackageServerConfig getPackageServerConfig() {
+        return packageServerConfig;
+    }
+
+    public IgPackageResourceIndex getResourceIndex() {
+        return resourceIndex;
+    }
+
+    public IgPackageConformanceBinary getConformanceBinary() {
+        return conformanceBinary;
+    }
+
     public static JsonObject createNpmPackageMeta(NpmPackage npmPackage) {
         JsonObject meta = new JsonObject()
                 .put("version", npmPackage.version())
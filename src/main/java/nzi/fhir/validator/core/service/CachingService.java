@@ -1,35 +1,209 @@
 package nzi.fhir.validator.core.service;
 
-import ca.uhn.fhir.sl.cache.Cache;
-import ca.uhn.fhir.sl.cache.caffeine.CacheProvider;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-public class CachingService {
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
+/**
+ * Size weighted cache with a separate, shorter expiry for negative entries, i.e. keys known to have
+ * no value, and refresh-ahead of hot keys.
+ * <p>
+ * Values are weighed by the bytes given when they are put, the total weight is kept below
+ * {@code <name>.cache.maxBytes}. Values expire {@code <name>.cache.expireMinutes} after they are
+ * written, negative entries {@code <name>.cache.negativeExpireSeconds} after. A value read more than
+ * {@code <name>.cache.refreshMinutes} after it was written is still returned, while it is reloaded in
+ * the background. Named caches are listed by {@link #statsJson()}.
+ *
+ * @author Md Nazrul Islam
+ */
+public class CachingService {
+    private static final Logger logger = LogManager.getLogger(CachingService.class);
     private static final long DEFAULT_CACHE_KEY_EXPIRATION_TIME_MS = 1000*60*60*24; // 24 hours
+    private static final long DEFAULT_NEGATIVE_EXPIRATION_TIME_MS = 1000*60*5; // 5 minutes
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    // Weight of values put without a size
+    private static final int DEFAULT_ENTRY_BYTES = 1024;
+    /**
+     * Returned by {@link #get(String)} for keys known to have no value.
+     */
+    public static final Object MISSING = new Object();
+    private static final Map<String, CachingService> CACHES = new ConcurrentHashMap<>();
+
+    private final Cache<String, Entry> cacheDelegator;
+    private final Ticker ticker;
+    private final long maxBytes;
+    private final long refreshNanos;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
 
-    private final Cache cacheDelegator;
+    CachingService(long expirationTimeMs, long negativeExpirationTimeMs, long maxBytes, long refreshTimeMs, Ticker ticker) {
+        this.ticker = ticker;
+        this.maxBytes = maxBytes;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshTimeMs);
+        long expirationNanos = TimeUnit.MILLISECONDS.toNanos(expirationTimeMs);
+        long negativeExpirationNanos = TimeUnit.MILLISECONDS.toNanos(negativeExpirationTimeMs);
+        this.cacheDelegator = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> entry.weight())
+                .expireAfter(new Expiry<String, Entry>() {
+                    @Override
+                    public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                        return entry.value() == MISSING ? negativeExpirationNanos : expirationNanos;
+                    }
 
-    private CachingService(long expirationTimeMs) {
-        this.cacheDelegator = new CacheProvider<String, Object>().create(expirationTimeMs);
+                    @Override
+                    public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, entry, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .ticker(ticker)
+                .recordStats()
+                .build();
     }
 
     public static CachingService create(){
         return create(DEFAULT_CACHE_KEY_EXPIRATION_TIME_MS);
     }
     public static CachingService create(long expirationTimeMs){
-        return new CachingService(expirationTimeMs);
+        return new CachingService(expirationTimeMs, Math.min(expirationTimeMs, DEFAULT_NEGATIVE_EXPIRATION_TIME_MS),
+                DEFAULT_MAX_BYTES, 0, Ticker.systemTicker());
+    }
+
+    /**
+     * @param name prefix of the configuration keys, e.g. {@code profiles} for {@code profiles.cache.maxBytes}
+     * @return the cache of the name, shared by every caller
+     */
+    public static CachingService create(String name) {
+        return CACHES.computeIfAbsent(name, key -> new CachingService(
+                TimeUnit.MINUTES.toMillis(Long.parseLong(ApplicationConfig.get(name + ".cache.expireMinutes", "1440"))),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(ApplicationConfig.get(name + ".cache.negativeExpireSeconds", "300"))),
+                Long.parseLong(ApplicationConfig.get(name + ".cache.maxBytes", String.valueOf(DEFAULT_MAX_BYTES))),
+                TimeUnit.MINUTES.toMillis(Long.parseLong(ApplicationConfig.get(name + ".cache.refreshMinutes", "60"))),
+                Ticker.systemTicker()));
     }
+
     public void put(String key, Object value){
-        cacheDelegator.put(key, value);
+        put(key, value, DEFAULT_ENTRY_BYTES);
+    }
+
+    /**
+     * @param weightBytes estimated retained heap of the value
+     */
+    public void put(String key, Object value, long weightBytes){
+        cacheDelegator.put(key, new Entry(value, (int) Math.max(1, Math.min(Integer.MAX_VALUE, weightBytes)), ticker.read()));
     }
+
+    /**
+     * Remembers that the key has no value, for a shorter time than values.
+     */
+    public void putMissing(String key){
+        cacheDelegator.put(key, new Entry(MISSING, 1, ticker.read()));
+    }
+
+    /**
+     * @return the value, {@link #MISSING} for keys known to have no value, null if not cached
+     */
     public Object get(String key){
-        return cacheDelegator.getIfPresent(key);
+        Entry entry = cacheDelegator.getIfPresent(key);
+        return entry != null ? entry.value() : null;
     }
-    public Cache getCacheDelegator(){
-        return cacheDelegator;
+
+    /**
+     * Like {@link #get(String)}, but reloads a value which is due for refresh in the background. The
+     * reloaded value, null for a missing one, replaces the entry unless it was removed meanwhile.
+     */
+    public Object get(String key, Supplier<Future<?>> reloader){
+        Entry entry = cacheDelegator.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (refreshNanos > 0 && entry.value() != MISSING && ticker.read() - entry.writtenAt() >= refreshNanos
+                && refreshing.add(key)) {
+            refresh(key, entry, reloader);
+        }
+        return entry.value();
+    }
+
+    private void refresh(String key, Entry entry, Supplier<Future<?>> reloader) {
+        Future<?> reload;
+        try {
+            reload = reloader.get();
+        } catch (RuntimeException e) {
+            reload = Future.failedFuture(e);
+        }
+        reload.onComplete(ar -> {
+            try {
+                if (ar.failed()) {
+                    refreshFailures.increment();
+                    logger.warn("Failed to refresh cache entry {}: {}", key, ar.cause().getMessage());
+                    return;
+                }
+                refreshes.increment();
+                Entry refreshed = ar.result() != null
+                        ? new Entry(ar.result(), entry.weight(), ticker.read())
+                        : new Entry(MISSING, 1, ticker.read());
+                // Not if the entry was removed or replaced meanwhile, e.g. by a registration
+                cacheDelegator.asMap().replace(key, entry, refreshed);
+            } finally {
+                refreshing.remove(key);
+            }
+        });
     }
+
     public void remove(String key){
         cacheDelegator.invalidate(key);
     }
 
+    /**
+     * Runs pending evictions and expirations.
+     */
+    void cleanUp() {
+        cacheDelegator.cleanUp();
+    }
+
+    public JsonObject stats() {
+        CacheStats stats = cacheDelegator.stats();
+        long weight = cacheDelegator.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+        return new JsonObject()
+                .put("entries", cacheDelegator.estimatedSize())
+                .put("weightBytes", weight)
+                .put("maxBytes", maxBytes)
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("evictions", stats.evictionCount())
+                .put("refreshes", refreshes.sum())
+                .put("refreshFailures", refreshFailures.sum());
+    }
+
+    /**
+     * @return the statistics of every named cache, by name
+     */
+    public static JsonObject statsJson() {
+        JsonObject json = new JsonObject();
+        CACHES.forEach((name, cache) -> json.put(name, cache.stats()));
+        return json;
+    }
+
+    private record Entry(Object value, int weight, long writtenAt) {
+    }
 }
@@ -0,0 +1,108 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.ToIntFunction;
+
+/**
+ * Knows which supports of a validation chain own which canonical URLs, from exact URLs and URL
+ * prefixes gathered when the supports are loaded. A lookup is only sent to the owners of its URL,
+ * in chain order, instead of to every support.
+ *
+ * @author Md Nazrul Islam
+ */
+public class CanonicalRoutingTable {
+    private final Map<String, List<IValidationSupport>> exactOwners = new ConcurrentHashMap<>();
+    private final List<Prefix> prefixes = new CopyOnWriteArrayList<>();
+    // Position of a support in the chain, owners are returned in that order
+    private final ToIntFunction<IValidationSupport> chainPosition;
+
+    public CanonicalRoutingTable(ToIntFunction<IValidationSupport> chainPosition) {
+        this.chainPosition = chainPosition;
+    }
+
+    public void addExact(IValidationSupport owner, String url) {
+        if (url == null || url.isEmpty()) {
+            return;
+        }
+        exactOwners.compute(unversioned(url), (key, owners) -> {
+            List<IValidationSupport> updated = owners != null ? new ArrayList<>(owners) : new ArrayList<>();
+            if (!updated.contains(owner)) {
+                updated.add(owner);
+                updated.sort(Comparator.comparingInt(chainPosition));
+            }
+            return List.copyOf(updated);
+        });
+    }
+
+    public void addExact(IValidationSupport owner, Collection<String> urls) {
+        for (String url : urls) {
+            addExact(owner, url);
+        }
+    }
+
+    /**
+     * @param prefix namespace of the canonical URLs owned by the support, e.g. {@code http://hl7.org/fhir/}
+     */
+    public void addPrefix(IValidationSupport owner, String prefix) {
+        prefixes.add(new Prefix(prefix, owner));
+    }
+
+    /**
+     * Forgets the exact URLs of a support, before they are gathered again.
+     */
+    public void removeExact(IValidationSupport owner) {
+        exactOwners.replaceAll((url, owners) -> owners.contains(owner)
+                ? owners.stream().filter(candidate -> candidate != owner).toList()
+                : owners);
+        exactOwners.values().removeIf(List::isEmpty);
+    }
+
+    /**
+     * @param url canonical URL, with or without version
+     * @return the supports owning the URL in chain order, empty if no support is known to own it
+     */
+    public List<IValidationSupport> route(String url) {
+        String canonical = unversioned(url);
+        List<IValidationSupport> exact = exactOwners.get(canonical);
+        List<IValidationSupport> owners = null;
+        for (Prefix prefix : prefixes) {
+            if (canonical.startsWith(prefix.prefix())) {
+                if (owners == null) {
+                    owners = exact != null ? new ArrayList<>(exact) : new ArrayList<>();
+                }
+                if (!owners.contains(prefix.owner())) {
+                    owners.add(prefix.owner());
+                }
+            }
+        }
+        if (owners == null) {
+            return exact != null ? exact : List.of();
+        }
+        owners.sort(Comparator.comparingInt(chainPosition));
+        return owners;
+    }
+
+    public int getExactCount() {
+        return exactOwners.size();
+    }
+
+    public int getPrefixCount() {
+        return prefixes.size();
+    }
+
+    private static String unversioned(String url) {
+        int versionSeparator = url.indexOf('|');
+        return versionSeparator >= 0 ? url.substring(0, versionSeparator) : url;
+    }
+
+    private record Prefix(String prefix, IValidationSupport owner) {
+    }
+}
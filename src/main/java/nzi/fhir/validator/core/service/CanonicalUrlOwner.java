@@ -0,0 +1,17 @@
+package nzi.fhir.validator.core.service;
+
+import java.util.Collection;
+
+/**
+ * A validation support which can tell the canonical URLs of the resources it provides, so a
+ * {@link CanonicalRoutingTable} routes their lookups to it.
+ *
+ * @author Md Nazrul Islam
+ */
+public interface CanonicalUrlOwner {
+
+    /**
+     * @return the unversioned canonical URLs of the resources provided, loaded or not
+     */
+    Collection<String> getCanonicalUrls();
+}
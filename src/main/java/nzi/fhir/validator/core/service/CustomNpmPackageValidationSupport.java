@@ -1,42 +1,98 @@
 package nzi.fhir.validator.core.service;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.parser.IParser;
 import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
 import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import nzi.fhir.validator.core.config.ApplicationConfig;
 import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgResourceLoadPolicy;
 import nzi.fhir.validator.core.model.ValidatorIdentity;
+import nzi.fhir.validator.core.model.ValidatorSnapshot;
 import nzi.fhir.validator.core.enums.FhirCoreIgPackageType;
 import nzi.fhir.validator.core.enums.SupportedFhirVersion;
+import nzi.fhir.validator.core.npm.IgPackageConformanceBinary;
+import nzi.fhir.validator.core.npm.NpmPackageDiskCache;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hl7.fhir.common.hapi.validation.support.NpmPackageValidationSupport;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * Custom NpmPackageValidationSupport to load IG profiles from IgService using a protected loadResourcesFromPackage.
  * @author Md Nazrul Islam
  */
-public class CustomNpmPackageValidationSupport extends NpmPackageValidationSupport {
+public class CustomNpmPackageValidationSupport extends NpmPackageValidationSupport implements CanonicalUrlOwner {
     private static final Logger logger = LogManager.getLogger(CustomNpmPackageValidationSupport.class);
-    private static final HashMap<ValidatorIdentity, CustomNpmPackageValidationSupport> NPM_PACKAGE_VALIDATION_SUPPORT_CACHE = new HashMap<>();
+    private static final Map<ValidatorIdentity, CustomNpmPackageValidationSupport> NPM_PACKAGE_VALIDATION_SUPPORT_CACHE = new ConcurrentHashMap<>();
+    // Shared by all supports, sized by validator.parser.parallelism
+    private static final ForkJoinPool PARSER_POOL = createParserPool();
 
     private final IgPackageService igPackageService;
-    private final ArrayList<IGPackageIdentity> includedIgPackages;
+    // Written under the lock on igPackageHeapEstimates, read without a lock by validations and parser pool workers
+    private final CopyOnWriteArrayList<IGPackageIdentity> includedIgPackages;
+    private final ValidatorIdentity validatorIdentity;
+    // Estimated retained heap (bytes) of the parsed resources per IG package
+    private final Map<IGPackageIdentity, Long> igPackageHeapEstimates;
+    // Parsed resources per IG package, kept as references for snapshots
+    private final Map<IGPackageIdentity, List<IBaseResource>> igPackageResources;
+    // Resources of replaced IG versions are still held by the support
+    private long supersededHeapEstimate;
+    // Canonical URL, with and without version, of indexed, not yet parsed resources to the file providing them
+    private final Map<String, LazyResource> lazyResources = new ConcurrentHashMap<>();
+    // IG packages reloaded because the extracted files their lazy resources point to were deleted
+    private final Map<IGPackageIdentity, NpmPackage> reloadedIgPackages = new ConcurrentHashMap<>();
+    // Incremented whenever resources are added, so resolution indexes know to drop their entries
+    private final AtomicLong revision = new AtomicLong();
+    // Unversioned canonical URLs of every resource added or indexed
+    private final Set<String> canonicalUrls = ConcurrentHashMap.newKeySet();
+    // Guards the resource maps of the support, which are filled while validations read them
+    private final ReentrantReadWriteLock resourcesLock = new ReentrantReadWriteLock();
+    // Folders and resource types of the IG packages this validator loads
+    private volatile IgResourceLoadPolicy resourceLoadPolicy = IgResourceLoadPolicy.defaults();
+    // Parsers are not thread safe, each parser pool worker keeps its own
+    private final ThreadLocal<IParser> jsonParsers = ThreadLocal.withInitial(() -> getFhirContext().newJsonParser());
 
 
     public CustomNpmPackageValidationSupport(FhirContext ctx, IgPackageService igPackageService) {
+        this(ctx, igPackageService, null);
+    }
+
+    public CustomNpmPackageValidationSupport(FhirContext ctx, IgPackageService igPackageService, ValidatorIdentity validatorIdentity) {
         super(ctx);
         this.igPackageService = igPackageService;
-        this.includedIgPackages = new ArrayList<>();
-
+        this.includedIgPackages = new CopyOnWriteArrayList<>();
+        this.validatorIdentity = validatorIdentity;
+        this.igPackageHeapEstimates = new LinkedHashMap<>();
+        this.igPackageResources = new LinkedHashMap<>();
     }
     public Future<Void> loadIgPackageFromDatabase(String name, String version) {
         return loadIgPackageFromDatabase(name, version, new ArrayList<>());
@@ -51,66 +107,635 @@ public class CustomNpmPackageValidationSupport extends NpmPackageValidationSuppo
      */
     public Future<Void> loadIgPackageFromDatabase(String name, String version, ArrayList<String> resolvedDependencies) {
         return igPackageService.loadIgPackage(name, version)
-                .compose(pkg -> {
-                    try {
-                        loadResourcesFromPackage(pkg);
-                        logger.info("Loaded IG {}@{}", name, version);
-                        
-                        // Create a list of futures for dependencies
-                        List<Future<Void>> dependencyFutures = new ArrayList<>();
-                        for (String idAndVer : pkg.dependencies()) {
-                            String name_ = idAndVer.contains("#") ? idAndVer.substring(0, idAndVer.indexOf("#")) : idAndVer;
-                            String version_ = idAndVer.contains("#") ? idAndVer.substring(idAndVer.indexOf("#") + 1) : null;
-                            
-                            if (FhirCoreIgPackageType.getNameList().contains(name_) || resolvedDependencies.contains(name_)) {
-                                continue;
+                .compose(pkg -> loadParsedPackage(pkg)
+                        .compose(parsedPackage -> {
+                            if (parsedPackage != null) {
+                                addParsedPackage(parsedPackage);
                             }
-                            
-                            resolvedDependencies.add(name_);
-                            dependencyFutures.add(loadIgPackageFromDatabase(name_, version_, resolvedDependencies));
-                        }
-                        
-                        // Wait for all dependencies to load
-                        return CompositeFuture.all(new ArrayList<>(dependencyFutures))
-                                .mapEmpty();
-                                
-                    } catch (Exception e) {
-                        logger.error("Failed to process IG {}@{}: {}", name, version, e.getMessage(), e);
-                        return Future.failedFuture(e);
-                    }
-                });
+                            logger.info("Loaded IG {}@{}", name, version);
+
+                            // Create a list of futures for dependencies
+                            List<Future<Void>> dependencyFutures = new ArrayList<>();
+                            for (String idAndVer : pkg.dependencies()) {
+                                String name_ = idAndVer.contains("#") ? idAndVer.substring(0, idAndVer.indexOf("#")) : idAndVer;
+                                String version_ = idAndVer.contains("#") ? idAndVer.substring(idAndVer.indexOf("#") + 1) : null;
+
+                                if (FhirCoreIgPackageType.getNameList().contains(name_) || resolvedDependencies.contains(name_)) {
+                                    continue;
+                                }
+
+                                resolvedDependencies.add(name_);
+                                dependencyFutures.add(loadIgPackageFromDatabase(name_, version_, resolvedDependencies));
+                            }
+
+                            // Wait for all dependencies to load
+                            return CompositeFuture.all(new ArrayList<>(dependencyFutures))
+                                    .<Void>mapEmpty();
+                        })
+                        .onFailure(e -> logger.error("Failed to process IG {}@{}: {}", name, version, e.getMessage(), e)));
     }
 
     /**
-     * Processes StructureDefinition resources from an NpmPackage and caches them.
+     * Processes StructureDefinition resources from an NpmPackage and caches them. Blocks until the
+     * package is parsed, so it must be called from a worker thread; event loop code uses
+     * {@link #loadIgPackageFromDatabase(String, String)} instead.
      * @param pkg The NpmPackage to process
+     * @throws IllegalStateException if called on the event loop
      */
     protected void loadResourcesFromPackage(NpmPackage pkg) {
+        if (Context.isOnEventLoopThread()) {
+            throw new IllegalStateException("IG packages cannot be parsed on the event loop");
+        }
+        ParsedIgPackage parsedPackage = PARSER_POOL.submit(() -> parseResources(pkg)).join();
+        if (parsedPackage != null) {
+            addParsedPackage(parsedPackage);
+        }
+    }
+
+    /**
+     * Eagerly loaded packages are read from the binary form stored with them when it holds everything
+     * the load policy selects; otherwise, or if the form is missing or stale, they are parsed from the tarball.
+     */
+    private Future<ParsedIgPackage> loadParsedPackage(NpmPackage pkg) {
+        IgResourceLoadPolicy policy = this.resourceLoadPolicy;
+        IGPackageIdentity igPackageIdentity = new IGPackageIdentity(pkg.name(), pkg.version(), SupportedFhirVersion.fromVersionNumber(pkg.fhirVersion()));
+        if (isLazyLoadingEnabled() || !IgPackageConformanceBinary.covers(policy) || this.includedIgPackages.contains(igPackageIdentity)) {
+            return parseResourcesAsync(pkg);
+        }
+        return igPackageService.loadConformanceBinary(pkg.name(), pkg.version(), getFhirContext())
+                .compose(entries -> {
+                    if (entries == null) {
+                        logger.debug("No binary form of IG {}@{}, parsing it", pkg.name(), pkg.version());
+                        return parseResourcesAsync(pkg);
+                    }
+                    return onParserPool(() -> fromBinary(igPackageIdentity, entries, policy));
+                });
+    }
+
+    private ParsedIgPackage fromBinary(IGPackageIdentity igPackageIdentity, List<IgPackageConformanceBinary.Entry> entries, IgResourceLoadPolicy policy) {
+        ArrayList<IBaseResource> resources = new ArrayList<>();
+        long rawJsonBytes = 0;
+        for (IgPackageConformanceBinary.Entry entry : entries) {
+            if (policy.allowsResourceType(entry.resourceType())) {
+                resources.add(entry.resource());
+                rawJsonBytes += entry.rawJsonBytes();
+            }
+        }
+        long heapEstimate = ValidatorHeapBudget.estimateParsedHeap(rawJsonBytes);
+        ValidatorHeapBudget.getInstance().ensureCapacity(validatorIdentity, heapEstimate);
+        FhirPathExpressionCache.forContext(getFhirContext()).warm(resources);
+        logger.debug("Read {} resources of IG {}@{} from its binary form", resources.size(), igPackageIdentity.getName(), igPackageIdentity.getVersion());
+        return new ParsedIgPackage(igPackageIdentity, resources, heapEstimate, List.of());
+    }
+
+    /**
+     * Parses the resources of a package on the parser pool, off the calling (event loop) thread.
+     * Completes on the calling context.
+     */
+    private Future<ParsedIgPackage> parseResourcesAsync(NpmPackage pkg) {
+        return onParserPool(() -> parseResources(pkg));
+    }
+
+    private Future<ParsedIgPackage> onParserPool(Supplier<ParsedIgPackage> task) {
+        CompletableFuture<ParsedIgPackage> parsing = CompletableFuture.supplyAsync(task, PARSER_POOL);
+        Context context = Vertx.currentContext();
+        Future<ParsedIgPackage> parsed = context != null ? Future.fromCompletionStage(parsing, context) : Future.fromCompletionStage(parsing);
+        return parsed.recover(e -> Future.failedFuture(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e));
+    }
+
+    /**
+     * Reads and parses the JSON files of the package folder in parallel, each worker reusing its own parser.
+     * With lazy loading, files listed with a canonical URL in the package's {@code .index.json} are only
+     * indexed, and parsed the first time they are asked for by URL. StructureDefinitions other than
+     * constraints and SearchParameters are still parsed, as the validator enumerates them.
+     * @return the parsed package, or null if it is already included or has no package folder
+     */
+    private ParsedIgPackage parseResources(NpmPackage pkg) {
         IGPackageIdentity igPackageIdentity = new IGPackageIdentity(pkg.name(), pkg.version(), SupportedFhirVersion.fromVersionNumber(pkg.fhirVersion()));
         if (this.includedIgPackages.contains(igPackageIdentity)) {
             logger.warn("IG {}@{} has already been loaded. No need to further process.", igPackageIdentity.getName(), igPackageIdentity.getVersion());
-            return;
+            return null;
         }
-        NpmPackage.NpmPackageFolder packageFolder = pkg.getFolders().get("package");
-        if (packageFolder == null) {
+        if (pkg.getFolders().get("package") == null) {
             logger.warn("No 'package' folder found in IG");
-            return;
+            return null;
+        }
+        IgResourceLoadPolicy policy = this.resourceLoadPolicy;
+        boolean lazyLoading = isLazyLoadingEnabled();
+        List<PackageFile> eagerFiles = new ArrayList<>();
+        List<LazyResource> lazy = new ArrayList<>();
+        long rawJsonBytes = 0;
+        for (Map.Entry<String, NpmPackage.NpmPackageFolder> folderEntry : pkg.getFolders().entrySet()) {
+            if (!policy.allowsFolder(folderEntry.getKey())) {
+                continue;
+            }
+            NpmPackage.NpmPackageFolder folder = folderEntry.getValue();
+            Map<String, org.hl7.fhir.utilities.json.model.JsonObject> index = readIndex(igPackageIdentity, folder);
+            for (String nextFile : folder.listFiles()) {
+                if (!nextFile.toLowerCase(Locale.ROOT).endsWith(".json")) {
+                    continue;
+                }
+                org.hl7.fhir.utilities.json.model.JsonObject indexEntry = index.get(nextFile);
+                String resourceType = indexEntry != null ? indexEntry.asString("resourceType") : null;
+                if (resourceType != null && !policy.allowsResourceType(resourceType)) {
+                    // Filtered by the index, never read
+                    continue;
+                }
+                long size = readFileSize(folder, nextFile);
+                rawJsonBytes += size;
+                String url = indexEntry != null ? indexEntry.asString("url") : null;
+                if (lazyLoading && url != null && isFetchedByUrl(resourceType, indexEntry)) {
+                    lazy.add(new LazyResource(igPackageIdentity, folder, nextFile, resourceType, url, indexEntry.asString("version"), size));
+                } else {
+                    eagerFiles.add(new PackageFile(folder, nextFile, size));
+                }
+            }
+        }
+        // Admission is checked for every selected resource, as each one may end up being materialized
+        ValidatorHeapBudget.getInstance().ensureCapacity(validatorIdentity, ValidatorHeapBudget.estimateParsedHeap(rawJsonBytes));
+
+        long startedAt = System.currentTimeMillis();
+        // Runs on the parser pool, so the parallel stream forks into it rather than the common pool.
+        // Files missing from the index are only filtered by resource type once parsed.
+        List<Map.Entry<IBaseResource, Long>> parsed = eagerFiles.parallelStream()
+                .map(file -> Map.entry(jsonParsers.get().parseResource(readFile(file.folder(), file.fileName())), file.size()))
+                .filter(entry -> policy.allowsResourceType(getFhirContext().getResourceType(entry.getKey())))
+                .toList();
+        ArrayList<IBaseResource> resources = new ArrayList<>();
+        long eagerBytes = 0;
+        for (Map.Entry<IBaseResource, Long> entry : parsed) {
+            resources.add(entry.getKey());
+            eagerBytes += entry.getValue();
         }
-        for(String nextFile : packageFolder.listFiles()) {
-            if (nextFile.toLowerCase(Locale.ROOT).endsWith(".json")) {
-                String input = new String((byte[])packageFolder.getContent().get(nextFile), StandardCharsets.UTF_8);
-                IBaseResource resource = this.getFhirContext().newJsonParser().parseResource(input);
+        logger.debug("Parsed {} and indexed {} resources of IG {}@{} in {} ms", resources.size(), lazy.size(),
+                igPackageIdentity.getName(), igPackageIdentity.getVersion(), System.currentTimeMillis() - startedAt);
+        // Lazy StructureDefinitions get the shared parsed invariants once they are materialized and fetched
+        FhirPathExpressionCache.forContext(getFhirContext()).warm(resources);
+        return new ParsedIgPackage(igPackageIdentity, resources, ValidatorHeapBudget.estimateParsedHeap(eagerBytes), lazy);
+    }
+
+    /**
+     * Reads the {@code .index.json} of a package folder.
+     * @return the index entries by file name, empty if the folder has no usable index
+     */
+    private static Map<String, org.hl7.fhir.utilities.json.model.JsonObject> readIndex(IGPackageIdentity igPackageIdentity, NpmPackage.NpmPackageFolder folder) {
+        Map<String, org.hl7.fhir.utilities.json.model.JsonObject> entries = new HashMap<>();
+        org.hl7.fhir.utilities.json.model.JsonObject index;
+        try {
+            index = folder.index();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read the index of folder {} of IG {}@{}, parsing all its resources: {}", folder.getFolderName(),
+                    igPackageIdentity.getName(), igPackageIdentity.getVersion(), e.getMessage());
+            return entries;
+        }
+        if (index == null || !index.has("files")) {
+            return entries;
+        }
+        for (org.hl7.fhir.utilities.json.model.JsonObject file : index.getJsonObjects("files")) {
+            String fileName = file.asString("filename");
+            if (fileName != null) {
+                entries.put(fileName, file);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Adds the parsed resources of a package to the support in one batch and indexes its lazy resources.
+     */
+    private void addParsedPackage(ParsedIgPackage parsedPackage) {
+        resourcesLock.writeLock().lock();
+        try {
+            if (this.includedIgPackages.contains(parsedPackage.igPackageIdentity())) {
+                return;
+            }
+            for (IBaseResource resource : parsedPackage.resources()) {
                 super.addResource(resource);
+                addCanonicalUrl(resource);
+            }
+            registerIgPackage(parsedPackage.igPackageIdentity(), parsedPackage.resources(), parsedPackage.heapEstimate());
+            for (LazyResource lazyResource : parsedPackage.lazyResources()) {
+                // The unversioned URL resolves to the version indexed last, like the parsed resources
+                lazyResources.put(lazyResource.url(), lazyResource);
+                lazyResources.put(lazyResource.versionedUrl(), lazyResource);
+                canonicalUrls.add(lazyResource.url());
+            }
+            revision.incrementAndGet();
+        } finally {
+            resourcesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Parses and adds the not yet materialized resource with the given canonical URL, if any.
+     */
+    private void materialize(String url) {
+        if (url == null || lazyResources.isEmpty() || resourcesLock.getReadHoldCount() > 0) {
+            return;
+        }
+        LazyResource lazyResource = lazyResources.get(url);
+        if (lazyResource == null && url.contains("|")) {
+            lazyResource = lazyResources.get(url.substring(0, url.indexOf('|')));
+        }
+        if (lazyResource == null) {
+            return;
+        }
+        // Concurrent lookups of the same resource wait for the first one to add it
+        synchronized (lazyResource) {
+            if (lazyResources.get(lazyResource.versionedUrl()) != lazyResource) {
+                return;
+            }
+            IBaseResource resource;
+            try {
+                String json = readLazyFile(lazyResource);
+                if (json == null) {
+                    // Left pending, the next lookup tries again
+                    return;
+                }
+                resource = jsonParsers.get().parseResource(json);
+            } catch (RuntimeException e) {
+                logger.error("Unable to parse {} of IG {}@{}: {}", lazyResource.fileName(), lazyResource.igPackageIdentity().getName(),
+                        lazyResource.igPackageIdentity().getVersion(), e.getMessage());
+                removeLazyResource(lazyResource);
+                return;
+            }
+            resourcesLock.writeLock().lock();
+            try {
+                if (removeLazyResource(lazyResource)) {
+                    super.addResource(resource);
+                    synchronized (igPackageHeapEstimates) {
+                        IGPackageIdentity igPackageIdentity = lazyResource.igPackageIdentity();
+                        igPackageResources.computeIfAbsent(igPackageIdentity, identity -> new ArrayList<>()).add(resource);
+                        igPackageHeapEstimates.merge(igPackageIdentity, ValidatorHeapBudget.estimateParsedHeap(lazyResource.size()), Long::sum);
+                    }
+                }
+            } finally {
+                resourcesLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Reads the file of a pending resource. The extracted package it points to may have been deleted
+     * from the disk cache since, e.g. when the package was registered again, in which case the package
+     * is reloaded through the {@link IgPackageService} and the file read from the reloaded copy.
+     * @return the file content, or null if the package could not be reloaded this time
+     * @throws UncheckedIOException if the file cannot be read, not even from the reloaded package
+     */
+    private String readLazyFile(LazyResource lazyResource) {
+        IGPackageIdentity igPackageIdentity = lazyResource.igPackageIdentity();
+        String folderName = lazyResource.folder().getFolderName();
+        NpmPackage reloaded = reloadedIgPackages.get(igPackageIdentity);
+        try {
+            return NpmPackageDiskCache.readFile(reloaded != null ? packageFolder(reloaded, folderName) : lazyResource.folder(), lazyResource.fileName());
+        } catch (IOException e) {
+            if (igPackageService == null) {
+                throw new UncheckedIOException("Unable to read " + lazyResource.fileName() + " from IG package", e);
+            }
+            logger.warn("Unable to read {} of IG {}@{}, reloading the package: {}", lazyResource.fileName(), igPackageIdentity.getName(),
+                    igPackageIdentity.getVersion(), e.getMessage());
+        }
+        try {
+            reloaded = awaitReload(igPackageIdentity);
+        } catch (Exception e) {
+            logger.warn("Unable to reload IG {}@{}: {}", igPackageIdentity.getName(), igPackageIdentity.getVersion(), e.getMessage());
+            return null;
+        }
+        if (reloaded == null) {
+            throw new IllegalStateException("IG package is no longer registered");
+        }
+        reloadedIgPackages.put(igPackageIdentity, reloaded);
+        try {
+            return NpmPackageDiskCache.readFile(packageFolder(reloaded, folderName), lazyResource.fileName());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + lazyResource.fileName() + " from reloaded IG package", e);
+        }
+    }
+
+    private static NpmPackage.NpmPackageFolder packageFolder(NpmPackage pkg, String folderName) throws FileNotFoundException {
+        NpmPackage.NpmPackageFolder folder = pkg.getFolders().get(folderName);
+        if (folder == null) {
+            throw new FileNotFoundException("No folder " + folderName + " in IG package");
+        }
+        return folder;
+    }
+
+    /**
+     * Waited for on worker threads only, up to {@code validator.resources.fetchTimeoutMs}.
+     */
+    private NpmPackage awaitReload(IGPackageIdentity igPackageIdentity) throws Exception {
+        Future<NpmPackage> reload = igPackageService.reloadIgPackage(igPackageIdentity.getName(), igPackageIdentity.getVersion());
+        if (!reload.isComplete() && Context.isOnEventLoopThread()) {
+            throw new IllegalStateException("Cannot wait for the reload on the event loop");
+        }
+        long timeoutMillis = Long.parseLong(ApplicationConfig.get("validator.resources.fetchTimeoutMs", "5000"));
+        return reload.toCompletionStage().toCompletableFuture().get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether the resource was still pending
+     */
+    private boolean removeLazyResource(LazyResource lazyResource) {
+        lazyResources.remove(lazyResource.url(), lazyResource);
+        return lazyResources.remove(lazyResource.versionedUrl(), lazyResource);
+    }
+
+    /**
+     * Whether the validator only ever asks for the resource by its URL. It enumerates the
+     * StructureDefinitions for the types and primitives they define, and the SearchParameters, so those
+     * must not be left pending; profiles, i.e. constraints, and terminology resources may be.
+     */
+    private static boolean isFetchedByUrl(String resourceType, org.hl7.fhir.utilities.json.model.JsonObject indexEntry) {
+        if (resourceType == null || "SearchParameter".equals(resourceType)) {
+            return false;
+        }
+        return !"StructureDefinition".equals(resourceType) || "constraint".equals(indexEntry.asString("derivation"));
+    }
+
+    /**
+     * @return each pending resource once, although most are indexed with and without version
+     */
+    private List<LazyResource> pendingLazyResources() {
+        List<LazyResource> pending = new ArrayList<>();
+        for (Map.Entry<String, LazyResource> entry : lazyResources.entrySet()) {
+            if (entry.getKey().equals(entry.getValue().versionedUrl())) {
+                pending.add(entry.getValue());
+            }
+        }
+        return pending;
+    }
+
+    private <T> T read(Supplier<T> lookup) {
+        resourcesLock.readLock().lock();
+        try {
+            return lookup.get();
+        } finally {
+            resourcesLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public IBaseResource fetchStructureDefinition(String url) {
+        materialize(url);
+        return read(() -> super.fetchStructureDefinition(url));
+    }
+
+    @Override
+    public IBaseResource fetchValueSet(String url) {
+        materialize(url);
+        return read(() -> super.fetchValueSet(url));
+    }
+
+    @Override
+    public IBaseResource fetchCodeSystem(String url) {
+        materialize(url);
+        return read(() -> super.fetchCodeSystem(url));
+    }
+
+    @Override
+    public <T extends IBaseResource> T fetchResource(Class<T> resourceType, String url) {
+        materialize(url);
+        return read(() -> super.fetchResource(resourceType, url));
+    }
+
+    @Override
+    public boolean isValueSetSupported(ValidationSupportContext validationSupportContext, String url) {
+        materialize(url);
+        return read(() -> super.isValueSetSupported(validationSupportContext, url));
+    }
+
+    @Override
+    public boolean isCodeSystemSupported(ValidationSupportContext validationSupportContext, String url) {
+        materialize(url);
+        return read(() -> super.isCodeSystemSupported(validationSupportContext, url));
+    }
+
+    /**
+     * Lists the parsed resources only: enumerating does not materialize pending ones, which are all
+     * profiles or terminology resources fetched by URL, see {@link #isFetchedByUrl}.
+     */
+    @Override
+    public <T extends IBaseResource> List<T> fetchAllStructureDefinitions() {
+        return read(super::fetchAllStructureDefinitions);
+    }
+
+    @Override
+    public <T extends IBaseResource> List<T> fetchAllSearchParameters() {
+        return read(super::fetchAllSearchParameters);
+    }
+
+    @Override
+    public List<IBaseResource> fetchAllConformanceResources() {
+        return read(super::fetchAllConformanceResources);
+    }
+
+    public IgResourceLoadPolicy getResourceLoadPolicy() {
+        return resourceLoadPolicy;
+    }
+
+    /**
+     * Sets the folders and resource types loaded from IG packages included from now on.
+     */
+    public void setResourceLoadPolicy(IgResourceLoadPolicy resourceLoadPolicy) {
+        this.resourceLoadPolicy = resourceLoadPolicy != null ? resourceLoadPolicy : IgResourceLoadPolicy.defaults();
+    }
+
+    /**
+     * @return number of indexed resources that have not been parsed yet
+     */
+    public int getLazyResourceCount() {
+        return pendingLazyResources().size();
+    }
+
+    private void addCanonicalUrl(IBaseResource resource) {
+        String url;
+        try {
+            url = getFhirContext().newTerser().getSinglePrimitiveValueOrNull(resource, "url");
+        } catch (RuntimeException e) {
+            // Not a canonical resource, e.g. an example
+            return;
+        }
+        if (url != null) {
+            canonicalUrls.add(url);
+        }
+    }
+
+    @Override
+    public Collection<String> getCanonicalUrls() {
+        return Collections.unmodifiableSet(canonicalUrls);
+    }
+
+    /**
+     * @return the resources parsed so far, without materializing pending ones
+     */
+    public List<IBaseResource> getMaterializedResources() {
+        return read(super::fetchAllConformanceResources);
+    }
+
+    /**
+     * @return a counter which changes whenever resources are added to this support
+     */
+    public long getRevision() {
+        return revision.get();
+    }
+
+    /**
+     * Off by default: lazy supports cannot be restored from a {@link ValidatorSnapshot} nor from the
+     * binary form of their IG packages, both holding parsed resources only.
+     */
+    public static boolean isLazyLoadingEnabled() {
+        return Boolean.parseBoolean(ApplicationConfig.get("validator.resources.lazy", "false"));
+    }
+
+    private static ForkJoinPool createParserPool() {
+        int parallelism = Integer.parseInt(ApplicationConfig.get("validator.parser.parallelism", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        return new ForkJoinPool(Math.max(1, parallelism), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("ig-package-parser-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    private record PackageFile(NpmPackage.NpmPackageFolder folder, String fileName, long size) {
+    }
+
+    private record ParsedIgPackage(IGPackageIdentity igPackageIdentity, List<IBaseResource> resources, long heapEstimate,
+                                   List<LazyResource> lazyResources) {
+    }
+
+    /**
+     * A resource of an included IG package, known from the package index but not parsed yet.
+     */
+    private record LazyResource(IGPackageIdentity igPackageIdentity, NpmPackage.NpmPackageFolder folder, String fileName,
+                                String resourceType, String url, String version, long size) {
+
+        String versionedUrl() {
+            return version != null ? url + "|" + version : url;
+        }
+    }
+
+    private static String readFile(NpmPackage.NpmPackageFolder packageFolder, String fileName) {
+        try {
+            return NpmPackageDiskCache.readFile(packageFolder, fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + fileName + " from IG package", e);
+        }
+    }
+
+    private static long readFileSize(NpmPackage.NpmPackageFolder packageFolder, String fileName) {
+        try {
+            return NpmPackageDiskCache.fileSize(packageFolder, fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + fileName + " from IG package", e);
+        }
+    }
+
+    /**
+     * Restores the IG packages of a snapshot without parsing them again. Packages that are already
+     * included are skipped.
+     * @param snapshot previously created by {@link #createSnapshot()}
+     */
+    public void restoreFromSnapshot(ValidatorSnapshot snapshot) {
+        for (ValidatorSnapshot.IgPackageEntry entry : snapshot.getIgPackages()) {
+            IGPackageIdentity igPackageIdentity = entry.asIgPackageIdentity();
+            if (this.includedIgPackages.contains(igPackageIdentity)) {
+                continue;
+            }
+            ValidatorHeapBudget.getInstance().ensureCapacity(validatorIdentity, entry.estimatedHeapBytes());
+            addParsedPackage(new ParsedIgPackage(igPackageIdentity, entry.resources(), entry.estimatedHeapBytes(), List.of()));
+        }
+        logger.info("Restored {} IG package(s) from snapshot {}", snapshot.getIgPackages().size(), snapshot.getFingerprint());
+    }
+
+    /**
+     * Includes the IG packages of another support, sharing its parsed resources and the index of its
+     * not yet parsed ones instead of loading them again. Packages that are already included are skipped.
+     */
+    public void includeIgPackagesOf(CustomNpmPackageValidationSupport source) {
+        List<ParsedIgPackage> parsedPackages = new ArrayList<>();
+        source.resourcesLock.readLock().lock();
+        try {
+            synchronized (source.igPackageHeapEstimates) {
+                List<LazyResource> pending = source.pendingLazyResources();
+                for (IGPackageIdentity igPackageIdentity : source.includedIgPackages) {
+                    parsedPackages.add(new ParsedIgPackage(igPackageIdentity,
+                            new ArrayList<>(source.igPackageResources.getOrDefault(igPackageIdentity, List.of())),
+                            source.igPackageHeapEstimates.getOrDefault(igPackageIdentity, 0L),
+                            pending.stream().filter(lazyResource -> lazyResource.igPackageIdentity().equals(igPackageIdentity)).toList()));
+                }
+            }
+        } finally {
+            source.resourcesLock.readLock().unlock();
+        }
+        for (ParsedIgPackage parsedPackage : parsedPackages) {
+            addParsedPackage(parsedPackage);
+        }
+    }
+
+    /**
+     * Captures the parsed resources of every currently included IG package.
+     */
+    public ValidatorSnapshot createSnapshot() {
+        synchronized (igPackageHeapEstimates) {
+            List<ValidatorSnapshot.IgPackageEntry> entries = new ArrayList<>();
+            for (IGPackageIdentity igPackageIdentity : includedIgPackages) {
+                List<IBaseResource> resources = igPackageResources.getOrDefault(igPackageIdentity, List.of());
+                entries.add(new ValidatorSnapshot.IgPackageEntry(
+                        igPackageIdentity.getName(),
+                        igPackageIdentity.getVersion(),
+                        igPackageIdentity.getFhirVersion(),
+                        igPackageHeapEstimates.getOrDefault(igPackageIdentity, 0L),
+                        new ArrayList<>(resources)));
+            }
+            return new ValidatorSnapshot(ValidatorSnapshot.fingerprint(includedIgPackages, resourceLoadPolicy), entries);
+        }
+    }
+
+    private void registerIgPackage(IGPackageIdentity igPackageIdentity, List<IBaseResource> resources, long heapEstimate) {
+        synchronized (igPackageHeapEstimates) {
+            int existingIndex = findSimilarPackage(igPackageIdentity);
+            if (existingIndex == -1) {
+                includedIgPackages.add(igPackageIdentity);
+            } else {
+                IGPackageIdentity existingIgPackage = includedIgPackages.get(existingIndex);
+                logger.info("IG Package version has been updated. Name was: {}, previous version was: {} and current version is: {} ", igPackageIdentity.getName(), existingIgPackage.getVersion(), igPackageIdentity.getVersion());
+                includedIgPackages.set(existingIndex, igPackageIdentity);
+                Long previousEstimate = igPackageHeapEstimates.remove(existingIgPackage);
+                supersededHeapEstimate += previousEstimate != null ? previousEstimate : 0;
+                igPackageResources.remove(existingIgPackage);
+                // Resources of the previous version that were never parsed are no longer offered
+                lazyResources.values().removeIf(lazyResource -> lazyResource.igPackageIdentity().equals(existingIgPackage));
+            }
+            igPackageHeapEstimates.put(igPackageIdentity, heapEstimate);
+            igPackageResources.put(igPackageIdentity, resources);
+        }
+        logger.debug("IG {}@{} is estimated to retain {} bytes of heap", igPackageIdentity.getName(), igPackageIdentity.getVersion(), heapEstimate);
+    }
+
+    /**
+     * Estimated retained heap of every parsed resource held by this support, including resources
+     * of IG versions that have since been replaced.
+     * @return estimate in bytes
+     */
+    public long getEstimatedHeapBytes() {
+        synchronized (igPackageHeapEstimates) {
+            long total = supersededHeapEstimate;
+            for (Long estimate : igPackageHeapEstimates.values()) {
+                total += estimate;
             }
+            return total;
         }
-        //
-        int existingIndex = findSimilarPackage(igPackageIdentity);
-        if (existingIndex == -1) {
-            includedIgPackages.add(igPackageIdentity);
-        } else {
-            IGPackageIdentity existingIgPackage = includedIgPackages.get(existingIndex);
-            logger.info("IG Package version has been updated. Name was: {}, previous version was: {} and current version is: {} ", igPackageIdentity.getName(), existingIgPackage.getVersion(), igPackageIdentity.getVersion());
-            includedIgPackages.set(existingIndex, igPackageIdentity);
+    }
+
+    public long getSupersededHeapEstimate() {
+        synchronized (igPackageHeapEstimates) {
+            return supersededHeapEstimate;
+        }
+    }
+
+    public Map<IGPackageIdentity, Long> getIgPackageHeapEstimates() {
+        synchronized (igPackageHeapEstimates) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(igPackageHeapEstimates));
         }
     }
 
@@ -139,20 +764,31 @@ public class CustomNpmPackageValidationSupport extends NpmPackageValidationSuppo
         }
         return retVal != null;
     }
+    /**
+     * @return a copy of the IG packages included so far, in the order they were included
+     */
     public List<IGPackageIdentity> getIncludedIgPackages() {
-        return includedIgPackages;
+        return List.copyOf(includedIgPackages);
     }
     public static CustomNpmPackageValidationSupport getValidationSupport(ValidatorIdentity validatorIdentity) {
         return NPM_PACKAGE_VALIDATION_SUPPORT_CACHE.get(validatorIdentity);
     }
 
     public static CustomNpmPackageValidationSupport getValidationSupport(ValidatorIdentity validatorIdentity, IgPackageService igPackageService) {
-        if (!NPM_PACKAGE_VALIDATION_SUPPORT_CACHE.containsKey(validatorIdentity)) {
-            final CustomNpmPackageValidationSupport finalNpmValidationSupport = new CustomNpmPackageValidationSupport(
-                    FhirContextLoader.getInstance().getContext(validatorIdentity.getFhirVersion()),
-                    igPackageService);
-            NPM_PACKAGE_VALIDATION_SUPPORT_CACHE.put(validatorIdentity, finalNpmValidationSupport);
-        }
-        return NPM_PACKAGE_VALIDATION_SUPPORT_CACHE.get(validatorIdentity);
+        return NPM_PACKAGE_VALIDATION_SUPPORT_CACHE.computeIfAbsent(validatorIdentity, identity -> new CustomNpmPackageValidationSupport(
+                FhirContextLoader.getInstance().getContext(identity.getFhirVersion()),
+                igPackageService,
+                identity));
+    }
+
+    /**
+     * Replaces the support of a validator, e.g. once it has been rebuilt with a different IG set.
+     */
+    public static void putValidationSupport(ValidatorIdentity validatorIdentity, CustomNpmPackageValidationSupport validationSupport) {
+        NPM_PACKAGE_VALIDATION_SUPPORT_CACHE.put(validatorIdentity, validationSupport);
+    }
+
+    public static void removeValidationSupport(ValidatorIdentity validatorIdentity) {
+        NPM_PACKAGE_VALIDATION_SUPPORT_CACHE.remove(validatorIdentity);
     }
 }
\ No newline at end of file
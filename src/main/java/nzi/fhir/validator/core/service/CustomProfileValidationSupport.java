@@ -3,27 +3,53 @@ package nzi.fhir.validator.core.service;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.ConceptValidationOptions;
 import ca.uhn.fhir.context.support.ValidationSupportContext;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import nzi.fhir.validator.core.config.ApplicationConfig;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupport;
 
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 /**
  * @author Md Nazrul Islam
  */
-public class CustomProfileValidationSupport extends BaseValidationSupport {
+public class CustomProfileValidationSupport extends BaseValidationSupport implements CanonicalUrlOwner {
     private static final Logger logger = LogManager.getLogger(CustomProfileValidationSupport.class);
     private final ProfileService profileService;
+    private final long fetchTimeoutMillis;
 
     public CustomProfileValidationSupport(FhirContext ctx, ProfileService profileService) {
         super(ctx);
         this.profileService = profileService;
+        this.fetchTimeoutMillis = Long.parseLong(ApplicationConfig.get("validator.profiles.fetchTimeoutMs", "5000"));
+    }
+
+    @Override
+    public Collection<String> getCanonicalUrls() {
+        return profileService.getProfileUrls();
     }
 
+    /**
+     * Profiles referenced by the validated resource are prefetched before validating, so this is
+     * normally a cache hit. Other profiles, e.g. referenced by a profile of an IG package, are waited
+     * for on worker threads, up to {@code validator.profiles.fetchTimeoutMs}, but never on the event loop.
+     * URLs which are not registered return null without reading the database.
+     */
     @Override
     public IBaseResource fetchStructureDefinition(String url) {
+        if (url == null || !profileService.isRegisteredProfile(url)) {
+            return null;
+        }
         try {
-            IBaseResource profile = profileService.getProfile(url).result();
+            IBaseResource profile = profileService.getCachedProfile(url);
+            if (profile == null) {
+                profile = await(url, profileService.getProfile(url));
+            }
             if (profile != null) {
                 logger.debug("Fetched profile from ProfileService: {}", url);
                 return profile;
@@ -36,6 +62,22 @@ public class CustomProfileValidationSupport extends BaseValidationSupport {
         }
     }
 
+    private IBaseResource await(String url, Future<IBaseResource> load) throws Exception {
+        if (load.isComplete()) {
+            return load.result();
+        }
+        if (Context.isOnEventLoopThread()) {
+            logger.warn("Profile {} was not prefetched and cannot be waited for on the event loop", url);
+            return null;
+        }
+        try {
+            return load.toCompletionStage().toCompletableFuture().get(fetchTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("Timed out after {} ms loading profile {}", fetchTimeoutMillis, url);
+            return null;
+        }
+    }
+
     @Override
     public boolean isCodeSystemSupported(ValidationSupportContext theValidationSupportContext, String theSystem) {
         return false; // Let the terminology service handle code systems
@@ -1,26 +1,48 @@
 package nzi.fhir.validator.core.service;
 
 import ca.uhn.fhir.context.FhirContext;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import nzi.fhir.validator.core.config.ApplicationConfig;
 import nzi.fhir.validator.core.enums.SupportedFhirVersion;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Singleton class responsible for loading and caching FHIR contexts.
+ * <p>
+ * Contexts are created lazily on first use, and only for the versions enabled with
+ * {@code fhir.versions.enabled} (comma separated, defaults to STU3,R4,R4B,R5).
  *
  * @author Your Name
  */
 public class FhirContextLoader {
     private static final Logger logger = LogManager.getLogger(FhirContextLoader.class);
+    private static final String DEFAULT_ENABLED_VERSIONS = "STU3,R4,R4B,R5";
     private static FhirContextLoader instance;
     private final Map<SupportedFhirVersion, FhirContext> contextMap;
+    private final Set<SupportedFhirVersion> enabledVersions;
+    private final Map<SupportedFhirVersion, Object> creationLocks;
 
     private FhirContextLoader() {
-        contextMap = new EnumMap<>(SupportedFhirVersion.class);
-        initializeContexts();
+        contextMap = new ConcurrentHashMap<>();
+        enabledVersions = Collections.unmodifiableSet(parseEnabledVersions(ApplicationConfig.get("fhir.versions.enabled", DEFAULT_ENABLED_VERSIONS)));
+        creationLocks = new EnumMap<>(SupportedFhirVersion.class);
+        for (SupportedFhirVersion version : SupportedFhirVersion.values()) {
+            creationLocks.put(version, new Object());
+        }
+        logger.info("Enabled FHIR versions: {}", enabledVersions);
     }
 
     /**
@@ -35,18 +57,58 @@ public class FhirContextLoader {
         return instance;
     }
 
-    private void initializeContexts() {
-        logger.info("Initializing FHIR contexts");
-        try {
-            contextMap.put(SupportedFhirVersion.STU3, FhirContext.forDstu3());
-            contextMap.put(SupportedFhirVersion.R4, FhirContext.forR4());
-            contextMap.put(SupportedFhirVersion.R4B, FhirContext.forR4B());
-            contextMap.put(SupportedFhirVersion.R5, FhirContext.forR5());
-            logger.info("FHIR contexts initialized successfully");
-        } catch (Exception e) {
-            logger.error("Failed to initialize FHIR contexts", e);
-            throw new RuntimeException("Failed to initialize FHIR contexts", e);
+    private static Set<SupportedFhirVersion> parseEnabledVersions(String value) {
+        Set<SupportedFhirVersion> versions = EnumSet.noneOf(SupportedFhirVersion.class);
+        for (String version : value.split(",")) {
+            if (!version.isBlank()) {
+                versions.add(SupportedFhirVersion.valueOf(version.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+        return versions;
+    }
+
+    private FhirContext createContext(SupportedFhirVersion version) {
+        long startedAt = System.currentTimeMillis();
+        FhirContext context = switch (version) {
+            case STU3 -> FhirContext.forDstu3();
+            case R4 -> FhirContext.forR4();
+            case R4B -> FhirContext.forR4B();
+            case R5 -> FhirContext.forR5();
+            default -> throw new IllegalArgumentException("Unsupported FHIR version: " + version);
+        };
+        logger.info("FHIR context {} created in {} ms", version, System.currentTimeMillis() - startedAt);
+        return context;
+    }
+
+    /**
+     * Creates the contexts of the given versions in parallel on worker threads, including the scan of
+     * their resource definitions, so the first requests do not pay for it.
+     *
+     * @param vertx The Vert.x instance
+     * @param versions The FHIR versions to warm up
+     * @return Future completed when every context is ready
+     */
+    public Future<Void> warmUp(Vertx vertx, Collection<SupportedFhirVersion> versions) {
+        long startedAt = System.currentTimeMillis();
+        List<Future<FhirContext>> futures = new ArrayList<>();
+        for (SupportedFhirVersion version : versions) {
+            futures.add(warmUp(vertx, version));
         }
+        return Future.all(futures)
+                .onSuccess(v -> logger.info("FHIR contexts {} warmed up in {} ms", versions, System.currentTimeMillis() - startedAt))
+                .mapEmpty();
+    }
+
+    /**
+     * Creates the context of a single version on a worker thread, see {@link #warmUp(Vertx, Collection)}.
+     */
+    public Future<FhirContext> warmUp(Vertx vertx, SupportedFhirVersion version) {
+        return vertx.executeBlocking(() -> {
+            FhirContext context = getContext(version);
+            // Scans every resource definition of the version
+            context.getResourceTypes();
+            return context;
+        }, false);
     }
 
     /**
@@ -57,14 +119,31 @@ public class FhirContextLoader {
      * @throws IllegalArgumentException if the version is not supported
      */
     public FhirContext getContext(SupportedFhirVersion version) {
-        FhirContext context = contextMap.get(version);
-        if (context == null) {
+        if (version == null || !enabledVersions.contains(version)) {
             logger.error("Unsupported FHIR version: {}", version);
             throw new IllegalArgumentException("Unsupported FHIR version: " + version);
         }
+        FhirContext context = contextMap.get(version);
+        if (context == null) {
+            // One lock per version, so different versions can be created in parallel
+            synchronized (creationLocks.get(version)) {
+                context = contextMap.get(version);
+                if (context == null) {
+                    context = createContext(version);
+                    contextMap.put(version, context);
+                }
+            }
+        }
         return context;
     }
 
+    /**
+     * @return The FHIR versions enabled by configuration
+     */
+    public Set<SupportedFhirVersion> getEnabledVersions() {
+        return enabledVersions;
+    }
+
     /**
      * Gets the default FhirContext (R4).
      *
@@ -75,12 +154,12 @@ public class FhirContextLoader {
     }
 
     /**
-     * Checks if a context for the specified version exists.
+     * Checks if a context for the specified version is available.
      *
      * @param version The FHIR version to check
-     * @return true if the context exists, false otherwise
+     * @return true if the version is enabled, false otherwise
      */
     public boolean hasContext(SupportedFhirVersion version) {
-        return contextMap.containsKey(version);
+        return enabledVersions.contains(version);
     }
 }
\ No newline at end of file
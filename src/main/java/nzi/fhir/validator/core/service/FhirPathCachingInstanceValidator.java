@@ -0,0 +1,98 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.hapi.converters.canonical.VersionCanonicalizer;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.common.hapi.validation.validator.VersionSpecificWorkerContextWrapper;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+import java.util.List;
+
+/**
+ * Instance validator whose StructureDefinitions carry the parsed invariants of the shared
+ * {@link FhirPathExpressionCache}, so invariants are not parsed again by every validator.
+ *
+ * @author Md Nazrul Islam
+ */
+public class FhirPathCachingInstanceValidator extends FhirInstanceValidator {
+    private volatile VersionSpecificWorkerContextWrapper workerContext;
+
+    public FhirPathCachingInstanceValidator(IValidationSupport validationSupport) {
+        super(validationSupport);
+    }
+
+    @Override
+    protected VersionSpecificWorkerContextWrapper provideWorkerContext() {
+        VersionSpecificWorkerContextWrapper context = workerContext;
+        if (context == null) {
+            synchronized (this) {
+                if (workerContext == null) {
+                    IValidationSupport validationSupport = getValidationSupport();
+                    workerContext = new FhirPathCachingWorkerContext(new ValidationSupportContext(validationSupport),
+                            new VersionCanonicalizer(validationSupport.getFhirContext()),
+                            FhirPathExpressionCache.forContext(validationSupport.getFhirContext()));
+                }
+                context = workerContext;
+            }
+        }
+        return context;
+    }
+
+    @Override
+    public VersionSpecificWorkerContextWrapper getWorkerContext() {
+        return workerContext;
+    }
+
+    @Override
+    public void invalidateCaches() {
+        super.invalidateCaches();
+        VersionSpecificWorkerContextWrapper context = workerContext;
+        if (context != null) {
+            context.invalidateCaches();
+        }
+    }
+
+    /**
+     * Worker context handing out StructureDefinitions with the shared parsed invariants. Every fetch
+     * of a resource by URL, including a single type definition, goes through
+     * {@link #fetchResource(Class, String)}; lists of StructureDefinitions are fetched separately.
+     */
+    private static class FhirPathCachingWorkerContext extends VersionSpecificWorkerContextWrapper {
+        private final FhirPathExpressionCache expressionCache;
+
+        private FhirPathCachingWorkerContext(ValidationSupportContext validationSupportContext, VersionCanonicalizer versionCanonicalizer,
+                                             FhirPathExpressionCache expressionCache) {
+            super(validationSupportContext, versionCanonicalizer);
+            this.expressionCache = expressionCache;
+        }
+
+        @Override
+        public <T extends Resource> T fetchResource(Class<T> resourceClass, String url) {
+            T resource = super.fetchResource(resourceClass, url);
+            if (resource instanceof StructureDefinition structureDefinition) {
+                expressionCache.apply(structureDefinition);
+            }
+            return resource;
+        }
+
+        @Override
+        public List<StructureDefinition> fetchTypeDefinitions(String typeName) {
+            List<StructureDefinition> structureDefinitions = super.fetchTypeDefinitions(typeName);
+            structureDefinitions.forEach(expressionCache::apply);
+            return structureDefinitions;
+        }
+
+        @Override
+        public <T extends Resource> List<T> fetchResourcesByType(Class<T> resourceClass) {
+            List<T> resources = super.fetchResourcesByType(resourceClass);
+            for (T resource : resources) {
+                if (resource instanceof StructureDefinition structureDefinition) {
+                    expressionCache.apply(structureDefinition);
+                }
+            }
+            return resources;
+        }
+    }
+}
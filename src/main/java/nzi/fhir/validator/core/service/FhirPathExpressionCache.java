@@ -0,0 +1,193 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.util.FhirTerser;
+import io.vertx.core.json.JsonObject;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.common.hapi.validation.validator.VersionSpecificWorkerContextWrapper;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.fhirpath.ExpressionNode;
+import org.hl7.fhir.r5.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.validation.instance.utils.FHIRPathExpressionFixer;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parsed FHIRPath expressions of {@code constraint.expression}, shared by every validator and worker
+ * thread of a FHIR version.
+ * <p>
+ * The instance validator keeps the parsed expression of an invariant on the constraint of its own
+ * converted copy of the StructureDefinition, so each validator parses every invariant again. Before a
+ * StructureDefinition is handed to the instance validator, its constraints are given the shared parsed
+ * expression instead. Expressions are parsed the way the instance validator does, and the cache is
+ * warmed with the StructureDefinitions of an IG package when it is loaded. At most
+ * {@code validator.fhirpath.cache.maxEntries} expressions are kept per FHIR version.
+ *
+ * @author Md Nazrul Islam
+ */
+public class FhirPathExpressionCache {
+    private static final Logger logger = LogManager.getLogger(FhirPathExpressionCache.class);
+    // User data key under which the instance validator looks up the parsed expression of a constraint
+    static final String EXPRESSION_CACHE_USER_DATA = "validator.expression.cache";
+    private static final String APPLIED_USER_DATA = "nzi.fhirpath.cache.applied";
+    private static final Map<String, FhirPathExpressionCache> CACHES = new ConcurrentHashMap<>();
+
+    private final FhirContext fhirContext;
+    private final String fhirVersion;
+    private final int maxEntries;
+    private final Map<String, ExpressionNode> expressions = new ConcurrentHashMap<>();
+    // Expressions the engine failed to parse, left to the instance validator to report
+    private final Set<String> failures = ConcurrentHashMap.newKeySet();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile FHIRPathEngine engine;
+
+    private FhirPathExpressionCache(FhirContext fhirContext, int maxEntries) {
+        this.fhirContext = fhirContext;
+        this.fhirVersion = fhirContext.getVersion().getVersion().getFhirVersionString();
+        this.maxEntries = maxEntries;
+    }
+
+    public static FhirPathExpressionCache forContext(FhirContext fhirContext) {
+        return CACHES.computeIfAbsent(fhirContext.getVersion().getVersion().getFhirVersionString(),
+                version -> new FhirPathExpressionCache(fhirContext,
+                        Integer.parseInt(ApplicationConfig.get("validator.fhirpath.cache.maxEntries", "50000"))));
+    }
+
+    /**
+     * @return the parsed expression of an invariant, null if it cannot be parsed
+     */
+    public ExpressionNode get(String key, String expression) {
+        String fixed = FHIRPathExpressionFixer.fixExpr(expression, key, fhirVersion);
+        ExpressionNode node = expressions.get(fixed);
+        if (node != null) {
+            hits.increment();
+            return node;
+        }
+        if (failures.contains(fixed)) {
+            return null;
+        }
+        misses.increment();
+        try {
+            node = parse(fixed);
+        } catch (RuntimeException e) {
+            logger.debug("Unable to parse invariant {} '{}': {}", key, fixed, e.getMessage());
+            failures.add(fixed);
+            return null;
+        }
+        if (expressions.size() < maxEntries) {
+            ExpressionNode existing = expressions.putIfAbsent(fixed, node);
+            return existing != null ? existing : node;
+        }
+        return node;
+    }
+
+    /**
+     * Gives the constraints of a StructureDefinition converted for the instance validator their
+     * shared parsed expression. Each StructureDefinition is only walked once.
+     */
+    public void apply(StructureDefinition structureDefinition) {
+        if (structureDefinition == null || structureDefinition.getUserData(APPLIED_USER_DATA) != null) {
+            return;
+        }
+        apply(structureDefinition.getSnapshot().getElement());
+        apply(structureDefinition.getDifferential().getElement());
+        structureDefinition.setUserData(APPLIED_USER_DATA, Boolean.TRUE);
+    }
+
+    private void apply(List<ElementDefinition> elements) {
+        for (ElementDefinition element : elements) {
+            for (ElementDefinition.ElementDefinitionConstraintComponent constraint : element.getConstraint()) {
+                if (!constraint.hasExpression() || constraint.getUserData(EXPRESSION_CACHE_USER_DATA) != null) {
+                    continue;
+                }
+                ExpressionNode node = get(constraint.getKey(), constraint.getExpression());
+                if (node != null) {
+                    constraint.setUserData(EXPRESSION_CACHE_USER_DATA, node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the invariants of the StructureDefinitions among the resources, e.g. of a loaded IG package.
+     * @return number of invariants seen
+     */
+    public int warm(Collection<? extends IBaseResource> resources) {
+        long startedAt = System.currentTimeMillis();
+        long missesBefore = misses.sum();
+        FhirTerser terser = fhirContext.newTerser();
+        int invariants = 0;
+        for (IBaseResource resource : resources) {
+            if (!"StructureDefinition".equals(fhirContext.getResourceType(resource))) {
+                continue;
+            }
+            for (String path : List.of("StructureDefinition.snapshot.element.constraint", "StructureDefinition.differential.element.constraint")) {
+                for (IBase constraint : terser.getValues(resource, path)) {
+                    String expression = terser.getSinglePrimitiveValueOrNull(constraint, "expression");
+                    if (expression != null) {
+                        get(terser.getSinglePrimitiveValueOrNull(constraint, "key"), expression);
+                        invariants++;
+                    }
+                }
+            }
+        }
+        logger.debug("Warmed FHIRPath cache of FHIR {} with {} invariants ({} parsed) in {} ms", fhirVersion, invariants,
+                misses.sum() - missesBefore, System.currentTimeMillis() - startedAt);
+        return invariants;
+    }
+
+    /**
+     * Parsing does not depend on the IG packages, so one engine over the core definitions serves
+     * every validator without holding on to any of them.
+     */
+    private ExpressionNode parse(String expression) {
+        FHIRPathEngine parser = engine;
+        if (parser == null) {
+            synchronized (this) {
+                if (engine == null) {
+                    engine = new FHIRPathEngine(VersionSpecificWorkerContextWrapper.newVersionSpecificWorkerContextWrapper(
+                            new ValidationSupportChain(new DefaultProfileValidationSupport(fhirContext))));
+                }
+                parser = engine;
+            }
+        }
+        // Only misses get here, parsing them one at a time costs little
+        synchronized (parser) {
+            return parser.parse(expression);
+        }
+    }
+
+    public int size() {
+        return expressions.size();
+    }
+
+    public JsonObject toJson() {
+        return new JsonObject()
+                .put("entries", expressions.size())
+                .put("failures", failures.size())
+                .put("hits", hits.sum())
+                .put("misses", misses.sum());
+    }
+
+    /**
+     * @return the statistics of every FHIR version, by version
+     */
+    public static JsonObject statsJson() {
+        JsonObject json = new JsonObject();
+        CACHES.forEach((version, cache) -> json.put(version, cache.toJson()));
+        return json;
+    }
+}
@@ -5,23 +5,26 @@ import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.ValidationResult;
-import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.sqlclient.Pool;
 import io.vertx.sqlclient.Row;
 import io.vertx.sqlclient.Tuple;
+import nzi.fhir.validator.core.config.ApplicationConfig;
 import nzi.fhir.validator.core.model.ValidatorIdentity;
+import nzi.fhir.validator.core.model.ValidatorSnapshot;
 import nzi.fhir.validator.core.enums.SupportedFhirVersion;
 import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgInclusionJob;
+import nzi.fhir.validator.core.model.IgResourceLoadPolicy;
 import org.apache.commons.lang3.Validate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
 import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
-import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
 import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseMetaType;
@@ -31,6 +34,8 @@ import nzi.fhir.validator.core.model.ValidationRequestContext;
 import nzi.fhir.validator.core.model.ValidationRequestOptions;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEMA_NAME;
 
@@ -40,26 +45,35 @@ import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEM
 public class FhirValidationService {
 
     private static final Logger logger = LogManager.getLogger(FhirValidationService.class);
-    private final static HashMap<ValidatorIdentity, FhirValidationService> validationServicesStorage;
+    private final static Map<ValidatorIdentity, FhirValidationService> validationServicesStorage;
+    // Validators dropped by the heap budget, kept with what is needed to rebuild them on demand
+    private final static Map<ValidatorIdentity, EvictedValidator> evictedValidators;
     private final ValidatorIdentity id;
     private final Vertx vertx; // Mandatory
     private final FhirContext fhirContext; // Mandatory
-    private final FhirValidator validator; // Mandatory Cached validator
+    private volatile FhirValidator validator; // Mandatory Cached validator, replaced when the IG set is rebuilt
     private final IParser fhirJsonParser;
     private final IParser fhirXMLParser;
+    private final IgPackageService igPackageService;
+    private final ProfileService profileService;
+    private volatile long lastAccessedAt;
+    // Changes of the IG set are applied one after the other
+    private Future<Void> pendingIgChange = Future.succeededFuture();
     static {
-        validationServicesStorage = new HashMap<>();
+        validationServicesStorage = new ConcurrentHashMap<>();
+        evictedValidators = new ConcurrentHashMap<>();
     }
-    private FhirValidationService(Vertx vertx, FhirContext fhirContext, FhirValidator validator){
-        this(vertx, fhirContext, validator, ValidatorIdentity.createFromFhirVersion(SupportedFhirVersion.fromVersionNumber(fhirContext.getVersion().getVersion().getFhirVersionString())));
-    }
-    private FhirValidationService(Vertx vertx, FhirContext fhirContext, FhirValidator validator, ValidatorIdentity validatorIdentity) {
+    private FhirValidationService(Vertx vertx, FhirContext fhirContext, FhirValidator validator, ValidatorIdentity validatorIdentity,
+                                  IgPackageService igPackageService, ProfileService profileService) {
         this.id = validatorIdentity;
         this.vertx = vertx;
         this.fhirContext = fhirContext;
         this.validator = validator;
         this.fhirJsonParser = fhirContext.newJsonParser();
         this.fhirXMLParser = fhirContext.newXmlParser();
+        this.igPackageService = igPackageService;
+        this.profileService = profileService;
+        this.lastAccessedAt = System.currentTimeMillis();
     }
 
     public static Future<FhirValidationService> create(Vertx vertx, SupportedFhirVersion fhirVersion, ProfileService profileService){
@@ -85,36 +99,54 @@ public class FhirValidationService {
 
         return createValidator(vertx, validatorIdentity ,igPackageService, profileService, igPackageIdentity)
                 .map(validator -> {
-                    FhirValidationService validationService = new FhirValidationService(vertx, fhirContext, validator, validatorIdentity);
+                    FhirValidationService validationService = new FhirValidationService(vertx, fhirContext, validator, validatorIdentity, igPackageService, profileService);
                     put(validatorIdentity, validationService);
+                    evictedValidators.remove(validatorIdentity);
                     return validationService;
         });
     }
+
+    /**
+     * Returns the registered validator, rebuilding it from its persisted state if it was evicted by the heap budget.
+     * @return the validator or null if it has never been created
+     */
+    public static Future<FhirValidationService> getOrRestore(ValidatorIdentity validatorIdentity, Pool pgPool) {
+        FhirValidationService service = get(validatorIdentity);
+        if (service != null) {
+            return Future.succeededFuture(service);
+        }
+        EvictedValidator evicted = evictedValidators.get(validatorIdentity);
+        if (evicted == null) {
+            return Future.succeededFuture();
+        }
+        logger.info("Restoring evicted validator: {}/{}", validatorIdentity.getId(), validatorIdentity.getFhirVersion().name());
+        return create(evicted.vertx(), validatorIdentity, evicted.igPackageService(), evicted.profileService())
+                .compose(restored -> restored.syncPreviousStateFromDatabase(pgPool).map(v -> restored));
+    }
+
+    /**
+     * Drops the validator and all parsed resources it holds. Its state stays in the database, so
+     * {@link #getOrRestore(ValidatorIdentity, Pool)} can rebuild it later.
+     */
+    public static void evict(ValidatorIdentity validatorIdentity) {
+        FhirValidationService service = validationServicesStorage.remove(validatorIdentity);
+        CustomNpmPackageValidationSupport.removeValidationSupport(validatorIdentity);
+        if (service != null) {
+            evictedValidators.put(validatorIdentity, new EvictedValidator(service.vertx, service.igPackageService, service.profileService));
+        }
+    }
     private static Future<FhirValidator> createValidator(Vertx vertx,  ValidatorIdentity validatorIdentity, IgPackageService igPackageService, ProfileService profileService) {
         return createValidator(vertx, validatorIdentity, igPackageService, profileService, null);
     }
     private static Future<FhirValidator> createValidator(Vertx vertx, ValidatorIdentity validatorIdentity, IgPackageService igPackageService, ProfileService profileService, IGPackageIdentity igPackageIdentity) {
 
-        return Future.future(promise -> {
+        // The profile URLs route lookups to the custom profiles
+        return profileService.loadProfileUrls().compose(loaded -> Future.future(promise -> {
             vertx.executeBlocking(blockingPromise -> {
                 try {
                     FhirContext fhirContext = FhirContextLoader.getInstance().getContext(validatorIdentity.getFhirVersion());
-                    ValidationSupportChain validationSupportChain = new ValidationSupportChain();
-                    // Create base validation supports
-                    DefaultProfileValidationSupport defaultSupport = new DefaultProfileValidationSupport(fhirContext);
-                    InMemoryTerminologyServerValidationSupport inMemoryTerminology = new InMemoryTerminologyServerValidationSupport(fhirContext);
-                    CommonCodeSystemsTerminologyService commonTerminology = new CommonCodeSystemsTerminologyService(fhirContext);
-                    
-                    validationSupportChain.addValidationSupport(defaultSupport);
-                    validationSupportChain.addValidationSupport(inMemoryTerminology);
-                    validationSupportChain.addValidationSupport(commonTerminology);
-                    validationSupportChain.addValidationSupport(new CustomProfileValidationSupport(fhirContext, profileService));
-                    
                     CustomNpmPackageValidationSupport npmPackageValidationSupport = CustomNpmPackageValidationSupport.getValidationSupport(validatorIdentity, igPackageService);
-                    validationSupportChain.addValidationSupport(npmPackageValidationSupport);
-                    FhirInstanceValidator instanceValidator = new FhirInstanceValidator(validationSupportChain);
-                    FhirValidator validator = fhirContext.newValidator();
-                    validator.registerValidatorModule(instanceValidator);
+                    FhirValidator validator = buildValidator(fhirContext, igPackageService, profileService, npmPackageValidationSupport);
 
                     if (igPackageIdentity != null && !igPackageIdentity.getName().equals(IGPackageIdentity.IG_DEFAULT_PACKAGE_NAME)) {
                         Validate.notNull(igPackageService, "IG service must not be null");
@@ -144,45 +176,185 @@ public class FhirValidationService {
                 } catch (Exception e) {
                     blockingPromise.fail(e);
                 }
-            }, promise);
-        });
+            }, false, promise);
+        }));
     }
 
-    public Future<JsonObject> validate(String content, ValidationRequestContext validationRequestContext) {
-        return vertx.executeBlocking(promise -> {
-            try {
-                IBaseResource parsedResource;
-                // Parse the resource
-                if (validationRequestContext.getContentType() == SupportedContentType.JSON ||
-                        validationRequestContext.getContentType() == SupportedContentType.FHIR_JSON) {
-                    parsedResource = fhirJsonParser.parseResource(content);
-                } else {
-                    parsedResource = fhirXMLParser.parseResource(content);
+    // Namespaces of the resources of the core specification
+    private static final List<String> CORE_CANONICAL_PREFIXES = List.of("http://hl7.org/fhir/", "http://terminology.hl7.org/");
+    private static final List<String> COMMON_CODE_SYSTEMS_CANONICALS = List.of(
+            CommonCodeSystemsTerminologyService.LANGUAGES_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.LANGUAGES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.ALL_LANGUAGES_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.MIMETYPES_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.MIMETYPES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.CURRENCIES_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.CURRENCIES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.COUNTRIES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.UCUM_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.UCUM_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.USPS_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.USPS_CODESYSTEM_URL);
+
+    private static FhirValidator buildValidator(FhirContext fhirContext, IgPackageService igPackageService, ProfileService profileService,
+                                                CustomNpmPackageValidationSupport npmPackageValidationSupport) {
+        IndexedValidationSupportChain validationSupportChain = new IndexedValidationSupportChain(fhirContext,
+                () -> npmPackageValidationSupport.getRevision() + ProfileService.getRevision());
+        // Create base validation supports
+        DefaultProfileValidationSupport defaultSupport = new DefaultProfileValidationSupport(fhirContext);
+        InMemoryTerminologyServerValidationSupport inMemoryTerminology = new InMemoryTerminologyServerValidationSupport(fhirContext);
+        CommonCodeSystemsTerminologyService commonTerminology = new CommonCodeSystemsTerminologyService(fhirContext);
+
+        validationSupportChain.addValidationSupport(defaultSupport, CORE_CANONICAL_PREFIXES);
+        validationSupportChain.addValidationSupport(inMemoryTerminology);
+        validationSupportChain.addValidationSupport(commonTerminology);
+        validationSupportChain.getRoutingTable().addExact(commonTerminology, COMMON_CODE_SYSTEMS_CANONICALS);
+        // Owns the URLs of the registered profiles and comes before the IG packages, so a registered
+        // profile takes precedence over an IG resource with the same URL
+        validationSupportChain.addValidationSupport(new CustomProfileValidationSupport(fhirContext, profileService));
+        // Routed by the canonical URLs of its resources, gathered as IG packages are loaded
+        validationSupportChain.addValidationSupport(npmPackageValidationSupport);
+        // The only support asked for URLs no support owns, e.g. resources of the included IG packages the load policy left out
+        if (igPackageService != null && IgResourceIndexValidationSupport.isEnabled()) {
+            validationSupportChain.setFallbackValidationSupport(new IgResourceIndexValidationSupport(fhirContext, igPackageService,
+                    npmPackageValidationSupport::getIncludedIgPackages, npmPackageValidationSupport::getRevision));
+        }
+        // Shares the parsed FHIRPath invariants with the validators of the same FHIR version
+        FhirInstanceValidator instanceValidator = new FhirPathCachingInstanceValidator(validationSupportChain);
+        FhirValidator validator = fhirContext.newValidator();
+        validator.registerValidatorModule(instanceValidator);
+        return validator;
+    }
+
+    /**
+     * Rebuilds the validator with exactly the given IG packages (and their dependencies) in a new
+     * validation support, then swaps it in. Validations keep using the previous validator until the
+     * new one is ready; the resources of IG packages left out are released with the previous support.
+     */
+    private Future<Void> rebuild(List<IGPackageIdentity> igPackageIdentities, IgInclusionJob job) {
+        long startedAt = System.currentTimeMillis();
+        CustomNpmPackageValidationSupport npmPackageValidationSupport = new CustomNpmPackageValidationSupport(fhirContext, igPackageService, id);
+        npmPackageValidationSupport.setResourceLoadPolicy(getResourceLoadPolicy());
+        if (job != null) {
+            job.markLoading(npmPackageValidationSupport::getIncludedIgPackages);
+        }
+        ArrayList<String> resolvedDependencies = new ArrayList<>();
+        Future<Void> loaded = Future.succeededFuture();
+        // In the original order, so later packages still win on duplicate canonical URLs
+        for (IGPackageIdentity igPackageIdentity : igPackageIdentities) {
+            loaded = loaded.compose(v -> {
+                if (npmPackageValidationSupport.getIncludedIgPackages().contains(igPackageIdentity)) {
+                    return Future.succeededFuture();
                 }
-                // Add profiles if specified in options
-                if (validationRequestContext.getValidationOptions().getProfilesToValidate() != null && 
-                    !validationRequestContext.getValidationOptions().getProfilesToValidate().isEmpty() &&
-                    parsedResource instanceof IAnyResource) {
-                    addProfilesToResource(parsedResource, validationRequestContext.getValidationOptions());
+                resolvedDependencies.add(igPackageIdentity.getName());
+                return npmPackageValidationSupport.loadIgPackageFromDatabase(igPackageIdentity.getName(), igPackageIdentity.getVersion(), resolvedDependencies);
+            });
+        }
+        return loaded.compose(v -> install(npmPackageValidationSupport, startedAt, job));
+    }
+
+    /**
+     * Builds a validator over the support and swaps both in at once.
+     */
+    private Future<Void> install(CustomNpmPackageValidationSupport npmPackageValidationSupport, long startedAt, IgInclusionJob job) {
+        CustomNpmPackageValidationSupport previousSupport = CustomNpmPackageValidationSupport.getValidationSupport(id);
+        if (job != null) {
+            job.markBuilding();
+        }
+        return vertx.executeBlocking(() -> buildValidator(fhirContext, igPackageService, profileService, npmPackageValidationSupport), false)
+                .map(rebuilt -> {
+                    CustomNpmPackageValidationSupport.putValidationSupport(id, npmPackageValidationSupport);
+                    this.validator = rebuilt;
+                    logger.info("Validator {}/{} rebuilt with {} IG package(s) in {} ms, estimated heap {} -> {} bytes",
+                            id.getId(), id.getFhirVersion().name(), npmPackageValidationSupport.getIncludedIgPackages().size(),
+                            System.currentTimeMillis() - startedAt,
+                            previousSupport != null ? previousSupport.getEstimatedHeapBytes() : 0,
+                            npmPackageValidationSupport.getEstimatedHeapBytes());
+                    return null;
+                });
+    }
+
+    /**
+     * Runs a change of the IG set once the previous changes are done.
+     */
+    private synchronized Future<Void> enqueueIgChange(Supplier<Future<Void>> change) {
+        Future<Void> next = pendingIgChange.transform(ar -> change.get());
+        pendingIgChange = next;
+        return next;
+    }
+
+    /**
+     * Removes every version of an IG package and rebuilds the validator without its resources.
+     * Packages still required by another included package are loaded again as its dependencies.
+     * @return the removed IG packages, empty if none was included
+     */
+    public Future<List<IGPackageIdentity>> removeNpmIgPackage(String igPackageName) {
+        lastAccessedAt = System.currentTimeMillis();
+        List<IGPackageIdentity> removed = new ArrayList<>();
+        return enqueueIgChange(() -> {
+            List<IGPackageIdentity> remaining = new ArrayList<>();
+            for (IGPackageIdentity igPackageIdentity : getIncludedIgPackagesListForNpmPackageValidation()) {
+                if (igPackageIdentity.getName().equals(igPackageName)) {
+                    removed.add(igPackageIdentity);
+                } else {
+                    remaining.add(igPackageIdentity);
                 }
-                // Use the cached validator
-                ValidationResult result = validator.validateWithResult(parsedResource);
-                promise.complete(convertToJson(result));
-            } catch (ca.uhn.fhir.parser.DataFormatException e) {
-                logger.debug("Invalid FHIR formatted data: {}", e.getMessage(), e);
-                JsonObject error =  new JsonObject()
-                        .put("valid", false)
-                        .put("messages", new JsonArray().add(new JsonObject().put("severity", "error").put("message", e.getMessage()).put("location", "")));
-                promise.complete(error);
             }
-        });
+            if (removed.isEmpty()) {
+                return Future.succeededFuture();
+            }
+            logger.info("Removing IG package {} from validator {}/{}", igPackageName, id.getId(), id.getFhirVersion().name());
+            return rebuild(remaining, null);
+        }).map(v -> removed);
     }
+
+    /**
+     * Parses the resource, prefetches the custom profiles it declares, e.g. from the {@code profile}
+     * parameter, and only then validates it, so a cold profile cache behaves like a warm one.
+     */
+    public Future<JsonObject> validate(String content, ValidationRequestContext validationRequestContext) {
+        lastAccessedAt = System.currentTimeMillis();
+        return vertx.<IBaseResource>executeBlocking(() -> parse(content, validationRequestContext), false)
+                .compose(parsedResource -> profileService.prefetchProfiles(ProfileService.declaredProfiles(fhirContext, parsedResource))
+                        .compose(v -> vertx.executeBlocking(() -> {
+                            // Use the cached validator
+                            ValidationResult result = validator.validateWithResult(parsedResource);
+                            return convertToJson(result);
+                        })))
+                .recover(e -> {
+                    if (e instanceof ca.uhn.fhir.parser.DataFormatException) {
+                        logger.debug("Invalid FHIR formatted data: {}", e.getMessage(), e);
+                        return Future.succeededFuture(new JsonObject()
+                                .put("valid", false)
+                                .put("messages", new JsonArray().add(new JsonObject().put("severity", "error").put("message", e.getMessage()).put("location", ""))));
+                    }
+                    return Future.failedFuture(e);
+                });
+    }
+
+    private IBaseResource parse(String content, ValidationRequestContext validationRequestContext) {
+        IBaseResource parsedResource;
+        if (validationRequestContext.getContentType() == SupportedContentType.JSON ||
+                validationRequestContext.getContentType() == SupportedContentType.FHIR_JSON) {
+            parsedResource = fhirJsonParser.parseResource(content);
+        } else {
+            parsedResource = fhirXMLParser.parseResource(content);
+        }
+        // Add profiles if specified in options
+        if (validationRequestContext.getValidationOptions().getProfilesToValidate() != null &&
+            !validationRequestContext.getValidationOptions().getProfilesToValidate().isEmpty() &&
+            parsedResource instanceof IAnyResource) {
+            addProfilesToResource(parsedResource, validationRequestContext.getValidationOptions());
+        }
+        return parsedResource;
+    }
+
     public Future<Void> saveSateToDatabase(Pool pgPool){
         String saveSQL = """
-                INSERT INTO %s.fhir_validator_logs (validator_id, fhir_version, included_ig_packages, included_profiles, is_active)
-                    VALUES ($1, $2, $3, $4, $5)
+                INSERT INTO %s.fhir_validator_logs (validator_id, fhir_version, included_ig_packages, included_profiles, is_active, resource_load_policy)
+                    VALUES ($1, $2, $3, $4, $5, $6)
                 ON CONFLICT (validator_id, fhir_version)
-                DO UPDATE SET included_ig_packages = $3, included_profiles = $4, is_active = $5
+                DO UPDATE SET included_ig_packages = $3, included_profiles = $4, is_active = $5, resource_load_policy = $6, updated_at = NOW()
                 """.formatted(DB_POSTGRES_SCHEMA_NAME);
         logger.debug("Saving state to database: {}", saveSQL);
         return pgPool.preparedQuery(saveSQL)
@@ -194,13 +366,14 @@ public class FhirValidationService {
                             return "%s#%s".formatted(igPackageIdentity.getName(), igPackageIdentity.getVersion());
                         }).toArray(),
                         new ArrayList<String>().toArray(),
-                        true
+                        true,
+                        getResourceLoadPolicy().toJson()
                 )).mapEmpty();
     }
 
     public Future<Void> syncPreviousStateFromDatabase(Pool pgPool){
         List<IGPackageIdentity> includedIgPackages = getIncludedIgPackagesListForNpmPackageValidation();
-        String query = "SELECT validator_id, fhir_version, included_ig_packages, included_profiles, is_active FROM %s.fhir_validator_logs WHERE validator_id=$1 AND fhir_version=$2".formatted(DB_POSTGRES_SCHEMA_NAME);
+        String query = "SELECT validator_id, fhir_version, included_ig_packages, included_profiles, is_active, resource_load_policy FROM %s.fhir_validator_logs WHERE validator_id=$1 AND fhir_version=$2".formatted(DB_POSTGRES_SCHEMA_NAME);
         return pgPool.preparedQuery(query)
                 .execute(Tuple.of(id.getId(), id.getFhirVersion().name()))
                 .compose(rows -> {
@@ -210,30 +383,177 @@ public class FhirValidationService {
                     }
                     Row row = rows.iterator().next();
                     SupportedFhirVersion fhirVersion = SupportedFhirVersion.valueOf(row.getString("fhir_version"));
-                    List<Future<Void>> addNpmIgPackageFutures = new ArrayList<>();
+                    // The policy must be in place before the IG packages are loaded again
+                    Object resourceLoadPolicy = row.getValue("resource_load_policy");
+                    if (resourceLoadPolicy instanceof JsonObject policyJson) {
+                        setResourceLoadPolicy(IgResourceLoadPolicy.fromJson(policyJson));
+                    }
+                    List<IGPackageIdentity> previousIgPackages = new ArrayList<>();
                     for (String idVersion : row.getArrayOfStrings("included_ig_packages")) {
                         String[] parts = idVersion.split("#");
-                        IGPackageIdentity igPackageIdentity = new IGPackageIdentity(parts[0], parts[1], fhirVersion);
-                        if (!includedIgPackages.contains(igPackageIdentity)) {
-                            addNpmIgPackageFutures.add(addNpmIgPackage(igPackageIdentity));
-                        } else {
-                            logger.debug("IG package: {}#{} is already included in this validator {}", igPackageIdentity.getName(), igPackageIdentity.getVersion(), id.toString());
+                        previousIgPackages.add(new IGPackageIdentity(parts[0], parts[1], fhirVersion));
+                    }
+                    if (previousIgPackages.isEmpty()) {
+                        return Future.succeededFuture();
+                    }
+                    return restoreFromSnapshot(pgPool, previousIgPackages).compose(restored -> {
+                        if (restored) {
+                            return Future.succeededFuture();
+                        }
+                        List<IGPackageIdentity> igPackageSet = new ArrayList<>(includedIgPackages);
+                        for (IGPackageIdentity igPackageIdentity : previousIgPackages) {
+                            if (!includedIgPackages.contains(igPackageIdentity)) {
+                                igPackageSet.add(igPackageIdentity);
+                            } else {
+                                logger.debug("IG package: {}#{} is already included in this validator {}", igPackageIdentity.getName(), igPackageIdentity.getVersion(), id.toString());
+                            }
                         }
+                        if (igPackageSet.size() > includedIgPackages.size()) {
+                            // Loaded together and switched to at once, rather than one validator per IG package
+                            return enqueueIgChange(() -> rebuild(igPackageSet, null))
+                                    .compose(v -> saveSnapshotToDatabase(pgPool));
+                        }
+                        return Future.succeededFuture();
+                    });
+                });
+    }
+
+    /**
+     * Restores the parsed IG resources from the stored snapshot, if it was taken for exactly the given IG set.
+     * @return true if the snapshot has been restored
+     */
+    private Future<Boolean> restoreFromSnapshot(Pool pgPool, List<IGPackageIdentity> igPackageIdentities) {
+        if (!isSnapshotEnabled()) {
+            return Future.succeededFuture(false);
+        }
+        String fingerprint = ValidatorSnapshot.fingerprint(igPackageIdentities, getResourceLoadPolicy());
+        String query = "SELECT snapshot FROM %s.fhir_validator_snapshots WHERE validator_id=$1 AND fhir_version=$2 AND fingerprint=$3".formatted(DB_POSTGRES_SCHEMA_NAME);
+        return pgPool.preparedQuery(query)
+                .execute(Tuple.of(id.getId(), id.getFhirVersion().name(), fingerprint))
+                .compose(rows -> {
+                    if (rows.size() == 0) {
+                        logger.info("No snapshot found for validator {} with fingerprint {}", id.getId(), fingerprint);
+                        return Future.succeededFuture(false);
                     }
-                    if (!addNpmIgPackageFutures.isEmpty()) {
-                        return CompositeFuture.all(new ArrayList<>(addNpmIgPackageFutures))
-                                .mapEmpty();
+                    byte[] bytes = rows.iterator().next().getBuffer("snapshot").getBytes();
+                    return vertx.executeBlocking(() -> {
+                        long startedAt = System.currentTimeMillis();
+                        ValidatorSnapshot snapshot = ValidatorSnapshot.fromBytes(bytes);
+                        CustomNpmPackageValidationSupport npmPackageValidationSupport = CustomNpmPackageValidationSupport.getValidationSupport(id);
+                        if (npmPackageValidationSupport == null) {
+                            return false;
+                        }
+                        npmPackageValidationSupport.restoreFromSnapshot(snapshot);
+                        logger.info("Validator {}/{} restored from snapshot in {} ms", id.getId(), id.getFhirVersion().name(), System.currentTimeMillis() - startedAt);
+                        return true;
+                    }, false);
+                })
+                .recover(throwable -> {
+                    if (throwable instanceof ValidatorHeapBudget.HeapBudgetExceededException) {
+                        return Future.failedFuture(throwable);
                     }
+                    // A broken or stale snapshot must never prevent the validator from being built
+                    logger.warn("Unable to restore validator {} from snapshot: {}", id.getId(), throwable.getMessage());
+                    return Future.succeededFuture(false);
+                });
+    }
+
+    /**
+     * Stores the parsed IG resources of this validator, keyed by its identity and the fingerprint of its IG set.
+     */
+    public Future<Void> saveSnapshotToDatabase(Pool pgPool) {
+        CustomNpmPackageValidationSupport npmPackageValidationSupport = CustomNpmPackageValidationSupport.getValidationSupport(id);
+        if (!isSnapshotEnabled() || npmPackageValidationSupport == null || npmPackageValidationSupport.getIncludedIgPackages().isEmpty()) {
+            return Future.succeededFuture();
+        }
+        String saveSQL = """
+                INSERT INTO %s.fhir_validator_snapshots (validator_id, fhir_version, fingerprint, snapshot)
+                    VALUES ($1, $2, $3, $4)
+                ON CONFLICT (validator_id, fhir_version)
+                DO UPDATE SET fingerprint = $3, snapshot = $4, created_at = NOW()
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+        return vertx.executeBlocking(() -> {
+                    ValidatorSnapshot snapshot = npmPackageValidationSupport.createSnapshot();
+                    return Map.entry(snapshot.getFingerprint(), snapshot.toBytes());
+                }, false)
+                .compose(entry -> pgPool.preparedQuery(saveSQL)
+                        .execute(Tuple.of(id.getId(), id.getFhirVersion().name(), entry.getKey(), Buffer.buffer(entry.getValue()))))
+                .onSuccess(rows -> logger.info("Snapshot saved for validator {}/{}", id.getId(), id.getFhirVersion().name()))
+                .<Void>mapEmpty()
+                .recover(throwable -> {
+                    logger.warn("Unable to save snapshot of validator {}: {}", id.getId(), throwable.getMessage(), throwable);
                     return Future.succeededFuture();
                 });
     }
+
+    /**
+     * Snapshots only hold parsed resources, so they are not taken while IG resources are loaded lazily:
+     * indexing a package again is cheaper than decoding a snapshot and keeps the unparsed resources available.
+     */
+    private static boolean isSnapshotEnabled() {
+        return Boolean.parseBoolean(ApplicationConfig.get("validator.snapshot.enabled", "true"))
+                && !CustomNpmPackageValidationSupport.isLazyLoadingEnabled();
+    }
+
     public Future<Void> addNpmIgPackage(IGPackageIdentity igPackageIdentity) {
+        return addNpmIgPackage(igPackageIdentity, null);
+    }
+
+    /**
+     * Includes an IG package. The package and its dependencies are loaded into a new validation
+     * support holding the resources of the already included packages, and the validator is switched
+     * to it only once it is complete, so validations never see a partially loaded IG set. A different
+     * version of an already included package replaces it, releasing the resources of the previous version.
+     * @param job reports the progress of the inclusion, may be null
+     */
+    public Future<Void> addNpmIgPackage(IGPackageIdentity igPackageIdentity, IgInclusionJob job) {
         // BBC
+        lastAccessedAt = System.currentTimeMillis();
+        return enqueueIgChange(() -> {
+            CustomNpmPackageValidationSupport npmPackageValidationSupport = CustomNpmPackageValidationSupport.getValidationSupport(id);
+            if (npmPackageValidationSupport == null) {
+                return Future.failedFuture("Unable to find validation support for validator: " + id.toString());
+            }
+            List<IGPackageIdentity> included = new ArrayList<>(npmPackageValidationSupport.getIncludedIgPackages());
+            if (included.contains(igPackageIdentity)) {
+                return Future.succeededFuture();
+            }
+            for (int i = 0; i < included.size(); i++) {
+                IGPackageIdentity previous = included.get(i);
+                if (previous.getName().equals(igPackageIdentity.getName()) && previous.getFhirVersion() == igPackageIdentity.getFhirVersion()
+                        && !previous.getVersion().equals(igPackageIdentity.getVersion())) {
+                    logger.info("Replacing IG package {} {} by {} in validator {}/{}", previous.getName(), previous.getVersion(),
+                            igPackageIdentity.getVersion(), id.getId(), id.getFhirVersion().name());
+                    included.set(i, igPackageIdentity);
+                    return rebuild(included, job);
+                }
+            }
+            long startedAt = System.currentTimeMillis();
+            CustomNpmPackageValidationSupport next = new CustomNpmPackageValidationSupport(fhirContext, igPackageService, id);
+            next.setResourceLoadPolicy(npmPackageValidationSupport.getResourceLoadPolicy());
+            next.includeIgPackagesOf(npmPackageValidationSupport);
+            if (job != null) {
+                job.markLoading(next::getIncludedIgPackages);
+            }
+            return next.loadIgPackageFromDatabase(igPackageIdentity.getName(), igPackageIdentity.getVersion())
+                    .compose(v -> install(next, startedAt, job));
+        });
+    }
+
+    public IgResourceLoadPolicy getResourceLoadPolicy() {
         CustomNpmPackageValidationSupport npmPackageValidationSupport = CustomNpmPackageValidationSupport.getValidationSupport(id);
-        if (npmPackageValidationSupport == null) {
-            return Future.failedFuture("Unable to find validation support for validator: " + id.toString());
+        return npmPackageValidationSupport != null ? npmPackageValidationSupport.getResourceLoadPolicy() : IgResourceLoadPolicy.defaults();
+    }
+
+    /**
+     * Sets the folders and resource types loaded from IG packages. IG packages that are already
+     * included keep the resources they were loaded with.
+     */
+    public void setResourceLoadPolicy(IgResourceLoadPolicy resourceLoadPolicy) {
+        CustomNpmPackageValidationSupport npmPackageValidationSupport = CustomNpmPackageValidationSupport.getValidationSupport(id);
+        if (npmPackageValidationSupport != null) {
+            npmPackageValidationSupport.setResourceLoadPolicy(resourceLoadPolicy);
         }
-        return npmPackageValidationSupport.loadIgPackageFromDatabase(igPackageIdentity.getName(), igPackageIdentity.getVersion());
     }
 
     public List<IGPackageIdentity> getIncludedIgPackagesListForNpmPackageValidation(){
@@ -244,6 +564,49 @@ public class FhirValidationService {
         }
         return npmPackageValidationSupport.getIncludedIgPackages();
     }
+    public ValidatorIdentity getId() {
+        return id;
+    }
+
+    public long getLastAccessedAt() {
+        return lastAccessedAt;
+    }
+
+    /**
+     * Estimated retained heap of this validator: the fixed base overhead plus the parsed IG resources.
+     * @return estimate in bytes
+     */
+    public long getEstimatedHeapBytes() {
+        long total = ValidatorHeapBudget.getInstance().getValidatorBaseEstimateBytes();
+        CustomNpmPackageValidationSupport npmPackageValidationSupport = CustomNpmPackageValidationSupport.getValidationSupport(id);
+        if (npmPackageValidationSupport != null) {
+            total += npmPackageValidationSupport.getEstimatedHeapBytes();
+        }
+        return total;
+    }
+
+    public JsonObject getMemoryReport() {
+        JsonArray igPackages = new JsonArray();
+        long supersededBytes = 0;
+        CustomNpmPackageValidationSupport npmPackageValidationSupport = CustomNpmPackageValidationSupport.getValidationSupport(id);
+        if (npmPackageValidationSupport != null) {
+            npmPackageValidationSupport.getIgPackageHeapEstimates().forEach((igPackageIdentity, estimate) ->
+                    igPackages.add(new JsonObject()
+                            .put("name", igPackageIdentity.getName())
+                            .put("version", igPackageIdentity.getVersion())
+                            .put("estimatedBytes", estimate)));
+            supersededBytes = npmPackageValidationSupport.getSupersededHeapEstimate();
+        }
+        return new JsonObject()
+                .put("validatorId", id.getId())
+                .put("fhirVersion", id.getFhirVersion().name())
+                .put("estimatedBytes", getEstimatedHeapBytes())
+                .put("baseEstimatedBytes", ValidatorHeapBudget.getInstance().getValidatorBaseEstimateBytes())
+                .put("supersededEstimatedBytes", supersededBytes)
+                .put("lastAccessedAt", lastAccessedAt)
+                .put("igPackages", igPackages);
+    }
+
     private JsonObject convertToJson(ValidationResult result) {
         JsonArray messages = new JsonArray();
         result.getMessages().forEach(msg ->
@@ -286,19 +649,24 @@ public class FhirValidationService {
     public static FhirValidationService get(ValidatorIdentity validatorIdentity) {
         return validationServicesStorage.get(validatorIdentity);
     }
+    public static Collection<FhirValidationService> getAll() {
+        return new ArrayList<>(validationServicesStorage.values());
+    }
     public static void put(ValidatorIdentity validatorIdentity, FhirValidationService validationService) {
-        if (validationServicesStorage.containsKey(validatorIdentity)) {
-            remove(validatorIdentity);
-        }
         validationServicesStorage.put(validatorIdentity, validationService);
     }
     public static void remove(ValidatorIdentity validatorIdentity) {
         validationServicesStorage.remove(validatorIdentity);
+        evictedValidators.remove(validatorIdentity);
     }
     public static void clear() {
         validationServicesStorage.clear();
+        evictedValidators.clear();
     }
     public static int size() {
         return validationServicesStorage.size();
     }
+
+    private record EvictedValidator(Vertx vertx, IgPackageService igPackageService, ProfileService profileService) {
+    }
 }
\ No newline at end of file
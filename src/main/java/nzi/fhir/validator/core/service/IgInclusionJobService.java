@@ -0,0 +1,94 @@
+package nzi.fhir.validator.core.service;
+
+import io.vertx.core.Future;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgInclusionJob;
+import nzi.fhir.validator.core.model.ValidatorIdentity;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Runs IG package inclusions as background jobs and keeps them for polling. Jobs are held in memory
+ * by the instance running them; finished jobs are dropped after {@code validator.jobs.retention.minutes}.
+ * While a job includes an IG package into a validator, submitting the same inclusion again returns
+ * that job instead of starting another one.
+ *
+ * @author Md Nazrul Islam
+ */
+public class IgInclusionJobService {
+    private static final Logger logger = LogManager.getLogger(IgInclusionJobService.class);
+    private static IgInclusionJobService instance;
+
+    private final Map<String, IgInclusionJob> jobs = new ConcurrentHashMap<>();
+    private final long retentionMillis;
+
+    IgInclusionJobService(long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+    }
+
+    public static synchronized IgInclusionJobService getInstance() {
+        if (instance == null) {
+            long retentionMinutes = Long.parseLong(ApplicationConfig.get("validator.jobs.retention.minutes", "60"));
+            instance = new IgInclusionJobService(retentionMinutes * 60_000L);
+        }
+        return instance;
+    }
+
+    /**
+     * Starts a job including the IG package into the validator, unless such a job is still running.
+     * @param work runs the inclusion, reporting its progress on the job
+     * @return the started or running job
+     */
+    public synchronized IgInclusionJob submit(ValidatorIdentity validatorIdentity, IGPackageIdentity igPackageIdentity,
+                                              Function<IgInclusionJob, Future<Void>> work) {
+        pruneFinishedJobs();
+        for (IgInclusionJob job : jobs.values()) {
+            if (!job.isFinished() && job.getValidatorIdentity().equals(validatorIdentity)
+                    && job.getIgPackageIdentity().equals(igPackageIdentity)) {
+                return job;
+            }
+        }
+        IgInclusionJob job = new IgInclusionJob(validatorIdentity, igPackageIdentity);
+        jobs.put(job.getId(), job);
+        logger.info("Job {} includes IG {}@{} into validator {}/{}", job.getId(), igPackageIdentity.getName(),
+                igPackageIdentity.getVersion(), validatorIdentity.getId(), validatorIdentity.getFhirVersion().name());
+        Future<Void> done;
+        try {
+            done = work.apply(job);
+        } catch (RuntimeException e) {
+            done = Future.failedFuture(e);
+        }
+        done.onComplete(ar -> {
+            if (ar.succeeded()) {
+                job.markSucceeded();
+                logger.info("Job {} succeeded: {}", job.getId(), job.toJson().getJsonObject("timings").encode());
+            } else {
+                job.markFailed(ar.cause());
+                logger.error("Job {} failed to include IG {}@{}", job.getId(), igPackageIdentity.getName(),
+                        igPackageIdentity.getVersion(), ar.cause());
+            }
+        });
+        return job;
+    }
+
+    /**
+     * @return the job, null if it is unknown or was dropped after finishing
+     */
+    public IgInclusionJob get(String jobId) {
+        return jobId != null ? jobs.get(jobId) : null;
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    private void pruneFinishedJobs() {
+        long expiredBefore = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(job -> job.isFinished() && job.getFinishedAt() <= expiredBefore);
+    }
+}
@@ -1,13 +1,16 @@
 package nzi.fhir.validator.core.service;
 
-import io.vertx.core.CompositeFuture;
+import ca.uhn.fhir.context.FhirContext;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
 import io.vertx.sqlclient.Tuple;
 import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgPackageName;
+import nzi.fhir.validator.core.npm.IgPackageConformanceBinary;
 import nzi.fhir.validator.core.npm.PostgresPackageCacheManager;
 import org.apache.commons.lang3.Validate;
 import org.apache.logging.log4j.LogManager;
@@ -16,9 +19,8 @@ import org.hl7.fhir.utilities.npm.NpmPackage;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
 import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEMA_NAME;
@@ -65,50 +67,77 @@ public class IgPackageService {
         if (igPackageBytes == null) {
             return Future.failedFuture("IG package bytes cannot be null");
         }
+        return registered(cacheManager.addPackageToCache(new ByteArrayInputStream(igPackageBytes)), loadDependencies);
+    }
 
-        NpmPackage npmPackage;
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(igPackageBytes)) {
-            npmPackage = NpmPackage.fromPackage(bis);
-        } catch (Exception e) {
-            logger.error("Invalid IG package: {}", e.getMessage(), e);
-            return Future.failedFuture("Invalid IG package: " + e.getMessage());
+    /**
+     * Registers a package tarball from a local file, e.g. an upload or a download, without reading it into memory.
+     */
+    public Future<NpmPackage> registerIg(Path tgzFile, boolean loadDependencies) {
+        if (tgzFile == null) {
+            return Future.failedFuture("IG package file cannot be null");
         }
+        return registered(cacheManager.addPackageToCache(tgzFile), loadDependencies);
+    }
 
-        JsonObject packageMeta = PostgresPackageCacheManager.createNpmPackageMeta(npmPackage);
-        String[] dependenciesArray = Optional.ofNullable(npmPackage.dependencies())
-            .map(deps -> deps.toArray(String[]::new))
-            .orElse(new String[0]);
-
-        return pgPool.withTransaction(client -> 
-            client.preparedQuery(
-                // Consider using bind parameter for schema name
-                "INSERT INTO %s.fhir_implementation_guides ".formatted(DB_POSTGRES_SCHEMA_NAME) +
-                "(ig_package_id, ig_package_version, ig_package_meta, content_raw, dependencies) " +
-                "VALUES ($1, $2, $3, $4, $5) " +
-                "ON CONFLICT (ig_package_id, ig_package_version) DO UPDATE SET " +
-                "ig_package_meta = $3, content_raw = $4, dependencies = $5"
-            )
-            .execute(Tuple.of(
-                npmPackage.name(),
-                npmPackage.version(),
-                packageMeta.encode(),
-                igPackageBytes,
-                dependenciesArray
-            ))
-            .map(rowSet -> npmPackage)
-        )
+    /**
+     * Registers a package tarball from a local file whose SHA-256 has already been computed.
+     */
+    public Future<NpmPackage> registerIg(Path tgzFile, String contentHash, boolean loadDependencies) {
+        if (tgzFile == null || contentHash == null) {
+            return Future.failedFuture("IG package file and content hash cannot be null");
+        }
+        return registered(cacheManager.addPackageToCache(tgzFile, contentHash), loadDependencies);
+    }
+
+    /**
+     * Registers the tarballs below the configured local package directory.
+     *
+     * @param directory optional directory to import, which must resolve inside the local package directory
+     */
+    public Future<JsonObject> importIgs(String directory) {
+        Path importDirectory;
+        try {
+            importDirectory = resolveImportDirectory(cacheManager.getPackageServerConfig().getLocalDirectory(), directory);
+        } catch (IllegalArgumentException e) {
+            return Future.failedFuture(e);
+        }
+        return cacheManager.importPackages(importDirectory)
+                .onFailure(e -> logger.error("Failed to import IGs from {}: {}", importDirectory, e.getMessage()));
+    }
+
+    /**
+     * Callers only choose a directory below the local package directory, never any other server side path.
+     */
+    static Path resolveImportDirectory(String localDirectory, String directory) {
+        if (localDirectory == null || localDirectory.isEmpty()) {
+            throw new IllegalArgumentException("No local package directory configured");
+        }
+        Path root = Path.of(localDirectory).toAbsolutePath().normalize();
+        if (directory == null || directory.isEmpty()) {
+            return root;
+        }
+        Path importDirectory = root.resolve(directory).toAbsolutePath().normalize();
+        if (!importDirectory.startsWith(root)) {
+            throw new IllegalArgumentException("Directory is outside of the local package directory: " + directory);
+        }
+        return importDirectory;
+    }
+
+    private Future<NpmPackage> registered(Future<NpmPackage> stored, boolean loadDependencies) {
+        return stored
+        .recover(e -> {
+            logger.error("Invalid IG package: {}", e.getMessage(), e);
+            return Future.failedFuture("Invalid IG package: " + e.getMessage());
+        })
         .compose(registeredPackage -> {
-            logger.info("Registered IG to PostgresSQL: {}#{}", npmPackage.name(), npmPackage.version());
-            
-            if (!loadDependencies || npmPackage.dependencies().isEmpty()) {
+            logger.info("Registered IG to PostgresSQL: {}#{}", registeredPackage.name(), registeredPackage.version());
+
+            if (!loadDependencies || registeredPackage.dependencies().isEmpty()) {
                 return Future.succeededFuture(registeredPackage);
             }
 
-            List<Future<?>> dependencyFutures = npmPackage.dependencies().stream()
-                .map(dependency -> cacheManager.loadPackage(dependency, false, true))
-                .collect(Collectors.toList());
-
-            return CompositeFuture.all(new ArrayList<>(dependencyFutures))
+            return cacheManager.resolveDependencies(registeredPackage)
                 .transform(ar -> {
                     if (ar.failed()) {
                         logger.error("Failed to fetch dependencies: {}", ar.cause().getMessage());
@@ -116,8 +145,7 @@ public class IgPackageService {
                     return Future.succeededFuture(registeredPackage);
                 });
         })
-        .onFailure(e -> logger.error("Failed to register IG: {}#{} - {}", 
-            npmPackage.name(), npmPackage.version(), e.getMessage()));
+        .onFailure(e -> logger.error("Failed to register IG: {}", e.getMessage()));
     }
 
     public Future<NpmPackage> loadIgPackage(String name, String version) {
@@ -129,20 +157,47 @@ public class IgPackageService {
                     name, version, e.getMessage()));
     }
 
+    /**
+     * @param fhirContext context of the validator loading the package
+     * @return the parsed conformance resources stored with the package, null if it has no readable binary form
+     */
+    /**
+     * Loads an IG package again, bypassing the parsed copy held in memory, e.g. once the extracted
+     * files it points to have been deleted.
+     */
+    public Future<NpmPackage> reloadIgPackage(String name, String version) {
+        if (name == null || version == null) {
+            return Future.failedFuture("IG name and version cannot be null");
+        }
+        return cacheManager.reloadPackage(new IgPackageName(name, version))
+                .onFailure(e -> logger.error("Failed to reload IG package {}#{}: {}",
+                    name, version, e.getMessage()));
+    }
+
+    public Future<List<IgPackageConformanceBinary.Entry>> loadConformanceBinary(String name, String version, FhirContext fhirContext) {
+        return cacheManager.getConformanceBinary().read(new IgPackageName(name, version), fhirContext)
+                .recover(e -> {
+                    logger.warn("Unable to read the binary form of IG package {}#{}: {}", name, version, e.getMessage());
+                    return Future.succeededFuture(null);
+                });
+    }
+
     public Future<JsonObject> getDependencyGraph(String name, String version) {
         if (name == null || version == null) {
             return Future.failedFuture("IG name and version cannot be null");
         }
 
         return pgPool.preparedQuery(
-            "SELECT dependencies FROM %s.fhir_implementation_guides ".formatted(DB_POSTGRES_SCHEMA_NAME) +
+            "SELECT dependencies, resolved_dependencies FROM %s.fhir_implementation_guides ".formatted(DB_POSTGRES_SCHEMA_NAME) +
             "WHERE ig_package_id = $1 AND ig_package_version = $2"
         )
         .execute(Tuple.of(name, version))
         .map(rows -> {
             JsonArray deps = new JsonArray();
+            Object resolved = null;
             if (rows.size() > 0) {
-                Object[] dependencies = (Object[]) rows.iterator().next().getValue("dependencies");
+                Row row = rows.iterator().next();
+                Object[] dependencies = (Object[]) row.getValue("dependencies");
                 if (dependencies != null) {
                     for (Object dep : dependencies) {
                         if (dep instanceof String) {
@@ -150,16 +205,39 @@ public class IgPackageService {
                         }
                     }
                 }
+                resolved = row.getJson("resolved_dependencies");
             }
             return new JsonObject()
                     .put("name", name)
                     .put("version", version)
-                    .put("dependencies", deps);
+                    .put("dependencies", deps)
+                    .put("resolved", resolved);
         })
         .onFailure(e -> logger.error("Failed to get dependency graph for {}#{}: {}", 
             name, version, e.getMessage()));
     }
 
+    /**
+     * Resolves a single conformance resource of the registered IG packages by canonical URL, without
+     * loading the package that provides it.
+     */
+    public Future<JsonObject> findResource(String url, String version) {
+        if (url == null || url.isEmpty()) {
+            return Future.failedFuture("Canonical URL cannot be empty");
+        }
+        return cacheManager.getResourceIndex().find(url, version);
+    }
+
+    /**
+     * Like {@link #findResource(String, String)}, but only among the resources of the given IG packages.
+     */
+    public Future<JsonObject> findResource(String url, String version, List<IgPackageName> igPackageNames) {
+        if (url == null || url.isEmpty()) {
+            return Future.failedFuture("Canonical URL cannot be empty");
+        }
+        return cacheManager.getResourceIndex().find(url, version, igPackageNames);
+    }
+
     public Future<JsonObject> generateConformanceReport(String name, String version) {
         if (name == null || version == null) {
             return Future.failedFuture("IG name and version cannot be null");
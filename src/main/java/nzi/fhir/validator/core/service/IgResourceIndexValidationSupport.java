@@ -0,0 +1,140 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Fallback of the validation support chain for canonical URLs no support owns: resolves a canonical
+ * resource from the exploded resources of the IG packages included in the validator
+ * ({@code fhir_ig_resources}), e.g. one of a type or folder the resource load policy leaves out,
+ * and parses just that resource.
+ * <p>
+ * Lookups are remembered, missing ones too, until the included IG packages change. Like
+ * {@link CustomProfileValidationSupport}, a lookup is waited for on worker threads only, up to
+ * {@code validator.resources.fetchTimeoutMs}.
+ *
+ * @author Md Nazrul Islam
+ */
+public class IgResourceIndexValidationSupport extends BaseValidationSupport {
+    private static final Logger logger = LogManager.getLogger(IgResourceIndexValidationSupport.class);
+    private static final int MAX_ENTRIES = 10_000;
+    private final IgPackageService igPackageService;
+    private final Supplier<List<IGPackageIdentity>> includedIgPackages;
+    private final LongSupplier revision;
+    private final long fetchTimeoutMillis;
+    private final Cache<String, Optional<IBaseResource>> resources = Caffeine.newBuilder().maximumSize(MAX_ENTRIES).build();
+    private volatile long cachedRevision;
+
+    /**
+     * @param includedIgPackages IG packages the resources are looked up in
+     * @param revision changes whenever the included IG packages do
+     */
+    public IgResourceIndexValidationSupport(FhirContext ctx, IgPackageService igPackageService,
+                                            Supplier<List<IGPackageIdentity>> includedIgPackages, LongSupplier revision) {
+        super(ctx);
+        this.igPackageService = igPackageService;
+        this.includedIgPackages = includedIgPackages;
+        this.revision = revision;
+        this.cachedRevision = revision.getAsLong();
+        this.fetchTimeoutMillis = Long.parseLong(ApplicationConfig.get("validator.resources.fetchTimeoutMs", "5000"));
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(ApplicationConfig.get("validator.resources.indexFallback", "true"));
+    }
+
+    @Override
+    public IBaseResource fetchStructureDefinition(String url) {
+        return fetch("StructureDefinition", url);
+    }
+
+    @Override
+    public IBaseResource fetchValueSet(String url) {
+        return fetch("ValueSet", url);
+    }
+
+    @Override
+    public IBaseResource fetchCodeSystem(String url) {
+        return fetch("CodeSystem", url);
+    }
+
+    @Override
+    public <T extends IBaseResource> T fetchResource(Class<T> resourceType, String url) {
+        IBaseResource resource = lookup(url);
+        return resourceType != null && resourceType.isInstance(resource) ? resourceType.cast(resource) : null;
+    }
+
+    private IBaseResource fetch(String resourceType, String url) {
+        IBaseResource resource = lookup(url);
+        return resource != null && resourceType.equals(getFhirContext().getResourceType(resource)) ? resource : null;
+    }
+
+    private IBaseResource lookup(String url) {
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        long currentRevision = revision.getAsLong();
+        if (currentRevision != cachedRevision) {
+            resources.invalidateAll();
+            cachedRevision = currentRevision;
+        }
+        Optional<IBaseResource> cached = resources.getIfPresent(url);
+        if (cached != null) {
+            return cached.orElse(null);
+        }
+        List<IgPackageName> igPackageNames = includedIgPackages.get().stream()
+                .map(igPackageIdentity -> new IgPackageName(igPackageIdentity.getName(), igPackageIdentity.getVersion()))
+                .toList();
+        if (igPackageNames.isEmpty()) {
+            return null;
+        }
+        try {
+            JsonObject json = await(url, igPackageService.findResource(url, null, igPackageNames));
+            IBaseResource resource = json != null ? getFhirContext().newJsonParser().parseResource(json.encode()) : null;
+            if (resource != null) {
+                logger.debug("Resolved {} from the resource index of the included IG packages", url);
+            }
+            resources.put(url, Optional.ofNullable(resource));
+            return resource;
+        } catch (Exception e) {
+            // Not remembered, the next lookup tries again
+            logger.warn("Unable to resolve {} from the resource index: {}", url, e.getMessage());
+            return null;
+        }
+    }
+
+    private JsonObject await(String url, Future<JsonObject> lookup) throws Exception {
+        if (lookup.failed()) {
+            throw new IllegalStateException(lookup.cause().getMessage(), lookup.cause());
+        }
+        if (lookup.isComplete()) {
+            return lookup.result();
+        }
+        if (Context.isOnEventLoopThread()) {
+            throw new IllegalStateException("Cannot wait for " + url + " on the event loop");
+        }
+        try {
+            return lookup.toCompletionStage().toCompletableFuture().get(fetchTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new TimeoutException("Timed out after " + fetchTimeoutMillis + " ms");
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.util.FhirTerser;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Validation support chain which resolves canonical resources through a hash index keyed by
+ * {@code url} and {@code url|version}, rather than asking each support in turn.
+ * <p>
+ * A versioned lookup only resolves to a resource of that version: when the first support answering
+ * ignores the version, every support is asked for the exact version, and supports only knowing the
+ * unversioned URL are asked for that. So IG packages providing several versions of the same canonical
+ * resolve deterministically. Resources are indexed once resolved, the parsed resources of the NPM
+ * package support are indexed up front by {@code url|version}. The index is dropped whenever the
+ * revision of the supports changes, i.e. an IG package or a profile is added.
+ * <p>
+ * Lookups missing the index are routed by a {@link CanonicalRoutingTable}: only the supports owning
+ * the URL are asked, and their answer is final, even if none of them provides the resource. URLs
+ * without a known owner only go to the {@link #setFallbackValidationSupport fallback support}, the
+ * chain is never walked for them. The canonical URLs of the supports implementing
+ * {@link CanonicalUrlOwner} are gathered whenever the revision changes.
+ *
+ * @author Md Nazrul Islam
+ */
+public class IndexedValidationSupportChain extends ValidationSupportChain {
+    private static final Logger logger = LogManager.getLogger(IndexedValidationSupportChain.class);
+    private static final String STRUCTURE_DEFINITION = "StructureDefinition";
+    private static final String VALUE_SET = "ValueSet";
+    private static final String CODE_SYSTEM = "CodeSystem";
+
+    private final FhirContext fhirContext;
+    private final LongSupplier revision;
+    private final Map<String, IBaseResource> index = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder routed = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final CanonicalRoutingTable routingTable = new CanonicalRoutingTable(support -> getValidationSupports().indexOf(support));
+    private volatile long indexedRevision = -1;
+    private volatile CustomNpmPackageValidationSupport npmPackageValidationSupport;
+    private volatile IValidationSupport fallbackValidationSupport;
+
+    /**
+     * @param revision changes whenever resources are added to one of the supports
+     */
+    public IndexedValidationSupportChain(FhirContext fhirContext, LongSupplier revision) {
+        this.fhirContext = fhirContext;
+        this.revision = revision;
+    }
+
+    @Override
+    public void addValidationSupport(IValidationSupport validationSupport) {
+        super.addValidationSupport(validationSupport);
+        if (validationSupport instanceof CustomNpmPackageValidationSupport npmSupport) {
+            this.npmPackageValidationSupport = npmSupport;
+        }
+        clearIndex();
+    }
+
+    @Override
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    /**
+     * Adds a support owning every canonical URL starting with one of the prefixes.
+     */
+    public void addValidationSupport(IValidationSupport validationSupport, Collection<String> prefixes) {
+        addValidationSupport(validationSupport);
+        for (String prefix : prefixes) {
+            routingTable.addPrefix(validationSupport, prefix);
+        }
+    }
+
+    public CanonicalRoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    /**
+     * Sets the only support asked for canonical URLs no support owns. It is not part of the chain.
+     */
+    public void setFallbackValidationSupport(IValidationSupport fallbackValidationSupport) {
+        this.fallbackValidationSupport = fallbackValidationSupport;
+        clearIndex();
+    }
+
+    @Override
+    public IBaseResource fetchStructureDefinition(String url) {
+        return resolve(STRUCTURE_DEFINITION, url, super::fetchStructureDefinition, IValidationSupport::fetchStructureDefinition);
+    }
+
+    @Override
+    public IBaseResource fetchValueSet(String url) {
+        return resolve(VALUE_SET, url, super::fetchValueSet, IValidationSupport::fetchValueSet);
+    }
+
+    @Override
+    public IBaseResource fetchCodeSystem(String url) {
+        return resolve(CODE_SYSTEM, url, super::fetchCodeSystem, IValidationSupport::fetchCodeSystem);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends IBaseResource> T fetchResource(Class<T> resourceType, String url) {
+        String resourceTypeName = resourceTypeName(resourceType);
+        if (resourceTypeName == null) {
+            return super.fetchResource(resourceType, url);
+        }
+        return (T) resolve(resourceTypeName, url, canonical -> super.fetchResource(resourceType, canonical),
+                (support, canonical) -> support.fetchResource(resourceType, canonical));
+    }
+
+    @Override
+    public void invalidateCaches() {
+        super.invalidateCaches();
+        clearIndex();
+    }
+
+    private IBaseResource resolve(String resourceType, String url, Function<String, IBaseResource> chainLookup,
+                                  BiFunction<IValidationSupport, String, IBaseResource> supportLookup) {
+        if (url == null) {
+            return chainLookup.apply(null);
+        }
+        refreshIndex();
+        String key = key(resourceType, url);
+        IBaseResource resource = index.get(key);
+        if (resource != null) {
+            hits.increment();
+            return resource;
+        }
+        misses.increment();
+        resource = lookup(url, supportLookup);
+        int versionSeparator = url.indexOf('|');
+        if (resource == null && versionSeparator >= 0) {
+            // Supports like the core definitions only know the unversioned URL
+            IBaseResource unversioned = lookup(url.substring(0, versionSeparator), supportLookup);
+            if (unversioned != null && url.substring(versionSeparator + 1).equals(versionOf(unversioned))) {
+                resource = unversioned;
+            }
+        }
+        if (resource != null && versionSeparator >= 0) {
+            String version = url.substring(versionSeparator + 1);
+            if (!version.equals(versionOf(resource))) {
+                IBaseResource exact = findVersion(url, version, supportLookup);
+                if (exact != null) {
+                    resource = exact;
+                } else {
+                    // Not indexed under the requested version, which no support provides
+                    logger.debug("No support provides {} {}, resolved version {}", resourceType, url, versionOf(resource));
+                    return resource;
+                }
+            }
+        }
+        if (resource != null) {
+            index.put(key, resource);
+            indexVersion(resourceType, resource);
+        }
+        return resource;
+    }
+
+    /**
+     * Asks the owners of the URL, or the fallback support if the URL has no owner.
+     */
+    private IBaseResource lookup(String url, BiFunction<IValidationSupport, String, IBaseResource> supportLookup) {
+        List<IValidationSupport> owners = routingTable.route(url);
+        if (owners.isEmpty()) {
+            fallbacks.increment();
+            IValidationSupport fallback = this.fallbackValidationSupport;
+            return fallback != null ? supportLookup.apply(fallback, url) : null;
+        }
+        routed.increment();
+        for (IValidationSupport owner : owners) {
+            IBaseResource resource = supportLookup.apply(owner, url);
+            if (resource != null) {
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    private IBaseResource findVersion(String url, String version, BiFunction<IValidationSupport, String, IBaseResource> supportLookup) {
+        List<IValidationSupport> candidates = routingTable.route(url);
+        if (candidates.isEmpty() && fallbackValidationSupport != null) {
+            candidates = List.of(fallbackValidationSupport);
+        }
+        for (IValidationSupport support : candidates) {
+            IBaseResource candidate = supportLookup.apply(support, url);
+            if (candidate != null && version.equals(versionOf(candidate))) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the index once resources were added and indexes the parsed IG package resources again.
+     */
+    private void refreshIndex() {
+        long currentRevision = revision.getAsLong();
+        if (currentRevision == indexedRevision) {
+            return;
+        }
+        synchronized (index) {
+            if (currentRevision == indexedRevision) {
+                return;
+            }
+            index.clear();
+            CustomNpmPackageValidationSupport npmSupport = this.npmPackageValidationSupport;
+            for (IValidationSupport support : getValidationSupports()) {
+                if (support instanceof CanonicalUrlOwner owner) {
+                    routingTable.removeExact(support);
+                    routingTable.addExact(support, owner.getCanonicalUrls());
+                }
+            }
+            if (npmSupport != null) {
+                // Only by url|version: the unversioned URL resolves in chain order
+                indexVersions(npmSupport.getMaterializedResources());
+            }
+            indexedRevision = currentRevision;
+            logger.debug("Canonical index rebuilt at revision {} with {} entries", currentRevision, index.size());
+        }
+    }
+
+    private void clearIndex() {
+        synchronized (index) {
+            index.clear();
+            indexedRevision = -1;
+        }
+    }
+
+    private void indexVersions(Collection<IBaseResource> resources) {
+        for (IBaseResource resource : resources) {
+            indexVersion(fhirContext.getResourceType(resource), resource);
+        }
+    }
+
+    private void indexVersion(String resourceType, IBaseResource resource) {
+        String url = urlOf(resource);
+        String version = versionOf(resource);
+        if (url != null && version != null) {
+            index.putIfAbsent(key(resourceType, url + "|" + version), resource);
+        }
+    }
+
+    private String urlOf(IBaseResource resource) {
+        return primitiveValue(resource, "url");
+    }
+
+    private String versionOf(IBaseResource resource) {
+        return primitiveValue(resource, "version");
+    }
+
+    private String primitiveValue(IBaseResource resource, String path) {
+        try {
+            FhirTerser terser = fhirContext.newTerser();
+            return terser.getSinglePrimitiveValueOrNull(resource, path);
+        } catch (RuntimeException e) {
+            // Resources without the element, e.g. placeholders of custom profiles
+            return null;
+        }
+    }
+
+    private String resourceTypeName(Class<? extends IBaseResource> resourceType) {
+        try {
+            return fhirContext.getResourceType(resourceType);
+        } catch (RuntimeException e) {
+            // Abstract types like IBaseResource are resolved by the chain
+            return null;
+        }
+    }
+
+    private static String key(String resourceType, String url) {
+        return resourceType + " " + url;
+    }
+
+    public int getIndexSize() {
+        return index.size();
+    }
+
+    public JsonObject getStats() {
+        return new JsonObject()
+                .put("entries", index.size())
+                .put("hits", hits.sum())
+                .put("misses", misses.sum())
+                .put("routed", routed.sum())
+                .put("fallbacks", fallbacks.sum())
+                .put("routedUrls", routingTable.getExactCount())
+                .put("routedPrefixes", routingTable.getPrefixCount())
+                .put("revision", indexedRevision);
+    }
+}
@@ -0,0 +1,71 @@
+package nzi.fhir.validator.core.service;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Renders the statistics of the caches and the heap budget in the Prometheus text format, as
+ * scraped from {@code /metrics}.
+ *
+ * @author Md Nazrul Islam
+ */
+public class MetricsService {
+    private static final String PREFIX = "fhir_validator_";
+
+    private MetricsService() {
+    }
+
+    public static String scrape() {
+        StringBuilder metrics = new StringBuilder();
+        JsonObject caches = CachingService.statsJson();
+        counter(metrics, "cache_hits_total", "Cache lookups finding a value", caches, "cache", "hits");
+        counter(metrics, "cache_misses_total", "Cache lookups finding no value", caches, "cache", "misses");
+        counter(metrics, "cache_evictions_total", "Cache entries evicted by size or expiry", caches, "cache", "evictions");
+        counter(metrics, "cache_refreshes_total", "Cache entries reloaded ahead of expiry", caches, "cache", "refreshes");
+        counter(metrics, "cache_refresh_failures_total", "Cache entries failing to reload", caches, "cache", "refreshFailures");
+        gauge(metrics, "cache_entries", "Cache entries", caches, "cache", "entries");
+        gauge(metrics, "cache_weight_bytes", "Estimated heap retained by cache entries", caches, "cache", "weightBytes");
+        gauge(metrics, "cache_max_bytes", "Maximum weight of the cache entries", caches, "cache", "maxBytes");
+
+        JsonObject expressions = FhirPathExpressionCache.statsJson();
+        counter(metrics, "fhirpath_cache_hits_total", "Shared FHIRPath invariant lookups finding a parsed expression", expressions, "fhir_version", "hits");
+        counter(metrics, "fhirpath_cache_misses_total", "Shared FHIRPath invariant lookups parsing the expression", expressions, "fhir_version", "misses");
+        gauge(metrics, "fhirpath_cache_entries", "Shared parsed FHIRPath invariants", expressions, "fhir_version", "entries");
+
+        ValidatorHeapBudget heapBudget = ValidatorHeapBudget.getInstance();
+        gauge(metrics, "heap_budget_bytes", "Heap budget of all validators", heapBudget.getBudgetBytes());
+        gauge(metrics, "heap_estimated_bytes", "Estimated heap retained by all validators", heapBudget.getTotalEstimatedBytes());
+        return metrics.toString();
+    }
+
+    private static void counter(StringBuilder metrics, String name, String help, JsonObject byLabel, String label, String field) {
+        family(metrics, name, help, "counter", byLabel, label, field);
+    }
+
+    private static void gauge(StringBuilder metrics, String name, String help, JsonObject byLabel, String label, String field) {
+        family(metrics, name, help, "gauge", byLabel, label, field);
+    }
+
+    private static void gauge(StringBuilder metrics, String name, String help, long value) {
+        header(metrics, name, help, "gauge");
+        metrics.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void family(StringBuilder metrics, String name, String help, String type, JsonObject byLabel, String label, String field) {
+        header(metrics, name, help, type);
+        for (String labelValue : byLabel.fieldNames()) {
+            Long value = byLabel.getJsonObject(labelValue).getLong(field);
+            metrics.append(PREFIX).append(name)
+                    .append('{').append(label).append("=\"").append(escape(labelValue)).append("\"} ")
+                    .append(value != null ? value : 0L).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder metrics, String name, String help, String type) {
+        metrics.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        metrics.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
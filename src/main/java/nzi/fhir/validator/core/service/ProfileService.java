@@ -1,22 +1,31 @@
 package nzi.fhir.validator.core.service;
 
-import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.parser.DataFormatException;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonObject;
+import nzi.fhir.validator.core.config.ApplicationConfig;
 import io.vertx.sqlclient.*;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.exceptions.FHIRFormatError;
-import org.hl7.fhir.instance.model.api.IBaseMetaType;
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static nzi.fhir.validator.core.config.ApplicationConfig.DB_POSTGRES_SCHEMA_NAME;
 
@@ -29,10 +38,16 @@ public class ProfileService {
     private final IParser jsonParser;
     private final Pool pgPool;
     private static final CachingService cachingService;
-    private final EmptyResource emptyResource;
+    private static final String RAW_JSON_BYTES_USER_DATA = "nzi.profile.rawJsonBytes";
+    private static final SingleFlight<String, IBaseResource> profileLoads = new SingleFlight<>();
+    // Incremented whenever a profile is registered, so resolution indexes know to drop their entries
+    private static final AtomicLong revision = new AtomicLong();
+    // Canonical URLs of the registered profiles per FHIR version, so lookups of other URLs skip the database
+    private static final Map<String, Set<String>> profileUrls = new ConcurrentHashMap<>();
+    private static final Set<String> profileUrlsLoaded = ConcurrentHashMap.newKeySet();
 
     static {
-        cachingService = CachingService.create();
+        cachingService = CachingService.create("profiles");
     }
 
     private ProfileService(Vertx vertx, FhirContext fhirContext, Pool pgPool) {
@@ -40,13 +55,63 @@ public class ProfileService {
         this.fhirContext = fhirContext;
         this.jsonParser = fhirContext.newJsonParser();
         this.pgPool = pgPool;
-        this.emptyResource = new EmptyResource();
     }
 
     public static ProfileService create(Vertx vertx, FhirContext fhirContext, Pool pgPool){
         return new ProfileService(vertx, fhirContext, pgPool);
     }
 
+    /**
+     * @return a counter which changes whenever a profile of any FHIR version is registered
+     */
+    public static long getRevision() {
+        return revision.get();
+    }
+
+    /**
+     * Reads the URLs of the profiles registered for the FHIR version, once per FHIR version.
+     * Never fails: without them, registered profiles are only found by URLs no other support owns.
+     */
+    public Future<Void> loadProfileUrls() {
+        String fhirVersion = fhirContext.getVersion().getVersion().getFhirVersionString();
+        if (pgPool == null || profileUrlsLoaded.contains(fhirVersion)) {
+            return Future.succeededFuture();
+        }
+        return pgPool.preparedQuery("SELECT url FROM %s.fhir_profiles WHERE fhir_version = $1".formatted(DB_POSTGRES_SCHEMA_NAME))
+                .execute(Tuple.of(fhirVersion))
+                .<Void>map(rows -> {
+                    Set<String> urls = profileUrls.computeIfAbsent(fhirVersion, version -> ConcurrentHashMap.newKeySet());
+                    for (Row row : rows) {
+                        urls.add(row.getString("url"));
+                    }
+                    profileUrlsLoaded.add(fhirVersion);
+                    revision.incrementAndGet();
+                    logger.debug("Loaded {} profile URLs for FHIR version {}", urls.size(), fhirVersion);
+                    return null;
+                })
+                .otherwise(e -> {
+                    logger.warn("Failed to load profile URLs for FHIR version {}: {}", fhirVersion, e.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * @return the URLs of the profiles registered for the FHIR version, as far as known
+     */
+    public Set<String> getProfileUrls() {
+        return profileUrls.getOrDefault(fhirContext.getVersion().getVersion().getFhirVersionString(), Set.of());
+    }
+
+    private void addProfileUrl(String profileUrl) {
+        addProfileUrls(List.of(profileUrl));
+    }
+
+    private void addProfileUrls(Collection<String> urls) {
+        profileUrls.computeIfAbsent(fhirContext.getVersion().getVersion().getFhirVersionString(), version -> ConcurrentHashMap.newKeySet())
+                .addAll(urls);
+        revision.incrementAndGet();
+    }
+
     public Future<IBaseResource> getProfile(String profileUrl) {
         if (profileUrl == null || profileUrl.isEmpty()) {
             logger.error("Profile URL is null or empty");
@@ -55,25 +120,120 @@ public class ProfileService {
 
         String cacheKey = getCacheKey(profileUrl) ;
         logger.debug("Fetching profile: {}", profileUrl);
-        IBaseResource profile = (IBaseResource) cachingService.get(cacheKey);
-        if (profile == emptyResource){
+        // Profiles read long after they were cached are reloaded in the background, e.g. when registered by another instance
+        Object profile = cachingService.get(cacheKey, () -> loadFromDatabase(profileUrl));
+        if (profile == CachingService.MISSING){
             logger.debug("There is no profile resource available for : {}", profileUrl);
             return Future.succeededFuture(null);
         }
         if (profile != null) {
             logger.debug("Cache hit for profile: {}", profileUrl);
-            return Future.succeededFuture(profile);
+            return Future.succeededFuture((IBaseResource) profile);
         }
 
-        return loadFromDatabase(profileUrl)
+        // Concurrent misses for the same profile share one database read and parse
+        return profileLoads.execute(cacheKey, () -> loadFromDatabase(profileUrl)
                 .compose(profileRaw -> {
                     if (profileRaw == null) {
-                        cachingService.put(cacheKey, emptyResource);
+                        cachingService.putMissing(cacheKey);
                     } else {
-                        cachingService.put(cacheKey, profileRaw);
+                        cachingService.put(cacheKey, profileRaw, weigh(profileRaw));
                     }
                     return Future.succeededFuture(profileRaw);
-                });
+                }));
+    }
+
+    /**
+     * @return the profile if it is already cached, without reading the database
+     */
+    public IBaseResource getCachedProfile(String profileUrl) {
+        Object profile = cachingService.get(getCacheKey(profileUrl));
+        return profile == CachingService.MISSING ? null : (IBaseResource) profile;
+    }
+
+    /**
+     * Loads the registered profiles among the URLs into the cache, with the profiles they derive from
+     * or constrain their elements to, so validating against them never waits for the database.
+     * Never fails: profiles failing to load are looked up again when validating.
+     */
+    public Future<Void> prefetchProfiles(Collection<String> profileUrls) {
+        Set<String> visited = ConcurrentHashMap.newKeySet();
+        return prefetch(profileUrls, visited)
+                .onSuccess(v -> logger.debug("Prefetched {} profile references", visited.size()));
+    }
+
+    private Future<Void> prefetch(Collection<String> profileUrls, Set<String> visited) {
+        List<Future<Void>> loads = new ArrayList<>();
+        for (String profileUrl : profileUrls) {
+            String url = unversioned(profileUrl);
+            if (url.isEmpty() || !isRegisteredProfile(url) || !visited.add(url)) {
+                continue;
+            }
+            loads.add(getProfile(url)
+                    .compose(profile -> profile != null ? prefetch(referencedProfiles(profile), visited) : Future.<Void>succeededFuture())
+                    .otherwise(e -> {
+                        logger.warn("Failed to prefetch profile {}: {}", url, e.getMessage());
+                        return null;
+                    }));
+        }
+        return Future.join(loads).mapEmpty();
+    }
+
+    /**
+     * Without the registered URLs, e.g. when reading them failed, any URL may be a registered profile.
+     * @param profileUrl canonical URL, with or without version
+     */
+    public boolean isRegisteredProfile(String profileUrl) {
+        String fhirVersion = fhirContext.getVersion().getVersion().getFhirVersionString();
+        return !profileUrlsLoaded.contains(fhirVersion) || getProfileUrls().contains(unversioned(profileUrl));
+    }
+
+    /**
+     * @return the base definition and the profiles the elements of a profile are constrained to
+     */
+    private Set<String> referencedProfiles(IBaseResource profile) {
+        FhirTerser terser = fhirContext.newTerser();
+        Set<String> urls = new LinkedHashSet<>();
+        String baseDefinition = terser.getSinglePrimitiveValueOrNull(profile, "baseDefinition");
+        if (baseDefinition != null) {
+            urls.add(baseDefinition);
+        }
+        for (String path : List.of("snapshot.element.type", "differential.element.type")) {
+            for (IBase type : terser.getValues(profile, path)) {
+                for (IPrimitiveType<?> url : terser.getValues(type, "profile", IPrimitiveType.class)) {
+                    urls.add(url.getValueAsString());
+                }
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * @return the profiles a resource, its contained resources and bundle entries claim to conform to
+     */
+    public static Set<String> declaredProfiles(FhirContext fhirContext, IBaseResource resource) {
+        Set<String> urls = new LinkedHashSet<>();
+        List<IBaseResource> resources = new ArrayList<>();
+        resources.add(resource);
+        resources.addAll(fhirContext.newTerser().getAllEmbeddedResources(resource, true));
+        for (IBaseResource candidate : resources) {
+            if (candidate.getMeta() != null) {
+                for (IPrimitiveType<String> profile : candidate.getMeta().getProfile()) {
+                    if (profile.getValue() != null) {
+                        urls.add(profile.getValue());
+                    }
+                }
+            }
+        }
+        return urls;
+    }
+
+    private static String unversioned(String url) {
+        if (url == null) {
+            return "";
+        }
+        int versionSeparator = url.indexOf('|');
+        return versionSeparator >= 0 ? url.substring(0, versionSeparator) : url;
     }
 
     public Future<Void> registerProfile(JsonObject profile) {
@@ -105,47 +265,106 @@ public class ProfileService {
             .onSuccess(v -> {
                 logger.info("Registered profile in transaction: {}", profileUrl);
                 cachingService.remove(cacheKey);
+                addProfileUrl(profileUrl);
             })
             .mapEmpty(); // Convert RowSet to Void since we don't need the result
         });
     }
 
     public Future<Void> registerProfiles(JsonObject[] profiles) {
-        return pgPool.withTransaction(client -> {
-            Future<Void> compositeFuture = Future.succeededFuture();
-            
+        return registerProfiles(List.of(profiles)).mapEmpty();
+    }
+
+    /**
+     * Registers profiles in bulk: they are validated in parallel on worker threads, then written by one
+     * multi-row upsert per {@code profiles.bulk.batchSize} profiles, all in one transaction. Nothing is
+     * registered if any profile is invalid. Of profiles sharing a URL, the last one wins.
+     *
+     * @return the URLs of the registered profiles
+     */
+    public Future<List<String>> registerProfiles(List<JsonObject> profiles) {
+        if (profiles.isEmpty()) {
+            return Future.succeededFuture(List.of());
+        }
+        long startedAt = System.currentTimeMillis();
+        return validateProfiles(profiles).compose(invalid -> {
+            if (!invalid.isEmpty()) {
+                logger.error("Failed to validate {} of {} profiles: {}", invalid.size(), profiles.size(), invalid);
+                return Future.failedFuture("Failed to validate profiles: " + String.join("; ", invalid.subList(0, Math.min(invalid.size(), 10)))
+                        + (invalid.size() > 10 ? "; and %d more".formatted(invalid.size() - 10) : ""));
+            }
+            Map<String, String> profileJsons = new LinkedHashMap<>();
             for (JsonObject profile : profiles) {
-                try {
-                    validateProfile(profile);
-                } catch (FHIRException e) {
-                    logger.error("Failed to validate profile JSON: {}", e.getMessage(), e);
-                    return Future.failedFuture("Failed to validate profile: " + e.getMessage());
-                }
                 String profileUrl = profile.getString("url");
-
-                compositeFuture = compositeFuture.compose(v -> {
-                    String profileJson = profile.encode();
-                    String fhirVersion = fhirContext.getVersion().getVersion().getFhirVersionString();
-
-                    return client.preparedQuery(
-                            "INSERT INTO %s.fhir_profiles (url, profile_json, fhir_version)".formatted(DB_POSTGRES_SCHEMA_NAME) +
-                                    " VALUES ($1, $2, $3)" +
-                                    " ON CONFLICT (url, fhir_version) DO UPDATE SET" +
-                                    " profile_json = $2, modified_at = NOW()"
-                    )
-                    .execute(Tuple.of(profileUrl, profileJson, fhirVersion))
-                    .map(result -> {
-                        logger.info("Registered profile in batch: {}", profileUrl);
-                        cachingService.remove(getCacheKey(profileUrl));
-                        return null;
+                // Upserting the same row twice in one statement is an error
+                profileJsons.remove(profileUrl);
+                profileJsons.put(profileUrl, profile.encode());
+            }
+            List<String> profileUrls = List.copyOf(profileJsons.keySet());
+            return pgPool.withTransaction(client -> upsertProfiles(client, profileJsons))
+                    .map(v -> {
+                        // Once per batch, after the commit
+                        for (String profileUrl : profileUrls) {
+                            cachingService.remove(getCacheKey(profileUrl));
+                        }
+                        addProfileUrls(profileUrls);
+                        logger.info("Registered {} profiles in {} ms", profileUrls.size(), System.currentTimeMillis() - startedAt);
+                        return profileUrls;
                     });
-                });
+        });
+    }
+
+    /**
+     * @return the reasons the invalid profiles were rejected, empty if all are valid
+     */
+    private Future<List<String>> validateProfiles(List<JsonObject> profiles) {
+        int parallelism = Integer.parseInt(ApplicationConfig.get("validator.parser.parallelism", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int sliceSize = Math.max(1, (profiles.size() + parallelism - 1) / parallelism);
+        List<Future<List<String>>> slices = new ArrayList<>();
+        for (int from = 0; from < profiles.size(); from += sliceSize) {
+            int offset = from;
+            List<JsonObject> slice = profiles.subList(from, Math.min(profiles.size(), from + sliceSize));
+            slices.add(vertx.executeBlocking(() -> {
+                List<String> invalid = new ArrayList<>();
+                for (int i = 0; i < slice.size(); i++) {
+                    try {
+                        validateProfile(slice.get(i));
+                    } catch (FHIRException | DataFormatException e) {
+                        String profileUrl = slice.get(i) != null ? slice.get(i).getString("url") : null;
+                        invalid.add("#%d %s: %s".formatted(offset + i, profileUrl != null ? profileUrl : "", e.getMessage()));
+                    }
+                }
+                return invalid;
+            }, false));
+        }
+        return Future.all(slices).map(all -> {
+            List<String> invalid = new ArrayList<>();
+            for (Future<List<String>> slice : slices) {
+                invalid.addAll(slice.result());
             }
-            
-            return compositeFuture;
+            return invalid;
         });
     }
 
+    private Future<Void> upsertProfiles(SqlConnection client, Map<String, String> profileJsons) {
+        String sql = """
+                INSERT INTO %s.fhir_profiles (url, profile_json, fhir_version)
+                SELECT url, profile_json::jsonb, $3 FROM unnest($1::text[], $2::text[]) AS t(url, profile_json)
+                ON CONFLICT (url, fhir_version) DO UPDATE SET profile_json = EXCLUDED.profile_json, modified_at = NOW()
+                """.formatted(DB_POSTGRES_SCHEMA_NAME);
+        int batchSize = Math.max(1, Integer.parseInt(ApplicationConfig.get("profiles.bulk.batchSize", "500")));
+        String fhirVersion = fhirContext.getVersion().getVersion().getFhirVersionString();
+        List<Map.Entry<String, String>> entries = List.copyOf(profileJsons.entrySet());
+        Future<Void> upserts = Future.succeededFuture();
+        for (int from = 0; from < entries.size(); from += batchSize) {
+            List<Map.Entry<String, String>> batch = entries.subList(from, Math.min(entries.size(), from + batchSize));
+            String[] urls = batch.stream().map(Map.Entry::getKey).toArray(String[]::new);
+            String[] jsons = batch.stream().map(Map.Entry::getValue).toArray(String[]::new);
+            upserts = upserts.compose(v -> client.preparedQuery(sql).execute(Tuple.of(urls, jsons, fhirVersion)).mapEmpty());
+        }
+        return upserts;
+    }
+
     private Future<IBaseResource> loadFromDatabase(String profileUrl) {
         return pgPool.withTransaction(client -> 
             client.preparedQuery(
@@ -160,7 +379,9 @@ public class ProfileService {
                 }
                 String profileJson = rows.iterator().next().getString(0);
                 try {
-                    return Future.succeededFuture(jsonParser.parseResource(profileJson));
+                    IBaseResource profile = jsonParser.parseResource(profileJson);
+                    profile.setUserData(RAW_JSON_BYTES_USER_DATA, (long) profileJson.length());
+                    return Future.succeededFuture(profile);
                 } catch (Exception e) {
                     logger.error("Failed to parse profile JSON: {}", e.getMessage(), e);
                     return Future.failedFuture("Failed to parse profile: " + e.getMessage());
@@ -169,6 +390,14 @@ public class ProfileService {
         );
     }
 
+    /**
+     * @return estimated retained heap of a profile, from the size of its JSON
+     */
+    private static long weigh(IBaseResource profile) {
+        Object rawJsonBytes = profile.getUserData(RAW_JSON_BYTES_USER_DATA);
+        return ValidatorHeapBudget.estimateParsedHeap(rawJsonBytes instanceof Long bytes ? bytes : 0L);
+    }
+
     private String getCacheKey(String profileUrl) {
         return PROFILE_CACHE_PREFIX + fhirContext.getVersion().getVersion().getFhirVersionString() + "_" +profileUrl.replaceAll("[^a-zA-Z0-9:]", "_");
     }
@@ -186,68 +415,4 @@ public class ProfileService {
             throw new FHIRFormatError("Profile JSON must be a valid FHIR StructureDefinition");
         }
     }
-
-    private class EmptyResource implements IBaseResource {
-
-        @Override
-        public IBaseMetaType getMeta() {
-            return null;
-        }
-
-        @Override
-        public IIdType getIdElement() {
-            return null;
-        }
-
-        @Override
-        public IBaseResource setId(String s) {
-            return null;
-        }
-
-        @Override
-        public IBaseResource setId(IIdType iIdType) {
-            return null;
-        }
-
-        @Override
-        public FhirVersionEnum getStructureFhirVersionEnum() {
-            return null;
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return true;
-        }
-
-        @Override
-        public boolean hasFormatComment() {
-            return false;
-        }
-
-        @Override
-        public List<String> getFormatCommentsPre() {
-            return List.of();
-        }
-
-        @Override
-        public List<String> getFormatCommentsPost() {
-            return List.of();
-        }
-
-        @Override
-        public String fhirType() {
-            return IBaseResource.super.fhirType();
-        }
-
-        @Override
-        public Object getUserData(String s) {
-            return null;
-        }
-
-        @Override
-        public void setUserData(String s, Object o) {
-
-        }
-    }
 }
-
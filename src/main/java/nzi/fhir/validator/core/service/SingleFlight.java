@@ -0,0 +1,43 @@
+package nzi.fhir.validator.core.service;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key: while a load is in flight, other callers asking for the
+ * same key get the same {@link Future} instead of starting their own. Results are not cached; once
+ * the load completes the next call starts a new one.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, Future<V>> inFlight = new ConcurrentHashMap<>();
+
+    public Future<V> execute(K key, Supplier<Future<V>> loader) {
+        Promise<V> promise = Promise.promise();
+        Future<V> existing = inFlight.putIfAbsent(key, promise.future());
+        if (existing != null) {
+            return existing;
+        }
+        Future<V> loaded;
+        try {
+            loaded = loader.get();
+        } catch (RuntimeException e) {
+            loaded = Future.failedFuture(e);
+        }
+        loaded.onComplete(ar -> {
+            inFlight.remove(key, promise.future());
+            promise.handle(ar);
+        });
+        return promise.future();
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+}
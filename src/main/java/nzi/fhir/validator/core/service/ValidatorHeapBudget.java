@@ -0,0 +1,162 @@
+package nzi.fhir.validator.core.service;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import nzi.fhir.validator.core.config.ApplicationConfig;
+import nzi.fhir.validator.core.model.ValidatorIdentity;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the estimated retained heap of all validators below a configurable budget.
+ * <p>
+ * The estimate of a validator is its fixed base overhead (core definitions, terminology and fetch caches)
+ * plus the parsed resources of every IG package loaded into its {@link CustomNpmPackageValidationSupport}.
+ * Before an IG package is parsed, {@link #ensureCapacity(ValidatorIdentity, long)} either refuses the load
+ * or evicts the least recently used validators, depending on the configured policy.
+ * <ul>
+ *     <li>validator.heap.budget.mb: budget in MB, defaults to 70% of the max heap</li>
+ *     <li>validator.heap.budget.policy: REFUSE (default) or EVICT_COLD</li>
+ *     <li>validator.heap.base.estimate.mb: base overhead of a single validator, defaults to 64</li>
+ *     <li>validator.heap.estimate.factor: parsed heap per byte of raw IG JSON, defaults to 5</li>
+ * </ul>
+ *
+ * @author Md Nazrul Islam
+ */
+public class ValidatorHeapBudget {
+    private static final Logger logger = LogManager.getLogger(ValidatorHeapBudget.class);
+    private static final long MB = 1024L * 1024L;
+    private static ValidatorHeapBudget instance;
+
+    public enum Policy {
+        REFUSE,
+        EVICT_COLD
+    }
+
+    private final long budgetBytes;
+    private final Policy policy;
+    private final long validatorBaseEstimateBytes;
+    private final double estimateFactor;
+
+    ValidatorHeapBudget(long budgetBytes, Policy policy, long validatorBaseEstimateBytes, double estimateFactor) {
+        this.budgetBytes = budgetBytes;
+        this.policy = policy;
+        this.validatorBaseEstimateBytes = validatorBaseEstimateBytes;
+        this.estimateFactor = estimateFactor;
+    }
+
+    public static synchronized ValidatorHeapBudget getInstance() {
+        if (instance == null) {
+            long defaultBudgetMb = (long) (Runtime.getRuntime().maxMemory() * 0.7 / MB);
+            long budgetMb = Long.parseLong(ApplicationConfig.get("validator.heap.budget.mb", String.valueOf(defaultBudgetMb)));
+            Policy policy = Policy.valueOf(ApplicationConfig.get("validator.heap.budget.policy", Policy.REFUSE.name()).toUpperCase(Locale.ROOT));
+            long baseMb = Long.parseLong(ApplicationConfig.get("validator.heap.base.estimate.mb", "64"));
+            double factor = Double.parseDouble(ApplicationConfig.get("validator.heap.estimate.factor", "5"));
+            instance = new ValidatorHeapBudget(budgetMb * MB, policy, baseMb * MB, factor);
+            logger.info("Validator heap budget is {} MB with policy {}", budgetMb, policy);
+        }
+        return instance;
+    }
+
+    /**
+     * Estimates the retained heap of parsed resources from the size of their raw JSON.
+     * @param rawJsonBytes total size of the JSON files of an IG package
+     * @return estimate in bytes
+     */
+    public static long estimateParsedHeap(long rawJsonBytes) {
+        return (long) (rawJsonBytes * getInstance().estimateFactor);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public long getValidatorBaseEstimateBytes() {
+        return validatorBaseEstimateBytes;
+    }
+
+    /**
+     * @return estimated retained heap of every registered validator
+     */
+    public long getTotalEstimatedBytes() {
+        long total = 0;
+        for (FhirValidationService service : FhirValidationService.getAll()) {
+            total += service.getEstimatedHeapBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Makes sure that {@code additionalBytes} more can be retained by {@code requester} without crossing
+     * the budget, or the free heap actually left in the JVM.
+     *
+     * @param requester the validator which is going to retain the memory, never evicted
+     * @param additionalBytes estimated bytes about to be retained
+     * @throws HeapBudgetExceededException if the memory cannot be made available
+     */
+    public synchronized void ensureCapacity(ValidatorIdentity requester, long additionalBytes) {
+        if (fits(additionalBytes)) {
+            return;
+        }
+        if (policy == Policy.EVICT_COLD) {
+            List<FhirValidationService> candidates = new ArrayList<>(FhirValidationService.getAll());
+            candidates.removeIf(service -> service.getId().equals(requester));
+            candidates.sort(Comparator.comparingLong(FhirValidationService::getLastAccessedAt));
+            for (FhirValidationService candidate : candidates) {
+                logger.warn("Evicting cold validator {}/{} (~{} MB) to free heap for {}",
+                        candidate.getId().getId(), candidate.getId().getFhirVersion().name(),
+                        candidate.getEstimatedHeapBytes() / MB, requester == null ? "n/a" : requester.getId());
+                FhirValidationService.evict(candidate.getId());
+                if (fits(additionalBytes)) {
+                    return;
+                }
+            }
+        }
+        throw new HeapBudgetExceededException(
+                "Heap budget exceeded: ~%d MB requested, ~%d MB of %d MB budget already in use".formatted(
+                        additionalBytes / MB, getTotalEstimatedBytes() / MB, budgetBytes / MB));
+    }
+
+    private boolean fits(long additionalBytes) {
+        if (getTotalEstimatedBytes() + additionalBytes > budgetBytes) {
+            return false;
+        }
+        // Estimates may drift, so never go beyond what the JVM can still hand out
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return additionalBytes < available;
+    }
+
+    public JsonObject toJson() {
+        JsonArray validators = new JsonArray();
+        for (FhirValidationService service : FhirValidationService.getAll()) {
+            validators.add(service.getMemoryReport());
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return new JsonObject()
+                .put("policy", policy.name())
+                .put("budgetBytes", budgetBytes)
+                .put("estimatedBytes", getTotalEstimatedBytes())
+                .put("jvmMaxBytes", runtime.maxMemory())
+                .put("jvmUsedBytes", runtime.totalMemory() - runtime.freeMemory())
+                .put("validators", validators);
+    }
+
+    /**
+     * Thrown when an IG package cannot be loaded without exceeding the heap budget.
+     */
+    public static class HeapBudgetExceededException extends IllegalStateException {
+        public HeapBudgetExceededException(String message) {
+            super(message);
+        }
+    }
+}
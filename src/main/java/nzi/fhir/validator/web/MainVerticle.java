@@ -11,9 +11,11 @@ import io.vertx.ext.web.openapi.RouterBuilderOptions;
 import io.vertx.ext.web.validation.BodyProcessorException;
 import io.vertx.ext.web.validation.ParameterProcessorException;
 import io.vertx.sqlclient.Pool;
+import nzi.fhir.validator.core.npm.PostgresPackageCacheManager;
 import nzi.fhir.validator.core.service.DatabaseService;
 import nzi.fhir.validator.core.service.HealthService;
 import nzi.fhir.validator.core.service.IgPackageService;
+import nzi.fhir.validator.core.config.PackageServerConfig;
 import nzi.fhir.validator.core.config.PgConfig;
 import nzi.fhir.validator.core.config.VerticleConfig;
 import nzi.fhir.validator.web.endpoint.*;
@@ -48,6 +50,7 @@ public class MainVerticle extends AbstractVerticle {
 
     @Override
     public void start(Promise<Void> startPromise) {
+        long startedAt = System.currentTimeMillis();
         ConfigRetriever retriever = ConfigRetriever.create(vertx, VerticleConfig.getConfigRetrieverOptions());
 
         RouterBuilder.create(vertx, "openapi.yaml")
@@ -89,20 +92,23 @@ public class MainVerticle extends AbstractVerticle {
             .compose(config -> {
                 // Initialize Database Service first and chain the subsequent operations
                 return DatabaseService.start(vertx)
-                        .onSuccess(service -> logger.info("Database service started successfully"))
+                        .onSuccess(service -> logger.info("Database service started successfully in {} ms", System.currentTimeMillis() - startedAt))
                         .compose(service -> {
                             // Initialize PostgresSQL
                             Pool pgPool = PgConfig.createPgPool(vertx);
 
+                            // One IG service, so its in-memory package cache is shared by all endpoints
+                            IgPackageService igPackageService = IgPackageService.create(vertx, pgPool,
+                                    new PostgresPackageCacheManager(vertx, pgPool, PackageServerConfig.fromConfig(config)));
+
                             // Create ValidationApi asynchronously
-                            return ValidationApi.create(vertx, pgPool)
+                            return ValidationApi.create(vertx, pgPool, igPackageService)
                                     .compose(validationApi -> {
                                     validationApi.includeRoutes(routerBuilder);
 
                                     ProfileApi profileApi = new ProfileApi(vertx, pgPool);
                                     profileApi.includeRoutes(routerBuilder);
 
-                                    IgPackageService igPackageService = IgPackageService.create(vertx, pgPool);
                                     IgPackageApi igPackageApi = new IgPackageApi(vertx, igPackageService);
                                     igPackageApi.includeRoutes(routerBuilder);
 
@@ -118,7 +124,7 @@ public class MainVerticle extends AbstractVerticle {
                                     return vertx.createHttpServer()
                                             .requestHandler(router)
                                             .listen(port)
-                                            .onSuccess(server -> logger.info("HTTP server started on port {}", port))
+                                            .onSuccess(server -> logger.info("HTTP server started on port {} in {} ms", port, System.currentTimeMillis() - startedAt))
                                             .mapEmpty();
                                 });
                         });
@@ -5,6 +5,7 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.openapi.RouterBuilder;
 import nzi.fhir.validator.core.service.HealthService;
+import nzi.fhir.validator.core.service.MetricsService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -52,5 +53,13 @@ public class HealthApi {
                                 .put("status", "UP")
                                 .put("timestamp", System.currentTimeMillis())
                                 .encode()));
+
+        // Prometheus scrape endpoint
+        // Method: GET, Path: "/metrics"
+        routerBuilder.operation("healthApiMetrics")
+                .handler(ctx -> ctx.response()
+                        .setStatusCode(200)
+                        .putHeader("Content-Type", "text/plain; version=0.0.4")
+                        .end(MetricsService.scrape()));
     }
 }
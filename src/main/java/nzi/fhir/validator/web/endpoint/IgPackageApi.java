@@ -5,8 +5,10 @@ import io.vertx.core.json.*;
 import io.vertx.ext.web.*;
 import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.codec.BodyCodec;
 import io.vertx.ext.web.openapi.RouterBuilder;
 import io.vertx.ext.web.openapi.RouterBuilderOptions;
+import nzi.fhir.validator.core.npm.DigestFileWriteStream;
 import nzi.fhir.validator.core.service.IgPackageService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -62,6 +64,22 @@ public class IgPackageApi {
                             logger.error("Failed to generate conformance report: {}", err.toString(), err);
                             ctx.response().setStatusCode(500).end(new JsonObject().put("error", err.toString()).encode());
                         }));
+        // Method: GET, Path: "/igs/resources"
+        routerBuilder.operation("igPackageApiFindResource")
+                .handler(ctx -> igPackageService.findResource(
+                                ctx.queryParams().get("url"),
+                                ctx.queryParams().get("version"))
+                        .onSuccess(resource -> {
+                            if (resource == null) {
+                                ctx.response().setStatusCode(404).end(new JsonObject().put("error", "Resource not found: " + ctx.queryParams().get("url")).encode());
+                                return;
+                            }
+                            ctx.json(resource);
+                        })
+                        .onFailure(err -> {
+                            logger.error("Failed to find resource: {}", err.toString(), err);
+                            ctx.response().setStatusCode(500).end(new JsonObject().put("error", err.toString()).encode());
+                        }));
         // Then use it in the router setup
         // Method: POST, Path: "/igs/upload"
         routerBuilder
@@ -70,6 +88,18 @@ public class IgPackageApi {
         // Method: POST, Path: "/igs/register"
         routerBuilder.operation("igPackageApiRegisterIg")
                 .handler(this::handleRegisterIg);
+        // Method: POST, Path: "/igs/import"
+        routerBuilder.operation("igPackageApiImportIgs")
+                .handler(ctx -> {
+                    JsonObject body = ctx.body().isEmpty() ? new JsonObject() : ctx.body().asJsonObject();
+                    igPackageService.importIgs(body.getString("directory"))
+                            .onSuccess(ctx::json)
+                            .onFailure(err -> {
+                                logger.error("Failed to import IGs: {}", err.toString(), err);
+                                int statusCode = err instanceof IllegalArgumentException ? 400 : 500;
+                                ctx.response().setStatusCode(statusCode).end(new JsonObject().put("error", err.getMessage()).encode());
+                            });
+                });
     }
 
     private void handleRegisterIg(RoutingContext ctx) {
@@ -127,55 +157,50 @@ public class IgPackageApi {
         }
 
         FileUpload upload = ctx.fileUploads().get(0);
-        vertx.fileSystem().readFile(upload.uploadedFileName(), res -> {
-            if (res.succeeded()) {
-                igPackageService.registerIg(res.result().getBytes())
-                        .onSuccess(npmPackage -> {
-                            logger.info("Registered IG: {}@{}", npmPackage.name(), npmPackage.version());
-                            ctx.json(new JsonObject()
-                                    .put("status", "success")
-                                    .put("name", npmPackage.name())
-                                    .put("version", npmPackage.version()));
-                            vertx.fileSystem().delete(upload.uploadedFileName()); // Cleanup
-                        })
-                        .onFailure(err -> {
-                            logger.error("Failed to register IG: {}", err.toString(), err);
-                            ctx.response().setStatusCode(500).end(new JsonObject().put("error", err.toString()).encode());
-                            vertx.fileSystem().delete(upload.uploadedFileName());
-                        });
-            } else {
-                logger.error("Failed to read uploaded file: {}", res.cause().toString(), res.cause());
-                ctx.response().setStatusCode(500).end(new JsonObject().put("error", res.cause().toString()).encode());
-                vertx.fileSystem().delete(upload.uploadedFileName());
-            }
-        });
+        // Registered straight from the uploaded file, which is removed at the end of the request
+        igPackageService.registerIg(Path.of(upload.uploadedFileName()), false)
+                .onSuccess(npmPackage -> {
+                    logger.info("Registered IG: {}@{}", npmPackage.name(), npmPackage.version());
+                    ctx.json(new JsonObject()
+                            .put("status", "success")
+                            .put("name", npmPackage.name())
+                            .put("version", npmPackage.version()));
+                })
+                .onFailure(err -> {
+                    logger.error("Failed to register IG: {}", err.toString(), err);
+                    ctx.response().setStatusCode(500).end(new JsonObject().put("error", err.toString()).encode());
+                });
     }
 
     private void handleDownloadIg(RoutingContext ctx, URL url) {
-        webClient.getAbs(url.toString())
-                .send()
-                .onSuccess(res -> {
-                    if (res.statusCode() == 200) {
-                        byte[] igBytes = res.body().getBytes();
-                        igPackageService.registerIg(igBytes)
-                                .onSuccess(npmPackage -> {
-                                    logger.info("Downloaded and registered IG: {}@{}", npmPackage.name(), npmPackage.version());
-                                    ctx.json(new JsonObject()
-                                            .put("status", "success")
-                                            .put("name", npmPackage.name())
-                                            .put("version", npmPackage.name()));
-                                })
-                                .onFailure(err -> {
-                                    logger.error("Failed to register downloaded IG: {}", err.toString(), err);
-                                    ctx.response().setStatusCode(500).end(new JsonObject().put("error", err.toString()).encode());
-                                });
-                    } else {
-                        logger.error("Failed to download IG: HTTP {}", res.statusCode());
-                        ctx.response().setStatusCode(res.statusCode()).end(new JsonObject().put("error", "Failed to download IG").encode());
-                    }
-                })
+        // Streamed to a temporary file and hashed on the way, never buffered on the heap
+        DigestFileWriteStream.create(vertx)
+                .onSuccess(download -> webClient.getAbs(url.toString())
+                        .as(BodyCodec.pipe(download))
+                        .send()
+                        .compose(res -> {
+                            if (res.statusCode() != 200) {
+                                logger.error("Failed to download IG: HTTP {}", res.statusCode());
+                                ctx.response().setStatusCode(res.statusCode()).end(new JsonObject().put("error", "Failed to download IG").encode());
+                                return Future.<Void>succeededFuture();
+                            }
+                            return igPackageService.registerIg(download.getFile(), download.getContentHash(), false)
+                                    .onSuccess(npmPackage -> {
+                                        logger.info("Downloaded and registered IG: {}@{}", npmPackage.name(), npmPackage.version());
+                                        ctx.json(new JsonObject()
+                                                .put("status", "success")
+                                                .put("name", npmPackage.name())
+                                                .put("version", npmPackage.version()));
+                                    })
+                                    .<Void>mapEmpty();
+                        })
+                        .onFailure(err -> {
+                            logger.error("Failed to download and register IG: {}", err.toString(), err);
+                            ctx.response().setStatusCode(500).end(new JsonObject().put("error", err.toString()).encode());
+                        })
+                        .onComplete(ar -> download.discard(vertx)))
                 .onFailure(err -> {
-                    logger.error("Failed to download IG: {}", err.toString(), err);
+                    logger.error("Failed to create download file: {}", err.toString(), err);
                     ctx.response().setStatusCode(500).end(new JsonObject().put("error", err.toString()).encode());
                 });
     }
@@ -1,6 +1,8 @@
 package nzi.fhir.validator.web.endpoint;
 
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
@@ -12,30 +14,32 @@ import nzi.fhir.validator.core.service.FhirContextLoader;
 import nzi.fhir.validator.core.service.ProfileService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Md Nazrul Islam
  */
 public class ProfileApi {
     private static final Logger logger = LogManager.getLogger(ProfileApi.class);
-    private final HashMap<SupportedFhirVersion, ProfileService> profileServices;
+    private final Map<SupportedFhirVersion, ProfileService> profileServices;
+    private final Vertx vertx;
+    private final Pool pgPool;
 
     /**
-     * Constructor for production use that initializes profile services internally.
+     * Constructor for production use. Profile services are created lazily per FHIR version on first use.
      * 
      * @param vertx The Vert.x instance
      * @param pgPool The PostgresSQL connection pool
      */
     public ProfileApi(Vertx vertx, Pool pgPool) {
-        // Initialize profile services for all supported FHIR versions
-        this.profileServices = new HashMap<>();
-
-        // Create profile services for different FHIR versions
-        this.profileServices.put(SupportedFhirVersion.STU3,  ProfileService.create(vertx, FhirContextLoader.getInstance().getContext(SupportedFhirVersion.STU3), pgPool));
-        this.profileServices.put(SupportedFhirVersion.R4,  ProfileService.create(vertx, FhirContextLoader.getInstance().getContext(SupportedFhirVersion.R4), pgPool));
-        this.profileServices.put(SupportedFhirVersion.R4B, ProfileService.create(vertx, FhirContextLoader.getInstance().getContext(SupportedFhirVersion.R4B), pgPool));
-        this.profileServices.put(SupportedFhirVersion.R5,  ProfileService.create(vertx, FhirContextLoader.getInstance().getContext(SupportedFhirVersion.R5), pgPool));
+        this.profileServices = new ConcurrentHashMap<>();
+        this.vertx = vertx;
+        this.pgPool = pgPool;
     }
 
     /**
@@ -46,6 +50,16 @@ public class ProfileApi {
      */
     public ProfileApi(Vertx vertx, HashMap<SupportedFhirVersion, ProfileService> profileServices) {
         this.profileServices = profileServices;
+        this.vertx = vertx;
+        this.pgPool = null;
+    }
+
+    private ProfileService getProfileService(SupportedFhirVersion version) {
+        if (pgPool != null && FhirContextLoader.getInstance().hasContext(version)) {
+            return profileServices.computeIfAbsent(version, v ->
+                    ProfileService.create(vertx, FhirContextLoader.getInstance().getContext(v), pgPool));
+        }
+        return profileServices.getOrDefault(version, profileServices.get(SupportedFhirVersion.getDefault()));
     }
 
 
@@ -60,6 +74,83 @@ public class ProfileApi {
         routerBuilder.operation("profileApiRegisterProfile")
         //        .handler(BodyHandler.create())
                 .handler(this::handleRegistration);
+
+        // Method: POST, Path: "/:version/register-profiles"
+        routerBuilder.operation("profileApiRegisterProfiles")
+                .handler(this::handleBulkRegistration);
+    }
+
+    private void handleBulkRegistration(RoutingContext ctx) {
+        String versionParam = ctx.pathParam("version").toUpperCase();
+        if (!SupportedFhirVersion.isValid(versionParam)) {
+            logger.error("Invalid FHIR version: {}", versionParam);
+            ctx.response().setStatusCode(400).end(new JsonObject()
+                .put("error", "Invalid FHIR version: " + versionParam + ". Supported versions are: " +
+                     java.util.Arrays.toString(SupportedFhirVersion.values())).put("status", "error").encode());
+            return;
+        }
+        ProfileService service = getProfileService(SupportedFhirVersion.valueOf(versionParam));
+        if (service == null) {
+            logger.error("No profile service available for version: {}", versionParam);
+            ctx.response().setStatusCode(400).end(new JsonObject()
+                .put("error", "Unsupported FHIR version: " + versionParam).put("status", "error").encode());
+            return;
+        }
+        Buffer body = ctx.body().buffer();
+        String contentType = ctx.request().getHeader("Content-Type");
+        long startedAt = System.currentTimeMillis();
+        // Large bundles are split off the event loop
+        vertx.executeBlocking(() -> readProfiles(body, contentType), false)
+                .compose(service::registerProfiles)
+                .onSuccess(profileUrls -> ctx.response()
+                        .setStatusCode(200)
+                        .putHeader("Content-Type", "application/json")
+                        .end(new JsonObject()
+                                .put("status", "success")
+                                .put("count", profileUrls.size())
+                                .put("durationMs", System.currentTimeMillis() - startedAt)
+                                .put("profileUrls", new JsonArray(profileUrls))
+                                .encode()))
+                .onFailure(err -> {
+                    logger.error("Failed to register profiles: {}", err.getMessage());
+                    ctx.response()
+                       .setStatusCode(400)
+                       .putHeader("Content-Type", "application/json")
+                       .end(new JsonObject()
+                           .put("status", "error")
+                           .put("error", err.getMessage())
+                           .encode());
+                });
+    }
+
+    /**
+     * @param contentType NDJSON for one StructureDefinition per line, otherwise a JSON Bundle
+     */
+    static List<JsonObject> readProfiles(Buffer body, String contentType) {
+        if (body == null || body.length() == 0) {
+            throw new IllegalArgumentException("Profiles are missing in the request");
+        }
+        List<JsonObject> profiles = new ArrayList<>();
+        if (contentType != null && contentType.contains("ndjson")) {
+            for (String line : body.toString(StandardCharsets.UTF_8).split("\\r?\\n")) {
+                if (!line.isBlank()) {
+                    profiles.add(new JsonObject(line));
+                }
+            }
+            return profiles;
+        }
+        JsonObject bundle = body.toJsonObject();
+        if (!"Bundle".equals(bundle.getString("resourceType"))) {
+            throw new IllegalArgumentException("Expected a Bundle of StructureDefinitions or NDJSON");
+        }
+        JsonArray entries = bundle.getJsonArray("entry", new JsonArray());
+        for (int i = 0; i < entries.size(); i++) {
+            JsonObject resource = entries.getJsonObject(i).getJsonObject("resource");
+            if (resource != null) {
+                profiles.add(resource);
+            }
+        }
+        return profiles;
     }
 
     private void handleRegistration(RoutingContext ctx) {
@@ -82,7 +173,7 @@ public class ProfileApi {
         String version = versionEnum.name();
 
         // Get the appropriate profile service based on the version
-        ProfileService service = profileServices.getOrDefault(versionEnum, profileServices.get(SupportedFhirVersion.getDefault()));
+        ProfileService service = getProfileService(versionEnum);
         if (service == null) {
             logger.error("No profile service available for version: {}", version);
             ctx.response().setStatusCode(400).end(new JsonObject()
@@ -1,7 +1,5 @@
 package nzi.fhir.validator.web.endpoint;
 
-import ca.uhn.fhir.context.FhirContext;
-import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonArray;
@@ -13,24 +11,34 @@ import io.vertx.ext.web.openapi.RouterBuilder;
 import io.vertx.ext.web.validation.BodyProcessorException;
 import io.vertx.sqlclient.Pool;
 import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgInclusionJob;
+import nzi.fhir.validator.core.model.IgResourceLoadPolicy;
 import nzi.fhir.validator.core.model.ValidatorIdentity;
 import nzi.fhir.validator.core.enums.SupportedFhirVersion;
 import nzi.fhir.validator.core.model.ValidationRequestContext;
 import nzi.fhir.validator.core.service.FhirContextLoader;
+import nzi.fhir.validator.core.service.FhirPathExpressionCache;
 import nzi.fhir.validator.core.service.FhirValidationService;
+import nzi.fhir.validator.core.service.IgInclusionJobService;
 import nzi.fhir.validator.core.service.IgPackageService;
 import nzi.fhir.validator.core.service.ProfileService;
+import nzi.fhir.validator.core.service.ValidatorHeapBudget;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 /**
  * @author Md Nazrul Islam
  */
 public class ValidationApi {
     private static final Logger logger = LogManager.getLogger(ValidationApi.class);
+    // FHIR versions validators are built for at startup, when enabled in FhirContextLoader
+    private static final List<SupportedFhirVersion> VALIDATOR_FHIR_VERSIONS = List.of(SupportedFhirVersion.R4, SupportedFhirVersion.R4B, SupportedFhirVersion.R5);
     private  Vertx vertx;
     private  Pool pgPool;
 
@@ -45,49 +53,26 @@ public class ValidationApi {
     }
 
     public static Future<ValidationApi> create(Vertx vertx, Pool pgPool) {
+        return create(vertx, pgPool, IgPackageService.create(vertx, pgPool));
+    }
+
+    public static Future<ValidationApi> create(Vertx vertx, Pool pgPool, IgPackageService igPackageService) {
         return Future.future(promise -> {
+            long startedAt = System.currentTimeMillis();
             FhirContextLoader fhirContextLoader = FhirContextLoader.getInstance();
 
-            // Create FhirContext instances for different FHIR versions
-            FhirContext fhirContextR4 = fhirContextLoader.getContext(SupportedFhirVersion.R4);
-            FhirContext fhirContextR4B = fhirContextLoader.getContext(SupportedFhirVersion.R4B);
-            FhirContext fhirContextR5 = fhirContextLoader.getContext(SupportedFhirVersion.R5);
-
-            // Create profile services for different FHIR versions
-            ProfileService profileServiceR4 = ProfileService.create(vertx, fhirContextR4, pgPool);
-            ProfileService profileServiceR4B = ProfileService.create(vertx, fhirContextR4B, pgPool);
-            ProfileService profileServiceR5 = ProfileService.create(vertx, fhirContextR5, pgPool);
-
-            // Create IG services for different FHIR versions
-            IgPackageService igPackageService = IgPackageService.create(vertx, pgPool);
-
-            CompositeFuture.all(
-                // R4
-                FhirValidationService.create(vertx, SupportedFhirVersion.R4, igPackageService, profileServiceR4)
-                    .compose(fhirValidationService ->
-                            fhirValidationService.syncPreviousStateFromDatabase(pgPool).compose(v1 ->
-                                fhirValidationService.saveSateToDatabase(pgPool).map(v2 -> fhirValidationService)
-                            )
-                        )
-                    .onSuccess(service -> logger.info("Validation service initialized for version: {}", SupportedFhirVersion.R4.name())),
-
-                // R4B
-                FhirValidationService.create(vertx, SupportedFhirVersion.R4B, igPackageService, profileServiceR4B)
-                    .compose(fhirValidationService ->
-                            fhirValidationService.syncPreviousStateFromDatabase(pgPool).compose(v1 ->
-                                    fhirValidationService.saveSateToDatabase(pgPool).map(v2 -> fhirValidationService)
-                            )
-                    )
-                    .onSuccess(service -> logger.info("Validation service initialized for version: {}", SupportedFhirVersion.R4B.name())),
-                FhirValidationService.create(vertx, SupportedFhirVersion.R5, igPackageService, profileServiceR5)
-                    .compose(fhirValidationService ->
-                            fhirValidationService.syncPreviousStateFromDatabase(pgPool).compose(v1 ->
-                                    fhirValidationService.saveSateToDatabase(pgPool).map(v2 -> fhirValidationService)
-                            )
-                    )
-                    .onSuccess(service -> logger.info("Validation service initialized for version: {}", SupportedFhirVersion.R5.name()))
-            ).onComplete(ar -> {
+            // Every enabled version is built independently: context, validator, previous state
+            List<Future<FhirValidationService>> validatorFutures = new ArrayList<>();
+            for (SupportedFhirVersion fhirVersion : VALIDATOR_FHIR_VERSIONS) {
+                if (!fhirContextLoader.hasContext(fhirVersion)) {
+                    logger.info("FHIR version {} is not enabled, no validator created", fhirVersion.name());
+                    continue;
+                }
+                validatorFutures.add(initializeValidationService(vertx, pgPool, fhirVersion, igPackageService));
+            }
+            Future.all(validatorFutures).onComplete(ar -> {
                 if (ar.succeeded()) {
+                    logger.info("Validation services initialized in {} ms", System.currentTimeMillis() - startedAt);
                     promise.complete(createInstance(vertx, pgPool));
                 } else {
                     logger.error("Failed to initialize validation services", ar.cause());
@@ -96,6 +81,33 @@ public class ValidationApi {
             });
         });
     }
+
+    private static Future<FhirValidationService> initializeValidationService(Vertx vertx, Pool pgPool, SupportedFhirVersion fhirVersion, IgPackageService igPackageService) {
+        long startedAt = System.currentTimeMillis();
+        long[] phaseStartedAt = {startedAt};
+        return FhirContextLoader.getInstance().warmUp(vertx, fhirVersion)
+                .compose(fhirContext -> {
+                    logger.info("[{}] FHIR context ready in {} ms", fhirVersion.name(), elapsed(phaseStartedAt));
+                    ProfileService profileService = ProfileService.create(vertx, fhirContext, pgPool);
+                    return FhirValidationService.create(vertx, fhirVersion, igPackageService, profileService);
+                })
+                .compose(fhirValidationService -> {
+                    logger.info("[{}] Validator built in {} ms", fhirVersion.name(), elapsed(phaseStartedAt));
+                    return fhirValidationService.syncPreviousStateFromDatabase(pgPool).compose(v1 -> {
+                        logger.info("[{}] Previous state synced in {} ms", fhirVersion.name(), elapsed(phaseStartedAt));
+                        return fhirValidationService.saveSateToDatabase(pgPool).map(v2 -> fhirValidationService);
+                    });
+                })
+                .onSuccess(service -> logger.info("Validation service initialized for version: {} in {} ms", fhirVersion.name(), System.currentTimeMillis() - startedAt));
+    }
+
+    private static long elapsed(long[] phaseStartedAt) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - phaseStartedAt[0];
+        phaseStartedAt[0] = now;
+        return elapsed;
+    }
+
     /**
      * Configures the routes for validation API endpoints.
      *
@@ -108,6 +120,21 @@ public class ValidationApi {
         // Method: POST, Path: "/:version/include-ig"
         routerBuilder.operation("validationApiIncludeIg")
                 .handler(this::handleIncludeImplementationGuide);
+        // Method: DELETE, Path: "/:version/include-ig/:name"
+        routerBuilder.operation("validationApiRemoveIg")
+                .handler(this::handleRemoveImplementationGuide);
+        // Method: GET, Path: "/:version/resource-load-policy"
+        routerBuilder.operation("validationApiGetResourceLoadPolicy")
+                .handler(this::handleGetResourceLoadPolicy);
+        // Method: PUT, Path: "/:version/resource-load-policy"
+        routerBuilder.operation("validationApiSetResourceLoadPolicy")
+                .handler(this::handleSetResourceLoadPolicy);
+        // Method: GET, Path: "/jobs/:jobId"
+        routerBuilder.operation("validationApiGetJob")
+                .handler(this::handleGetJob);
+        // Method: GET, Path: "/validators/memory"
+        routerBuilder.operation("validationApiMemoryReport")
+                .handler(this::handleMemoryReport);
 
     }
 
@@ -135,10 +162,13 @@ public class ValidationApi {
                                 Arrays.toString(SupportedFhirVersion.values())).encode());
                 return;
             }
-            ValidationRequestContext.fromRoutingContext(ctx).onSuccess(validationRequestContext -> {
-                // Get the appropriate validation service based on the version
-
-                FhirValidationService service = FhirValidationService.get(validationRequestContext.getValidatorIdentity());
+            ValidationRequestContext.fromRoutingContext(ctx).compose(validationRequestContext ->
+                    // Get the appropriate validation service based on the version, rebuilding it if it was evicted
+                    FhirValidationService.getOrRestore(validationRequestContext.getValidatorIdentity(), pgPool)
+                            .map(service -> Map.entry(validationRequestContext, Optional.ofNullable(service)))
+            ).onSuccess(entry -> {
+                ValidationRequestContext validationRequestContext = entry.getKey();
+                FhirValidationService service = entry.getValue().orElse(null);
                 if (service == null) {
                     logger.error("No validation service available for version: {}", validationRequestContext.getValidatorIdentity().getFhirVersion());
                     ctx.response()
@@ -165,7 +195,7 @@ public class ValidationApi {
             }).onFailure(throwable -> {
                 logger.error("Failed to construct ValidationRequest from routing context", throwable);
                 ctx.response()
-                    .setStatusCode(400)
+                    .setStatusCode(throwable instanceof ValidatorHeapBudget.HeapBudgetExceededException ? 503 : 400)
                     .end(generateFatalError(throwable).encode());
             });
         } catch (BodyProcessorException e) {
@@ -184,25 +214,65 @@ public class ValidationApi {
         }
     }
 
+    private void handleMemoryReport(RoutingContext ctx) {
+        ctx.response()
+                .putHeader("Content-Type", "application/json")
+                .setStatusCode(200)
+                .end(ValidatorHeapBudget.getInstance().toJson()
+                        .put("fhirPathExpressions", FhirPathExpressionCache.statsJson())
+                        .encode());
+    }
+
+    private void handleGetResourceLoadPolicy(RoutingContext ctx) {
+        ValidationRequestContext.createValidatorIdentity(ctx, pgPool)
+                .compose(validatorIdentity -> FhirValidationService.getOrRestore(validatorIdentity, pgPool))
+                .onSuccess(service -> {
+                    if (service == null) {
+                        ctx.response().setStatusCode(400).end(generateFatalError("No validation service available for: " + ctx.pathParam("version")).encode());
+                        return;
+                    }
+                    ctx.json(service.getResourceLoadPolicy().toJson());
+                })
+                .onFailure(err -> ctx.response().setStatusCode(determineStatusCode(err)).end(generateFatalError(err).encode()));
+    }
+
+    private void handleSetResourceLoadPolicy(RoutingContext ctx) {
+        IgResourceLoadPolicy resourceLoadPolicy;
+        try {
+            resourceLoadPolicy = IgResourceLoadPolicy.fromJson(ctx.body().asJsonObject());
+        } catch (IllegalArgumentException | ClassCastException e) {
+            ctx.response().setStatusCode(400).end(generateFatalError(e).encode());
+            return;
+        }
+        ValidationRequestContext.createValidatorIdentity(ctx, pgPool)
+                .compose(validatorIdentity -> FhirValidationService.getOrRestore(validatorIdentity, pgPool))
+                .compose(service -> {
+                    if (service == null) {
+                        return Future.failedFuture(new IllegalArgumentException("No validation service available for: " + ctx.pathParam("version")));
+                    }
+                    service.setResourceLoadPolicy(resourceLoadPolicy);
+                    logger.info("Resource load policy of validator {} set to {}", service.getId().getId(), resourceLoadPolicy);
+                    return service.saveSateToDatabase(pgPool).map(v -> service.getResourceLoadPolicy());
+                })
+                .onSuccess(policy -> ctx.json(policy.toJson()))
+                .onFailure(err -> ctx.response().setStatusCode(determineStatusCode(err)).end(generateFatalError(err).encode()));
+    }
+
     private void handleIncludeImplementationGuide(RoutingContext ctx) {
         try {
             createIgPackageIdentityFromRequest(ctx)
-                .compose(igPackageIdentity -> includeIgPackage(ctx, igPackageIdentity))
-                .onComplete(result -> {
-                    if (!ctx.response().ended()) {
-                        if (result.succeeded()) {
-                            ctx.response()
-                                    .putHeader("Content-Type", "application/json")
-                                    .setStatusCode(200)
-                                    .end(new JsonObject().put("status", "success").encode());
-                        } else {
-                            logger.error("Failed to include implementation guide", result.cause());
-                            ctx.response()
-                                    .putHeader("Content-Type", "application/json")
-                                    .setStatusCode(400)
-                                    .end(generateFatalError(result.cause()).encode());
-                        }
-                    }
+                .compose(igPackageIdentity -> submitIncludeIgPackageJob(ctx, igPackageIdentity))
+                .onSuccess(job -> ctx.response()
+                        .putHeader("Content-Type", "application/json")
+                        .putHeader("Location", "/jobs/" + job.getId())
+                        .setStatusCode(202)
+                        .end(job.toJson().encode()))
+                .onFailure(err -> {
+                    logger.error("Failed to include implementation guide", err);
+                    ctx.response()
+                            .putHeader("Content-Type", "application/json")
+                            .setStatusCode(400)
+                            .end(generateFatalError(err).encode());
                 });
         } catch (Exception e) {
             logger.error("Unexpected error processing request", e);
@@ -214,7 +284,12 @@ public class ValidationApi {
 
     }
 
-    private Future<Void> includeIgPackage(RoutingContext routingContext, IGPackageIdentity igPackageIdentity) {
+    /**
+     * Starts including the IG package into the validator in the background, the load easily outlasting
+     * the request. The validator switches to the new IG set once the job is done.
+     * @return the job including the IG package
+     */
+    private Future<IgInclusionJob> submitIncludeIgPackageJob(RoutingContext routingContext, IGPackageIdentity igPackageIdentity) {
         String requestId = routingContext.get("requestId", "unknown");
         logger.debug("Processing IG package request [{}] for package: {}", requestId, igPackageIdentity);
 
@@ -223,52 +298,96 @@ public class ValidationApi {
         }
 
         return ValidationRequestContext.createValidatorIdentity(routingContext, pgPool)
-        .compose(validatorIdentity -> {
-            FhirValidationService validationService = FhirValidationService.get(validatorIdentity);
+        .compose(validatorIdentity -> FhirValidationService.getOrRestore(validatorIdentity, pgPool).compose(validationService -> {
             if (validationService == null) {
                 String error = String.format("No validation service available for FHIR version: %s (Request ID: %s)",
                     validatorIdentity.getFhirVersion().name(), requestId);
                 logger.error(error);
                 return Future.failedFuture(error);
             }
-            for (IGPackageIdentity ipi: validationService.getIncludedIgPackagesListForNpmPackageValidation()){
-                if (ipi.getName().equals(igPackageIdentity.getName()) && ipi.getVersion().equals(igPackageIdentity.getVersion())){
-                    logger.info("IG package already included in validation service for package: {}", igPackageIdentity);
-                    return Future.succeededFuture();
-                }
-            }
-            return validationService.addNpmIgPackage(igPackageIdentity)
-                   .compose(v -> validationService.saveSateToDatabase(pgPool)); // Add this line to save state
-        })
-        .onSuccess(v -> {
-            synchronized(routingContext.response()) {
-                if (!routingContext.response().ended()) {
-                    routingContext.response()
-                        .putHeader("Content-Type", "application/json")
-                        .setStatusCode(200)
-                        .end(new JsonObject().put("status", "success").encode());
-                }
-            }
-        })
-        .onFailure(err -> {
-            synchronized(routingContext.response()) {
-                if (!routingContext.response().ended()) {
-                    logger.error("Failed to process IG package request [{}]: {}", requestId, err.getMessage(), err);
-                    int statusCode = determineStatusCode(err);
-                    routingContext.response()
-                        .putHeader("Content-Type", "application/json")
-                        .setStatusCode(statusCode)
-                        .end(generateFatalError(err).encode());
-                }
+            return Future.succeededFuture(IgInclusionJobService.getInstance().submit(validatorIdentity, igPackageIdentity,
+                    job -> includeIgPackage(validationService, igPackageIdentity, job)));
+        }));
+    }
+
+    private Future<Void> includeIgPackage(FhirValidationService validationService, IGPackageIdentity igPackageIdentity, IgInclusionJob job) {
+        for (IGPackageIdentity ipi: validationService.getIncludedIgPackagesListForNpmPackageValidation()){
+            if (ipi.getName().equals(igPackageIdentity.getName()) && ipi.getVersion().equals(igPackageIdentity.getVersion())){
+                logger.info("IG package already included in validation service for package: {}", igPackageIdentity);
+                return Future.succeededFuture();
             }
-        });
-}
+        }
+        return validationService.addNpmIgPackage(igPackageIdentity, job)
+               .compose(v -> {
+                   job.markSaving();
+                   return validationService.saveSateToDatabase(pgPool);
+               })
+               .compose(v -> validationService.saveSnapshotToDatabase(pgPool));
+    }
+
+    private void handleGetJob(RoutingContext ctx) {
+        IgInclusionJob job = IgInclusionJobService.getInstance().get(ctx.pathParam("jobId"));
+        if (job == null) {
+            ctx.response()
+                    .putHeader("Content-Type", "application/json")
+                    .setStatusCode(404)
+                    .end(generateFatalError("Job not found: " + ctx.pathParam("jobId")).encode());
+            return;
+        }
+        ctx.response()
+                .putHeader("Content-Type", "application/json")
+                .setStatusCode(200)
+                .end(job.toJson().encode());
+    }
+
+    private void handleRemoveImplementationGuide(RoutingContext ctx) {
+        String igPackageName = ctx.pathParam("name");
+        ValidationRequestContext.createValidatorIdentity(ctx, pgPool)
+                .compose(validatorIdentity -> FhirValidationService.getOrRestore(validatorIdentity, pgPool))
+                .compose(service -> {
+                    if (service == null) {
+                        return Future.failedFuture(new IllegalArgumentException("No validation service available for: " + ctx.pathParam("version")));
+                    }
+                    return service.removeNpmIgPackage(igPackageName)
+                            .compose(removed -> {
+                                if (removed.isEmpty()) {
+                                    return Future.succeededFuture(removed);
+                                }
+                                return service.saveSateToDatabase(pgPool)
+                                        .compose(v -> service.saveSnapshotToDatabase(pgPool))
+                                        .map(v -> removed);
+                            });
+                })
+                .onSuccess(removed -> {
+                    if (removed.isEmpty()) {
+                        ctx.response()
+                                .putHeader("Content-Type", "application/json")
+                                .setStatusCode(404)
+                                .end(generateFatalError("IG package is not included: " + igPackageName).encode());
+                        return;
+                    }
+                    ctx.json(new JsonObject()
+                            .put("status", "success")
+                            .put("removed", new JsonArray(removed.stream()
+                                    .map(igPackageIdentity -> igPackageIdentity.getName() + "#" + igPackageIdentity.getVersion())
+                                    .toList())));
+                })
+                .onFailure(err -> {
+                    logger.error("Failed to remove implementation guide {}", igPackageName, err);
+                    ctx.response()
+                            .putHeader("Content-Type", "application/json")
+                            .setStatusCode(determineStatusCode(err))
+                            .end(generateFatalError(err).encode());
+                });
+    }
 
     private int determineStatusCode(Throwable err) {
         if (err instanceof IllegalArgumentException) {
             return 400; // Bad Request
         } else if (err instanceof SecurityException) {
             return 403; // Forbidden
+        } else if (err instanceof ValidatorHeapBudget.HeapBudgetExceededException) {
+            return 503; // Service Unavailable
         } else {
             return 500; // Internal Server Error
         }
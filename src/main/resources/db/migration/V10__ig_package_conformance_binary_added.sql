@@ -0,0 +1,6 @@
+-- Parsed conformance resources of the package folder in binary form, generated at registration, so
+-- validators can skip parsing the JSON. The format column records the binary format and HAPI FHIR
+-- version the form was written with; a form of another version is stale and ignored.
+ALTER TABLE fhir_validator_schema.fhir_implementation_guides
+    ADD COLUMN IF NOT EXISTS conformance_binary BYTEA NULL,
+    ADD COLUMN IF NOT EXISTS conformance_binary_format TEXT NULL;
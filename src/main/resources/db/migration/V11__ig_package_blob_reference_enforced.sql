@@ -0,0 +1,5 @@
+-- A package row never points at a removed blob: deleting a referenced blob fails instead of leaving the
+-- package without content. Not validated, rows of older versions may still point at missing blobs.
+ALTER TABLE fhir_validator_schema.fhir_implementation_guides
+    ADD CONSTRAINT fhir_implementation_guides_blob_fk FOREIGN KEY (content_hash)
+        REFERENCES fhir_validator_schema.fhir_ig_package_blobs (content_hash) NOT VALID;
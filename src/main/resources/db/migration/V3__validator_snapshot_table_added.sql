@@ -0,0 +1,10 @@
+-- Create Validator Snapshots Table
+-- One binary snapshot of the parsed IG resources per validator, valid only for the IG set it was taken for
+CREATE TABLE IF NOT EXISTS fhir_validator_schema.fhir_validator_snapshots (
+    validator_id VARCHAR(36) NOT NULL,
+    fhir_version VARCHAR(16) NOT NULL,
+    fingerprint VARCHAR(64) NOT NULL,
+    snapshot BYTEA NOT NULL,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (validator_id, fhir_version)
+);
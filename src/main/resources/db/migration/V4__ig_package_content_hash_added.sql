@@ -0,0 +1,7 @@
+-- SHA-256 (hex) of content_raw, used as the key of extracted packages on local disk
+ALTER TABLE fhir_validator_schema.fhir_implementation_guides
+    ADD COLUMN IF NOT EXISTS content_hash VARCHAR(64);
+
+UPDATE fhir_validator_schema.fhir_implementation_guides
+    SET content_hash = encode(sha256(content_raw), 'hex')
+    WHERE content_hash IS NULL;
@@ -0,0 +1,24 @@
+-- IG package tarballs are stored as 1 MB chunks keyed by their SHA-256, so they can be written
+-- and read as a stream instead of a single BYTEA value
+CREATE TABLE IF NOT EXISTS fhir_validator_schema.fhir_ig_package_chunks (
+    content_hash VARCHAR(64) NOT NULL,
+    chunk_index INT NOT NULL,
+    chunk BYTEA NOT NULL,
+    PRIMARY KEY (content_hash, chunk_index)
+);
+
+ALTER TABLE fhir_validator_schema.fhir_implementation_guides
+    ALTER COLUMN content_raw DROP NOT NULL,
+    ADD COLUMN IF NOT EXISTS content_size BIGINT;
+
+INSERT INTO fhir_validator_schema.fhir_ig_package_chunks (content_hash, chunk_index, chunk)
+SELECT ig.content_hash, i, substring(ig.content_raw FROM i * 1048576 + 1 FOR 1048576)
+FROM fhir_validator_schema.fhir_implementation_guides ig,
+     generate_series(0, GREATEST((length(ig.content_raw) - 1) / 1048576, 0)) AS i
+WHERE ig.content_raw IS NOT NULL AND ig.content_hash IS NOT NULL
+ON CONFLICT (content_hash, chunk_index) DO NOTHING;
+
+UPDATE fhir_validator_schema.fhir_implementation_guides
+    SET content_size = length(content_raw),
+        content_raw = NULL
+    WHERE content_raw IS NOT NULL AND content_hash IS NOT NULL;
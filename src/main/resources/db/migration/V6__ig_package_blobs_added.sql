@@ -0,0 +1,25 @@
+-- Content addressed IG package blobs: a tarball is stored once per SHA-256, however many times or
+-- under however many package ids it is registered
+CREATE TABLE IF NOT EXISTS fhir_validator_schema.fhir_ig_package_blobs (
+    content_hash VARCHAR(64) PRIMARY KEY,
+    content_size BIGINT NOT NULL,
+    chunk_count INT NOT NULL,
+    created_at TIMESTAMPTZ NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+INSERT INTO fhir_validator_schema.fhir_ig_package_blobs (content_hash, content_size, chunk_count)
+SELECT content_hash, SUM(length(chunk)), COUNT(*)
+FROM fhir_validator_schema.fhir_ig_package_chunks
+GROUP BY content_hash
+ON CONFLICT (content_hash) DO NOTHING;
+
+ALTER TABLE fhir_validator_schema.fhir_ig_package_chunks
+    ADD CONSTRAINT fhir_ig_package_chunks_blob_fk FOREIGN KEY (content_hash)
+        REFERENCES fhir_validator_schema.fhir_ig_package_blobs (content_hash) ON DELETE CASCADE;
+
+CREATE INDEX IF NOT EXISTS fhir_implementation_guides_content_hash_idx
+    ON fhir_validator_schema.fhir_implementation_guides (content_hash);
+
+-- Registrations now touch only the metadata when the content is unchanged
+ALTER TABLE fhir_validator_schema.fhir_implementation_guides
+    ADD COLUMN IF NOT EXISTS modified_at TIMESTAMPTZ NULL;
@@ -0,0 +1,21 @@
+-- One row per canonical resource of a registered IG package, resolvable by canonical URL and version
+-- without loading the package. Packages registered before this table existed are indexed the next
+-- time they are registered.
+CREATE TABLE IF NOT EXISTS fhir_validator_schema.fhir_ig_resources (
+    id BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY,
+    ig_package_id VARCHAR(127) NOT NULL,
+    ig_package_version VARCHAR(16) NOT NULL,
+    resource_type TEXT NOT NULL,
+    resource_id TEXT,
+    url TEXT NOT NULL,
+    resource_version TEXT,
+    resource_json JSONB NOT NULL,
+    FOREIGN KEY (ig_package_id, ig_package_version)
+        REFERENCES fhir_validator_schema.fhir_implementation_guides (ig_package_id, ig_package_version) ON DELETE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS fhir_ig_resources_url_version_idx
+    ON fhir_validator_schema.fhir_ig_resources (url, resource_version);
+
+CREATE INDEX IF NOT EXISTS fhir_ig_resources_package_idx
+    ON fhir_validator_schema.fhir_ig_resources (ig_package_id, ig_package_version);
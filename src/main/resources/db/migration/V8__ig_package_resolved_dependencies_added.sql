@@ -0,0 +1,3 @@
+-- Transitive dependency graph of a package in topological order, recorded when its dependencies are resolved
+ALTER TABLE fhir_validator_schema.fhir_implementation_guides
+    ADD COLUMN IF NOT EXISTS resolved_dependencies JSONB NULL;
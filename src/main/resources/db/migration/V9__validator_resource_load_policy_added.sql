@@ -0,0 +1,3 @@
+-- Folders and resource types of IG packages loaded by a validator, NULL for the configured default
+ALTER TABLE fhir_validator_schema.fhir_validator_logs
+    ADD COLUMN IF NOT EXISTS resource_load_policy JSONB NULL;
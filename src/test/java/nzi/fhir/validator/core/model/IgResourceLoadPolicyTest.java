@@ -0,0 +1,45 @@
+package nzi.fhir.validator.core.model;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class IgResourceLoadPolicyTest {
+
+    @Test
+    public void testDefaults() {
+        IgResourceLoadPolicy policy = IgResourceLoadPolicy.defaults();
+        assertEquals(Set.copyOf(IgResourceLoadPolicy.CONFORMANCE_RESOURCE_TYPES), policy.getResourceTypes());
+        assertEquals(List.of("package"), policy.getFolders());
+        assertTrue(policy.allowsResourceType("StructureDefinition"));
+        assertFalse(policy.allowsResourceType("CapabilityStatement"));
+        assertTrue(policy.allowsFolder("package"));
+        assertFalse(policy.allowsFolder("example"));
+    }
+
+    @Test
+    public void testJsonRoundTrip() {
+        IgResourceLoadPolicy policy = IgResourceLoadPolicy.fromJson(new JsonObject()
+                .put("resourceTypes", new JsonArray().add("*"))
+                .put("folders", new JsonArray().add("package").add("package/example/")));
+        assertTrue(policy.allowsResourceType("Patient"));
+        assertTrue(policy.allowsFolder("example"));
+        assertEquals(List.of("package", "package/example"), policy.getFolders());
+        assertEquals(policy, IgResourceLoadPolicy.fromJson(policy.toJson()));
+
+        // Missing properties take the default
+        IgResourceLoadPolicy examples = IgResourceLoadPolicy.fromJson(new JsonObject().put("folders", new JsonArray().add("package/example")));
+        assertEquals(IgResourceLoadPolicy.defaults().getResourceTypes(), examples.getResourceTypes());
+        assertFalse(examples.allowsFolder("package"));
+
+        assertThrows(IllegalArgumentException.class, () -> IgResourceLoadPolicy.fromJson(new JsonObject().put("resourceTypes", new JsonArray())));
+    }
+}
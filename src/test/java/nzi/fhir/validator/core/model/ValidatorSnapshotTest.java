@@ -0,0 +1,41 @@
+package nzi.fhir.validator.core.model;
+
+import nzi.fhir.validator.core.enums.SupportedFhirVersion;
+import nzi.fhir.validator.core.npm.ParsedResourceCodec;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class ValidatorSnapshotTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        IGPackageIdentity usCore = new IGPackageIdentity("hl7.fhir.us.core", "7.0.0", SupportedFhirVersion.R4);
+        IGPackageIdentity dkCore = new IGPackageIdentity("hl7.fhir.dk.core", "3.4.0", SupportedFhirVersion.R4);
+        assertEquals(ValidatorSnapshot.fingerprint(List.of(usCore, dkCore)), ValidatorSnapshot.fingerprint(List.of(dkCore, usCore)));
+        assertNotEquals(ValidatorSnapshot.fingerprint(List.of(usCore)), ValidatorSnapshot.fingerprint(List.of(dkCore, usCore)));
+
+        StructureDefinition profile = new StructureDefinition();
+        profile.setUrl("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient");
+        profile.setVersion("7.0.0");
+        ArrayList<IBaseResource> resources = new ArrayList<>(List.of(profile));
+        ValidatorSnapshot snapshot = new ValidatorSnapshot(ValidatorSnapshot.fingerprint(List.of(usCore)),
+                List.of(new ValidatorSnapshot.IgPackageEntry(usCore.getName(), usCore.getVersion(), usCore.getFhirVersion(), 1024, resources)));
+
+        ValidatorSnapshot restored = ValidatorSnapshot.fromBytes(snapshot.toBytes());
+        assertEquals(snapshot.getFingerprint(), restored.getFingerprint());
+        assertEquals(usCore, restored.getIgPackages().get(0).asIgPackageIdentity());
+        StructureDefinition restoredProfile = (StructureDefinition) restored.getIgPackages().get(0).resources().get(0);
+        assertEquals(profile.getUrl(), restoredProfile.getUrl());
+        assertThrows(IOException.class, () -> ValidatorSnapshot.fromBytes(ParsedResourceCodec.encode("not a snapshot")));
+    }
+}
@@ -0,0 +1,41 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DigestFileWriteStreamTest {
+
+    @Test
+    public void testHashesWhileWriting() throws Exception {
+        byte[] content;
+        try (InputStream inputStream = getClass().getResourceAsStream("/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz")) {
+            assertNotNull(inputStream);
+            content = inputStream.readAllBytes();
+        }
+        Vertx vertx = Vertx.vertx();
+        try {
+            DigestFileWriteStream stream = DigestFileWriteStream.create(vertx).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            int chunkSize = 64 * 1024;
+            for (int offset = 0; offset < content.length; offset += chunkSize) {
+                stream.write(Buffer.buffer(content).slice(offset, Math.min(content.length, offset + chunkSize)));
+            }
+            stream.end().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+            assertEquals(PostgresPackageCacheManager.computeContentHash(content), stream.getContentHash());
+            assertEquals(content.length, stream.getSize());
+            assertArrayEquals(content, Files.readAllBytes(stream.getFile()));
+
+            stream.discard(vertx).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            assertFalse(Files.exists(stream.getFile()));
+        } finally {
+            vertx.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package nzi.fhir.validator.core.npm;
+
+import ca.uhn.fhir.context.FhirContext;
+import nzi.fhir.validator.core.model.IgPackageName;
+import nzi.fhir.validator.core.model.IgResourceLoadPolicy;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IgPackageConformanceBinaryTest {
+
+    @Test
+    public void testEncodeAndDecode() throws IOException {
+        NpmPackage npmPackage;
+        try (InputStream inputStream = getClass().getResourceAsStream("/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz")) {
+            assertNotNull(inputStream);
+            npmPackage = NpmPackage.fromPackage(inputStream);
+        }
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        ArrayList<IgPackageConformanceBinary.Entry> entries = IgPackageConformanceBinary.parse(fhirContext, new IgPackageName("hl7.fhir.us.core", "7.0.0"), npmPackage);
+        // Conformance resources only: 63 StructureDefinitions, 29 ValueSets and 5 CodeSystems
+        assertEquals(97, entries.size());
+        assertTrue(entries.stream().allMatch(entry -> entry.rawJsonBytes() > 0));
+
+        List<IgPackageConformanceBinary.Entry> decoded = IgPackageConformanceBinary.decode(IgPackageConformanceBinary.encode(entries), fhirContext);
+        assertEquals(entries.size(), decoded.size());
+        StructureDefinition patient = decoded.stream()
+                .map(IgPackageConformanceBinary.Entry::resource)
+                .filter(resource -> resource instanceof StructureDefinition structureDefinition
+                        && "http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient".equals(structureDefinition.getUrl()))
+                .map(StructureDefinition.class::cast)
+                .findFirst()
+                .orElseThrow();
+        assertTrue(patient.getSnapshot().hasElement());
+
+        // Resources of another FHIR version are not handed to the validator
+        assertThrows(IOException.class, () -> IgPackageConformanceBinary.decode(IgPackageConformanceBinary.encode(entries), FhirContext.forR5Cached()));
+    }
+
+    @Test
+    public void testCovers() {
+        assertTrue(IgPackageConformanceBinary.covers(IgResourceLoadPolicy.defaults()));
+        assertTrue(IgPackageConformanceBinary.covers(new IgResourceLoadPolicy(List.of("StructureDefinition"), List.of("package"))));
+        assertFalse(IgPackageConformanceBinary.covers(new IgResourceLoadPolicy(List.of(IgResourceLoadPolicy.ALL_RESOURCE_TYPES), List.of("package"))));
+        assertFalse(IgPackageConformanceBinary.covers(new IgResourceLoadPolicy(List.of("StructureDefinition"), List.of("package", "package/example"))));
+    }
+
+    @Test
+    public void testIsUsable() {
+        assertTrue(IgPackageConformanceBinary.isUsable());
+        try {
+            // Not generated for lazy validators, nor when the default policy reaches beyond the form
+            System.setProperty("validator.resources.lazy", "true");
+            assertFalse(IgPackageConformanceBinary.isUsable());
+            System.clearProperty("validator.resources.lazy");
+            System.setProperty("validator.resources.folders", "package,package/example");
+            assertFalse(IgPackageConformanceBinary.isUsable());
+        } finally {
+            System.clearProperty("validator.resources.lazy");
+            System.clearProperty("validator.resources.folders");
+        }
+    }
+}
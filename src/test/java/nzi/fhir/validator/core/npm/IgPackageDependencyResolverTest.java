@@ -0,0 +1,68 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IgPackageDependencyResolverTest {
+
+    @Test
+    public void testTopologicalOrder() {
+        IgPackageName usCore = new IgPackageName("hl7.fhir.us.core", "7.0.0");
+        IgPackageName uvExtensions = new IgPackageName("hl7.fhir.uv.extensions.r4", "5.1.0");
+        IgPackageName terminology = new IgPackageName("hl7.terminology.r4", "6.0.2");
+        IgPackageName smart = new IgPackageName("hl7.fhir.uv.smart-app-launch", "2.1.0");
+        Map<IgPackageName, List<IgPackageName>> edges = new LinkedHashMap<>();
+        edges.put(usCore, List.of(uvExtensions, terminology, smart));
+        edges.put(uvExtensions, List.of(terminology));
+        edges.put(smart, List.of(terminology));
+        edges.put(terminology, List.of());
+
+        List<IgPackageName> order = IgPackageDependencyResolver.topologicalOrder(edges);
+        assertEquals(4, order.size());
+        assertEquals(terminology, order.get(0));
+        assertEquals(usCore, order.get(3));
+        assertTrue(order.indexOf(uvExtensions) < order.indexOf(usCore));
+
+        // A cycle does not lose nodes
+        edges.put(terminology, List.of(usCore));
+        assertEquals(4, IgPackageDependencyResolver.topologicalOrder(edges).size());
+    }
+
+    @Test
+    public void testRunBoundedLimitsConcurrency() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            AtomicInteger inFlight = new AtomicInteger();
+            AtomicInteger maxInFlight = new AtomicInteger();
+            List<Integer> items = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                items.add(i);
+            }
+            Future<Void> done = IgPackageDependencyResolver.runBounded(items, 3, item -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                Promise<Void> promise = Promise.promise();
+                vertx.setTimer(5, id -> {
+                    inFlight.decrementAndGet();
+                    promise.complete();
+                });
+                return promise.future();
+            });
+            done.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+            assertEquals(3, maxInFlight.get());
+        } finally {
+            vertx.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Tuple;
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IgPackageResourceIndexTest {
+
+    @Test
+    public void testExplode() throws IOException {
+        NpmPackage npmPackage;
+        try (InputStream inputStream = getClass().getResourceAsStream("/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz")) {
+            assertNotNull(inputStream);
+            npmPackage = NpmPackage.fromPackage(inputStream);
+        }
+        IgPackageName igPackageName = new IgPackageName("hl7.fhir.us.core", "7.0.0");
+        NpmPackage.NpmPackageFolder packageFolder = npmPackage.getFolders().get("package");
+        List<String> fileNames = IgPackageResourceIndex.resourceFiles(packageFolder);
+        assertFalse(fileNames.contains("package.json"));
+        List<Tuple> rows = IgPackageResourceIndex.explode(igPackageName, packageFolder, fileNames);
+        assertFalse(rows.isEmpty());
+        // Exploded a batch at a time, with the same rows
+        List<Tuple> batch = IgPackageResourceIndex.explode(igPackageName, packageFolder, fileNames.subList(0, 10));
+        assertTrue(batch.size() <= 10);
+        assertEquals(rows.get(0).getString(4), batch.get(0).getString(4));
+
+        Tuple patient = rows.stream()
+                .filter(row -> "http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient".equals(row.getString(4)))
+                .findFirst()
+                .orElseThrow();
+        assertEquals("hl7.fhir.us.core", patient.getString(0));
+        assertEquals("StructureDefinition", patient.getString(2));
+        assertEquals("7.0.0", patient.getString(5));
+        assertEquals("StructureDefinition", ((JsonObject) patient.getValue(6)).getString("resourceType"));
+        // Every row is a canonical resource
+        assertTrue(rows.stream().allMatch(row -> row.getString(4) != null));
+    }
+}
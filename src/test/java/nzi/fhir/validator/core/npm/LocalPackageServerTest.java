@@ -0,0 +1,45 @@
+package nzi.fhir.validator.core.npm;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalPackageServerTest {
+    private LocalPackageServer server;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = new LocalPackageServer(Path.of(getClass().getResource("/ig/packages").toURI()));
+    }
+
+    @Test
+    public void testPackageFile() {
+        Path file = server.packageFile("hl7.fhir.us.core", "7.0.0");
+        assertNotNull(file);
+        assertEquals(server.getRootDirectory().resolve("hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz"), file);
+        assertNull(server.packageFile("hl7.fhir.us.core", "6.1.0"));
+        assertNull(server.packageFile("hl7.fhir.us.mcode", "7.0.0"));
+    }
+
+    @Test
+    public void testPackageFileStaysInsideRoot() {
+        assertNull(server.packageFile("..", "7.0.0"));
+        assertNull(server.packageFile("hl7.fhir.us.core", "/../../../../core-7.0.0"));
+    }
+
+    @Test
+    public void testVersions() throws Exception {
+        assertEquals(List.of("7.0.0"), server.versions("hl7.fhir.us.core"));
+        assertTrue(server.versions("hl7.fhir.us.mcode").isEmpty());
+    }
+
+    @Test
+    public void testListPackageFiles() throws Exception {
+        assertEquals(List.of(server.packageFile("hl7.fhir.us.core", "7.0.0")), server.listPackageFiles());
+        assertThrows(java.io.IOException.class, () -> LocalPackageServer.listPackageFiles(server.getRootDirectory().resolve("missing")));
+    }
+}
@@ -0,0 +1,97 @@
+package nzi.fhir.validator.core.npm;
+
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NpmPackageDiskCacheTest {
+    private static final String US_CORE_PACKAGE = "/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz";
+
+    @TempDir
+    Path rootDirectory;
+
+    @Test
+    public void testStoreAndLoad() throws IOException {
+        IgPackageName igPackageName = new IgPackageName("hl7.fhir.us.core", "7.0.0");
+        byte[] content;
+        try (InputStream inputStream = getClass().getResourceAsStream(US_CORE_PACKAGE)) {
+            assertNotNull(inputStream);
+            content = inputStream.readAllBytes();
+        }
+        String contentHash = PostgresPackageCacheManager.computeContentHash(content);
+        NpmPackageDiskCache diskCache = new NpmPackageDiskCache(rootDirectory);
+        assertNull(diskCache.load(igPackageName, contentHash));
+
+        NpmPackage stored = diskCache.store(igPackageName, contentHash, new ByteArrayInputStream(content));
+        assertEquals("hl7.fhir.us.core", stored.name());
+        assertTrue(Files.isDirectory(diskCache.packageDirectory(igPackageName, contentHash)));
+
+        NpmPackage loaded = diskCache.load(igPackageName, contentHash);
+        assertNotNull(loaded);
+        assertEquals("7.0.0", loaded.version());
+        NpmPackage.NpmPackageFolder folder = loaded.getFolders().get("package");
+        String packageJson = NpmPackageDiskCache.readFile(folder, "package.json");
+        assertTrue(packageJson.contains("hl7.fhir.us.core"));
+        assertEquals(Files.size(Path.of(folder.getFolderPath(), "package.json")), NpmPackageDiskCache.fileSize(folder, "package.json"));
+
+        // Storing other contents for the same version replaces the stale ones
+        diskCache.store(igPackageName, "0".repeat(64), new ByteArrayInputStream(content));
+        assertNull(diskCache.load(igPackageName, contentHash));
+        diskCache.remove(igPackageName);
+        assertNull(diskCache.load(igPackageName, "0".repeat(64)));
+    }
+
+    @Test
+    public void testStoreFromFile() throws IOException {
+        Path tgzFile = rootDirectory.resolve("us-core.tgz");
+        try (InputStream inputStream = getClass().getResourceAsStream(US_CORE_PACKAGE)) {
+            assertNotNull(inputStream);
+            Files.copy(inputStream, tgzFile);
+        }
+        String contentHash = PostgresPackageCacheManager.computeContentHash(Files.readAllBytes(tgzFile));
+        NpmPackageDiskCache diskCache = new NpmPackageDiskCache(rootDirectory.resolve("packages"));
+
+        // Name and version are taken from the package itself
+        NpmPackage stored = diskCache.store(tgzFile, contentHash);
+        assertEquals("hl7.fhir.us.core", stored.name());
+        assertNotNull(diskCache.load(new IgPackageName("hl7.fhir.us.core", "7.0.0"), contentHash));
+    }
+
+    @Test
+    public void testRejectsPackagesNamingPathsOutsideTheRoot() throws IOException {
+        Path cacheRoot = rootDirectory.resolve("cache").resolve("packages");
+        Path sibling = Files.createDirectories(rootDirectory.resolve("keep"));
+        Files.writeString(sibling.resolve("file.txt"), "kept");
+        NpmPackageDiskCache diskCache = new NpmPackageDiskCache(cacheRoot);
+
+        Path tgzFile = rootDirectory.resolve("evil.tgz");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(Files.newOutputStream(tgzFile)))) {
+            byte[] packageJson = "{\"name\":\"..\",\"version\":\"..\",\"fhirVersions\":[\"4.0.1\"]}".getBytes(StandardCharsets.UTF_8);
+            TarArchiveEntry entry = new TarArchiveEntry("package/package.json");
+            entry.setSize(packageJson.length);
+            tar.putArchiveEntry(entry);
+            tar.write(packageJson);
+            tar.closeArchiveEntry();
+        }
+        assertThrows(IllegalArgumentException.class, () -> diskCache.store(tgzFile, "0".repeat(64)));
+        assertThrows(IllegalArgumentException.class, () -> diskCache.packageDirectory(new IgPackageName("hl7.fhir.us.core", "7.0.0"), "../x"));
+        assertThrows(IllegalArgumentException.class, () -> diskCache.packageDirectory(new IgPackageName("a/b", "1.0.0"), "0"));
+        diskCache.remove(new IgPackageName("..", ".."));
+
+        assertEquals("kept", Files.readString(sibling.resolve("file.txt")));
+        assertTrue(Files.isRegularFile(tgzFile));
+    }
+}
@@ -0,0 +1,66 @@
+package nzi.fhir.validator.core.npm;
+
+import nzi.fhir.validator.core.model.IgPackageName;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NpmPackageMemoryCacheTest {
+    private static final String US_CORE_PACKAGE = "/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz";
+
+    @TempDir
+    Path rootDirectory;
+
+    @Test
+    public void testPutGetAndInvalidate() throws IOException {
+        NpmPackage npmPackage;
+        try (InputStream inputStream = getClass().getResourceAsStream(US_CORE_PACKAGE)) {
+            assertNotNull(inputStream);
+            npmPackage = NpmPackage.fromPackage(inputStream);
+        }
+        long weight = NpmPackageMemoryCache.weigh(npmPackage);
+        assertTrue(weight > 0);
+
+        IgPackageName igPackageName = new IgPackageName("hl7.fhir.us.core", "7.0.0");
+        NpmPackageMemoryCache cache = new NpmPackageMemoryCache(weight * 2);
+        assertNull(cache.get(igPackageName));
+        cache.put(igPackageName, "a".repeat(64), npmPackage);
+        assertSame(npmPackage, cache.get(new IgPackageName("hl7.fhir.us.core", "7.0.0")));
+        assertEquals(1, cache.stats().getLong("hits"));
+
+        cache.invalidate(igPackageName);
+        assertNull(cache.get(igPackageName));
+        // Identical content is still cached under its hash
+        assertSame(npmPackage, cache.get("a".repeat(64)));
+    }
+
+    @Test
+    public void testFolderBackedPackagesAreWeighedByTheirFiles() throws IOException {
+        IgPackageName igPackageName = new IgPackageName("hl7.fhir.us.core", "7.0.0");
+        NpmPackage inMemory;
+        NpmPackage onDisk;
+        try (InputStream inputStream = getClass().getResourceAsStream(US_CORE_PACKAGE)) {
+            assertNotNull(inputStream);
+            byte[] content = inputStream.readAllBytes();
+            inMemory = NpmPackage.fromPackage(new ByteArrayInputStream(content));
+            onDisk = new NpmPackageDiskCache(rootDirectory).store(igPackageName, "a".repeat(64), new ByteArrayInputStream(content));
+        }
+        long weight = NpmPackageMemoryCache.weigh(onDisk);
+        assertTrue(weight > NpmPackageMemoryCache.MIN_WEIGHT);
+        assertTrue(weight >= NpmPackageMemoryCache.weigh(inMemory) / 2);
+
+        // A package too heavy for the cache is evicted, together with its alias
+        NpmPackageMemoryCache cache = new NpmPackageMemoryCache(weight / 2);
+        cache.put(igPackageName, "a".repeat(64), onDisk);
+        assertEquals(0, cache.size());
+        assertNull(cache.getContentHash(igPackageName));
+        assertEquals(1, cache.stats().getLong("evictions"));
+    }
+}
@@ -0,0 +1,94 @@
+package nzi.fhir.validator.core.npm;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import nzi.fhir.validator.core.config.PackageServerConfig;
+import org.hl7.fhir.utilities.npm.PackageServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackageServerClientTest {
+    private Vertx vertx;
+
+    @BeforeEach
+    public void setUp() {
+        vertx = Vertx.vertx();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSlowPrimaryIsHedged() throws Exception {
+        AtomicInteger backupRequests = new AtomicInteger();
+        HttpServer slow = startServer(request -> vertx.setTimer(3000, id -> request.response().end("slow")));
+        HttpServer fast = startServer(request -> {
+            backupRequests.incrementAndGet();
+            request.response().end("fast");
+        });
+        PackageServerClient client = new PackageServerClient(vertx, new PackageServerConfig(3, 10000, 100, 5, 30000));
+        List<PackageServer> servers = List.of(packageServer(slow), packageServer(fast));
+
+        long startedAt = System.currentTimeMillis();
+        DigestFileWriteStream download = client.download(servers, "hl7.fhir.us.core", "7.0.0").toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals("fast", Files.readString(download.getFile()));
+        assertTrue(System.currentTimeMillis() - startedAt < 2000);
+        assertEquals(1, backupRequests.get());
+        download.discard(vertx).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testFailingServerOpensCircuit() throws Exception {
+        HttpServer failing = startServer(request -> request.response().setStatusCode(500).end());
+        HttpServer notFound = startServer(request -> request.response().setStatusCode(404).end());
+        PackageServerClient client = new PackageServerClient(vertx, new PackageServerConfig(3, 10000, 100, 2, 60000));
+        List<PackageServer> servers = List.of(packageServer(failing), packageServer(notFound));
+
+        for (int i = 0; i < 2; i++) {
+            assertNull(client.download(servers, "hl7.fhir.us.core", "7.0.0").toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(List.of(packageServer(notFound).getUrl()), client.rank(servers).stream().map(PackageServer::getUrl).toList());
+        assertEquals("OPEN", client.getStats().getJsonObject(packageServer(failing).getUrl()).getString("state"));
+    }
+
+    @Test
+    public void testLocalPackageServerIsCopied() throws Exception {
+        LocalPackageServer local = new LocalPackageServer(Path.of(getClass().getResource("/ig/packages").toURI()));
+        HttpServer unused = startServer(request -> request.response().setStatusCode(500).end());
+        PackageServerClient client = new PackageServerClient(vertx, new PackageServerConfig(3, 10000, 1000, 5, 30000));
+        List<PackageServer> servers = List.of(local, packageServer(unused));
+
+        Path original = local.packageFile("hl7.fhir.us.core", "7.0.0");
+        DigestFileWriteStream download = client.download(servers, "hl7.fhir.us.core", "7.0.0").toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertNotEquals(original, download.getFile());
+        assertEquals(Files.size(original), download.getSize());
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(original))), download.getContentHash());
+        download.discard(vertx).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertTrue(Files.isRegularFile(original));
+
+        assertNull(client.download(List.of(local), "hl7.fhir.us.core", "0.0.1").toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS));
+    }
+
+    private HttpServer startServer(Handler<HttpServerRequest> handler) throws Exception {
+        return vertx.createHttpServer().requestHandler(handler).listen(0).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    private static PackageServer packageServer(HttpServer server) {
+        return new PackageServer("http://localhost:" + server.actualPort());
+    }
+}
@@ -0,0 +1,42 @@
+package nzi.fhir.validator.core.npm;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParsedResourceCodecTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.getText().setStatus(Narrative.NarrativeStatus.GENERATED).setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\"><p>a</p></div>");
+        observation.getEffectiveDateTimeType().setValueAsString("2020-01-01T10:00:00+05:00");
+        observation.getValueQuantity().setValue(1.5).setUnit("mg");
+
+        Object decoded = ParsedResourceCodec.decode(ParsedResourceCodec.encode(new ArrayList<>(List.of(observation))));
+        Observation restored = (Observation) ((List<?>) decoded).get(0);
+        assertTrue(observation.equalsDeep(restored));
+    }
+
+    @Test
+    public void testDecodeRejectsClassesOutsideTheAllowList() throws Exception {
+        assertEquals(List.of("allowed"), ParsedResourceCodec.decode(ParsedResourceCodec.encode(new ArrayList<>(List.of("allowed")))));
+        // Serializable, but neither a FHIR model nor a snapshot class
+        byte[] bytes = ParsedResourceCodec.encode(new ArrayList<>(List.of(new URI("http://example.org"))));
+        assertThrows(InvalidClassException.class, () -> ParsedResourceCodec.decode(bytes));
+        // Neither other collections nor other HAPI FHIR classes
+        assertThrows(InvalidClassException.class, () -> ParsedResourceCodec.decode(ParsedResourceCodec.encode(new LinkedList<>(List.of("a")))));
+        assertThrows(InvalidClassException.class, () -> ParsedResourceCodec.decode(ParsedResourceCodec.encode(TemporalPrecisionEnum.DAY)));
+    }
+}
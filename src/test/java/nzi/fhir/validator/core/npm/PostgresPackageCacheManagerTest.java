@@ -59,6 +59,28 @@ class PostgresPackageCacheManagerTest extends BaseTestContainer {
             }));
     }
 
+    @Test
+    @DisplayName("Should read the dependencies of stored packages in one query")
+    void whenLookupCachedDependencies_thenStoredPackagesAreFound(VertxTestContext testContext) throws IOException {
+        byte[] packageContent = loadTestPackage();
+        IgPackageDependencyResolver resolver = new IgPackageDependencyResolver(cacheManager, getPgPool(vertx), 3);
+        IgPackageName usCore = new IgPackageName(PACKAGE_ID, PACKAGE_VERSION);
+        IgPackageName unknown = new IgPackageName("example.fhir.unknown", "1.0.0");
+
+        cacheManager.addPackageToCache(new ByteArrayInputStream(packageContent))
+            .compose(npmPackage -> resolver.lookupCached(java.util.List.of(usCore, unknown)))
+            .compose(cached -> {
+                assertEquals(java.util.Set.of(usCore), cached.keySet());
+                assertFalse(cached.get(usCore).isEmpty());
+                // A single name is still sent as arrays
+                return resolver.lookupCached(java.util.List.of(usCore));
+            })
+            .onComplete(testContext.succeeding(cached -> {
+                assertTrue(cached.containsKey(usCore));
+                testContext.completeNow();
+            }));
+    }
+
     @Test
     @DisplayName("Should store and load package correctly")
     void whenStoreAndLoadPackage_thenSucceeds(VertxTestContext testContext) throws IOException {
@@ -95,6 +117,29 @@ class PostgresPackageCacheManagerTest extends BaseTestContainer {
             }));
     }
 
+    @Test
+    @DisplayName("Should keep a blob while a package references it")
+    void whenDeleteReferencedBlob_thenBlobIsKept(VertxTestContext testContext) throws IOException {
+        byte[] packageContent = loadTestPackage();
+        Pool pgPool = getPgPool(vertx);
+        IgPackageBlobStore blobStore = new IgPackageBlobStore(vertx, pgPool);
+        String blobCountSql = "SELECT COUNT(*) FROM %s.fhir_ig_package_blobs".formatted(DB_POSTGRES_SCHEMA_NAME);
+
+        cacheManager.addPackageToCache(new ByteArrayInputStream(packageContent))
+            .compose(npmPackage -> pgPool.query("SELECT content_hash FROM %s.fhir_implementation_guides".formatted(DB_POSTGRES_SCHEMA_NAME)).execute())
+            .compose(rows -> blobStore.deleteIfUnreferenced(rows.iterator().next().getString(0)))
+            .compose(v -> pgPool.query(blobCountSql).execute())
+            .compose(rows -> {
+                assertEquals(1L, rows.iterator().next().getLong(0));
+                return cacheManager.removePackage(PACKAGE_ID, PACKAGE_VERSION);
+            })
+            .compose(v -> pgPool.query(blobCountSql).execute())
+            .onComplete(testContext.succeeding(rows -> {
+                assertEquals(0L, rows.iterator().next().getLong(0));
+                testContext.completeNow();
+            }));
+    }
+
     @Test
     @DisplayName("Should handle package removal correctly")
     void whenRemovePackage_thenSucceeds(VertxTestContext testContext) throws IOException {
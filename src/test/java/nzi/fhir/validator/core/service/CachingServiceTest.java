@@ -0,0 +1,72 @@
+package nzi.fhir.validator.core.service;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class CachingServiceTest {
+
+    @Test
+    public void testEntriesAreBoundedByWeight() {
+        CachingService cache = new CachingService(TimeUnit.HOURS.toMillis(1), TimeUnit.MINUTES.toMillis(1), 1000, 0, System::nanoTime);
+        for (int i = 0; i < 10; i++) {
+            cache.put("profile-" + i, "value-" + i, 300);
+        }
+        cache.cleanUp();
+
+        JsonObject stats = cache.stats();
+        assertTrue(stats.getLong("weightBytes") <= 1000);
+        assertTrue(stats.getLong("entries") <= 3);
+        assertTrue(stats.getLong("evictions") >= 7);
+    }
+
+    @Test
+    public void testMissingEntriesExpireFirst() {
+        AtomicLong nanos = new AtomicLong();
+        CachingService cache = new CachingService(TimeUnit.HOURS.toMillis(1), TimeUnit.MINUTES.toMillis(1), 10_000, 0, nanos::get);
+        cache.put("known", "value");
+        cache.putMissing("unknown");
+        assertSame(CachingService.MISSING, cache.get("unknown"));
+
+        nanos.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        assertNull(cache.get("unknown"));
+        assertEquals("value", cache.get("known"));
+
+        nanos.addAndGet(TimeUnit.HOURS.toNanos(1));
+        assertNull(cache.get("known"));
+        assertEquals(2, cache.stats().getLong("hits"));
+    }
+
+    @Test
+    public void testHotEntriesAreRefreshedAhead() {
+        AtomicLong nanos = new AtomicLong();
+        AtomicInteger reloads = new AtomicInteger();
+        CachingService cache = new CachingService(TimeUnit.HOURS.toMillis(1), TimeUnit.MINUTES.toMillis(1), 1000, TimeUnit.MINUTES.toMillis(10), nanos::get);
+        cache.put("profile", "first", 100);
+
+        assertEquals("first", cache.get("profile", () -> Future.succeededFuture("reloaded-" + reloads.incrementAndGet())));
+        assertEquals(0, reloads.get());
+
+        // Due for refresh: still answered from the cache, then replaced
+        nanos.addAndGet(TimeUnit.MINUTES.toNanos(11));
+        assertEquals("first", cache.get("profile", () -> Future.succeededFuture("reloaded-" + reloads.incrementAndGet())));
+        assertEquals("reloaded-1", cache.get("profile", () -> Future.succeededFuture("reloaded-" + reloads.incrementAndGet())));
+        assertEquals(1, reloads.get());
+
+        // A failed reload keeps the value
+        nanos.addAndGet(TimeUnit.MINUTES.toNanos(11));
+        assertEquals("reloaded-1", cache.get("profile", () -> Future.failedFuture("database unavailable")));
+        assertEquals("reloaded-1", cache.get("profile"));
+        assertEquals(1, cache.stats().getLong("refreshes"));
+        assertEquals(1, cache.stats().getLong("refreshFailures"));
+    }
+}
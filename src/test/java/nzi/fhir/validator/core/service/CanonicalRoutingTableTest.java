@@ -0,0 +1,39 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class CanonicalRoutingTableTest {
+
+    @Test
+    public void testRouteByExactUrlAndPrefixInChainOrder() {
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        IValidationSupport core = new PrePopulatedValidationSupport(fhirContext);
+        IValidationSupport packages = new PrePopulatedValidationSupport(fhirContext);
+        List<IValidationSupport> chain = List.of(core, packages);
+        CanonicalRoutingTable routingTable = new CanonicalRoutingTable(chain::indexOf);
+
+        routingTable.addExact(packages, List.of("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient", "http://example.org/fhir/ValueSet/a"));
+        routingTable.addPrefix(core, "http://hl7.org/fhir/");
+
+        assertEquals(List.of(packages), routingTable.route("http://example.org/fhir/ValueSet/a|1.0.0"));
+        assertEquals(List.of(core), routingTable.route("http://hl7.org/fhir/StructureDefinition/Patient"));
+        // Both own it, the core support comes first in the chain
+        assertEquals(List.of(core, packages), routingTable.route("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient|7.0.0"));
+        assertTrue(routingTable.route("http://example.org/fhir/ValueSet/unknown").isEmpty());
+
+        routingTable.removeExact(packages);
+        assertTrue(routingTable.route("http://example.org/fhir/ValueSet/a").isEmpty());
+        assertEquals(0, routingTable.getExactCount());
+        assertEquals(1, routingTable.getPrefixCount());
+    }
+}
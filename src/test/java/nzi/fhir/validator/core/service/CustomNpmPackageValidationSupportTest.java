@@ -0,0 +1,195 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import nzi.fhir.validator.core.enums.SupportedFhirVersion;
+import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgPackageName;
+import nzi.fhir.validator.core.model.IgResourceLoadPolicy;
+import nzi.fhir.validator.core.npm.NpmPackageDiskCache;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class CustomNpmPackageValidationSupportTest {
+    private static final IGPackageIdentity US_CORE = new IGPackageIdentity("hl7.fhir.us.core", "7.0.0", SupportedFhirVersion.R4);
+
+    @Test
+    public void testLoadResourcesFromPackageInParallel() throws Exception {
+        System.setProperty("validator.resources.lazy", "false");
+        try {
+            CustomNpmPackageValidationSupport support = new CustomNpmPackageValidationSupport(FhirContext.forR4Cached(), null);
+            support.loadResourcesFromPackage(loadUsCore());
+
+            assertEquals(List.of(US_CORE), support.getIncludedIgPackages());
+            // A copy, never the list parser pool workers read
+            assertThrows(UnsupportedOperationException.class, () -> support.getIncludedIgPackages().add(US_CORE));
+            assertEquals(0, support.getLazyResourceCount());
+            assertNotNull(support.fetchStructureDefinition("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient"));
+            int structureDefinitions = support.fetchAllStructureDefinitions().size();
+            assertTrue(structureDefinitions > 50);
+
+            // Loading the same package again is a no-op
+            support.loadResourcesFromPackage(loadUsCore());
+            assertEquals(1, support.getIncludedIgPackages().size());
+            assertEquals(structureDefinitions, support.fetchAllStructureDefinitions().size());
+        } finally {
+            System.clearProperty("validator.resources.lazy");
+        }
+    }
+
+    @Test
+    public void testResourcesAreMaterializedOnDemand() throws Exception {
+        System.setProperty("validator.resources.lazy", "true");
+        try {
+            CustomNpmPackageValidationSupport support = new CustomNpmPackageValidationSupport(FhirContext.forR4Cached(), null);
+            support.loadResourcesFromPackage(loadUsCore());
+
+            assertEquals(List.of(US_CORE), support.getIncludedIgPackages());
+            int pending = support.getLazyResourceCount();
+            // Profiles and terminology only: 63 constraint StructureDefinitions, 29 ValueSets and 5 CodeSystems
+            assertEquals(97, pending);
+            long heapEstimate = support.getEstimatedHeapBytes();
+
+            assertNotNull(support.fetchValueSet("http://hl7.org/fhir/us/core/ValueSet/us-core-problem-or-health-concern"));
+            assertEquals(pending - 1, support.getLazyResourceCount());
+            assertTrue(support.getEstimatedHeapBytes() > heapEstimate);
+            // Served from the support once parsed
+            assertNotNull(support.fetchValueSet("http://hl7.org/fhir/us/core/ValueSet/us-core-problem-or-health-concern|7.0.0"));
+            assertEquals(pending - 1, support.getLazyResourceCount());
+            assertNull(support.fetchValueSet("http://hl7.org/fhir/us/core/ValueSet/unknown"));
+
+            // Enumerating lists the parsed resources only, without materializing the pending ones
+            assertTrue(support.fetchAllStructureDefinitions().isEmpty());
+            assertEquals(1, support.fetchAllConformanceResources().size());
+            assertEquals(pending - 1, support.getLazyResourceCount());
+            assertNotNull(support.fetchStructureDefinition("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient"));
+            assertNotNull(support.fetchCodeSystem("http://hl7.org/fhir/us/core/CodeSystem/us-core-category"));
+            assertEquals(1, support.fetchAllStructureDefinitions().size());
+            assertEquals(pending - 3, support.getLazyResourceCount());
+        } finally {
+            System.clearProperty("validator.resources.lazy");
+        }
+    }
+
+    @Test
+    public void testPackagesDeletedFromTheDiskCacheAreReloaded(@TempDir Path rootDirectory) throws Exception {
+        System.setProperty("validator.resources.lazy", "true");
+        try {
+            IgPackageName igPackageName = new IgPackageName("hl7.fhir.us.core", "7.0.0");
+            NpmPackageDiskCache diskCache = new NpmPackageDiskCache(rootDirectory);
+            NpmPackage extracted;
+            try (InputStream stream = getClass().getResourceAsStream("/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz")) {
+                extracted = diskCache.store(igPackageName, "a".repeat(64), stream);
+            }
+            IgPackageService igPackageService = Mockito.mock(IgPackageService.class);
+            Mockito.when(igPackageService.reloadIgPackage("hl7.fhir.us.core", "7.0.0")).thenReturn(Future.succeededFuture(loadUsCore()));
+            CustomNpmPackageValidationSupport support = new CustomNpmPackageValidationSupport(FhirContext.forR4Cached(), igPackageService);
+            support.loadResourcesFromPackage(extracted);
+            int pending = support.getLazyResourceCount();
+
+            // Deleted under the support, e.g. by registering the package again
+            FileUtils.deleteDirectory(diskCache.packageDirectory(igPackageName, "a".repeat(64)).toFile());
+            assertNotNull(support.fetchStructureDefinition("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient"));
+            assertNotNull(support.fetchValueSet("http://hl7.org/fhir/us/core/ValueSet/us-core-problem-or-health-concern"));
+            assertEquals(pending - 2, support.getLazyResourceCount());
+            verify(igPackageService, times(1)).reloadIgPackage("hl7.fhir.us.core", "7.0.0");
+        } finally {
+            System.clearProperty("validator.resources.lazy");
+        }
+    }
+
+    @Test
+    public void testIncludeIgPackagesOfAnotherSupport() throws Exception {
+        System.setProperty("validator.resources.lazy", "true");
+        try {
+            CustomNpmPackageValidationSupport support = new CustomNpmPackageValidationSupport(FhirContext.forR4Cached(), null);
+            support.loadResourcesFromPackage(loadUsCore());
+            IBaseResource valueSet = support.fetchValueSet("http://hl7.org/fhir/us/core/ValueSet/us-core-problem-or-health-concern");
+
+            CustomNpmPackageValidationSupport next = new CustomNpmPackageValidationSupport(FhirContext.forR4Cached(), null);
+            next.includeIgPackagesOf(support);
+            assertEquals(List.of(US_CORE), next.getIncludedIgPackages());
+            assertEquals(support.getLazyResourceCount(), next.getLazyResourceCount());
+            assertEquals(support.getEstimatedHeapBytes(), next.getEstimatedHeapBytes());
+            // Parsed resources are shared, the others are still parsed on demand
+            assertSame(valueSet, next.fetchValueSet("http://hl7.org/fhir/us/core/ValueSet/us-core-problem-or-health-concern"));
+            assertNotNull(next.fetchStructureDefinition("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient"));
+            assertEquals(support.getLazyResourceCount() - 1, next.getLazyResourceCount());
+        } finally {
+            System.clearProperty("validator.resources.lazy");
+        }
+    }
+
+    @Test
+    public void testResourceLoadPolicy() throws Exception {
+        System.setProperty("validator.resources.lazy", "true");
+        try {
+            CustomNpmPackageValidationSupport support = new CustomNpmPackageValidationSupport(FhirContext.forR4Cached(), null);
+            assertEquals(IgResourceLoadPolicy.defaults(), support.getResourceLoadPolicy());
+            support.loadResourcesFromPackage(loadUsCore());
+            assertTrue(support.fetchAllSearchParameters().isEmpty());
+            assertNull(support.fetchResource(CapabilityStatement.class, "http://hl7.org/fhir/us/core/CapabilityStatement/us-core-server"));
+
+            CustomNpmPackageValidationSupport everything = new CustomNpmPackageValidationSupport(FhirContext.forR4Cached(), null);
+            everything.setResourceLoadPolicy(new IgResourceLoadPolicy(List.of(IgResourceLoadPolicy.ALL_RESOURCE_TYPES), List.of("package", "package/example")));
+            everything.loadResourcesFromPackage(loadUsCore());
+            assertTrue(everything.getLazyResourceCount() > support.getLazyResourceCount());
+            // SearchParameters are enumerated by the validator, hence parsed right away
+            assertEquals(110, everything.fetchAllSearchParameters().size());
+            // Parsed on demand, even though the support keeps no index of CapabilityStatements
+            int pending = everything.getLazyResourceCount();
+            everything.fetchResource(CapabilityStatement.class, "http://hl7.org/fhir/us/core/CapabilityStatement/us-core-server");
+            assertEquals(pending - 1, everything.getLazyResourceCount());
+        } finally {
+            System.clearProperty("validator.resources.lazy");
+        }
+    }
+
+    @Test
+    public void testLoadResourcesFromPackageIsRejectedOnTheEventLoop() throws Exception {
+        CustomNpmPackageValidationSupport support = new CustomNpmPackageValidationSupport(FhirContext.forR4Cached(), null);
+        NpmPackage usCore = loadUsCore();
+        Vertx vertx = Vertx.vertx();
+        try {
+            CompletableFuture<Throwable> failure = new CompletableFuture<>();
+            vertx.runOnContext(v -> {
+                try {
+                    support.loadResourcesFromPackage(usCore);
+                    failure.complete(null);
+                } catch (RuntimeException e) {
+                    failure.complete(e);
+                }
+            });
+            assertInstanceOf(IllegalStateException.class, failure.get(10, TimeUnit.SECONDS));
+            assertTrue(support.getIncludedIgPackages().isEmpty());
+        } finally {
+            vertx.close();
+        }
+    }
+
+    private NpmPackage loadUsCore() throws IOException {
+        try (InputStream stream = getClass().getResourceAsStream("/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz")) {
+            return NpmPackage.fromPackage(stream);
+        }
+    }
+}
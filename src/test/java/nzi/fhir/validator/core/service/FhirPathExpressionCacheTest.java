@@ -0,0 +1,57 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r5.fhirpath.ExpressionNode;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class FhirPathExpressionCacheTest {
+
+    @Test
+    public void testExpressionsAreParsedOnce() {
+        FhirPathExpressionCache cache = FhirPathExpressionCache.forContext(FhirContext.forR4Cached());
+        assertSame(cache, FhirPathExpressionCache.forContext(FhirContext.forR4Cached()));
+
+        ExpressionNode node = cache.get("test-1", "name.exists() or identifier.exists()");
+        assertNotNull(node);
+        long hits = cache.toJson().getLong("hits");
+        assertSame(node, cache.get("test-1", "name.exists() or identifier.exists()"));
+        assertEquals(hits + 1, cache.toJson().getLong("hits"));
+
+        // Unparseable expressions are left to the instance validator
+        assertNull(cache.get("test-2", "name.exists( or"));
+        long misses = cache.toJson().getLong("misses");
+        assertNull(cache.get("test-2", "name.exists( or"));
+        assertEquals(misses, cache.toJson().getLong("misses"));
+    }
+
+    @Test
+    public void testWarmedExpressionsAreAppliedToStructureDefinitions() {
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        FhirPathExpressionCache cache = FhirPathExpressionCache.forContext(fhirContext);
+        StructureDefinition patient = (StructureDefinition) fhirContext.getValidationSupport()
+                .fetchStructureDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+        assertTrue(cache.warm(List.of(patient)) > 0);
+        assertTrue(cache.size() > 0);
+
+        org.hl7.fhir.r5.model.StructureDefinition converted = new org.hl7.fhir.r5.model.StructureDefinition();
+        ElementDefinition element = converted.getSnapshot().addElement().setPath("Patient");
+        ElementDefinition.ElementDefinitionConstraintComponent constraint = element.addConstraint()
+                .setKey("pat-1").setExpression(patient.getSnapshot().getElement().stream()
+                        .flatMap(definition -> definition.getConstraint().stream())
+                        .filter(candidate -> "pat-1".equals(candidate.getKey()))
+                        .findFirst().orElseThrow().getExpression());
+        long hits = cache.toJson().getLong("hits");
+        cache.apply(converted);
+        assertNotNull(constraint.getUserData(FhirPathExpressionCache.EXPRESSION_CACHE_USER_DATA));
+        assertEquals(hits + 1, cache.toJson().getLong("hits"));
+    }
+}
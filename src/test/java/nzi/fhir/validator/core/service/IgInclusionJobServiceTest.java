@@ -0,0 +1,65 @@
+package nzi.fhir.validator.core.service;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonObject;
+import nzi.fhir.validator.core.enums.SupportedFhirVersion;
+import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgInclusionJob;
+import nzi.fhir.validator.core.model.ValidatorIdentity;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class IgInclusionJobServiceTest {
+    private static final ValidatorIdentity VALIDATOR = ValidatorIdentity.createFromFhirVersion(SupportedFhirVersion.R4);
+    private static final IGPackageIdentity US_CORE = new IGPackageIdentity("hl7.fhir.us.core", "7.0.0", SupportedFhirVersion.R4);
+
+    @Test
+    public void testJobReportsItsProgress() {
+        IgInclusionJobService jobService = new IgInclusionJobService(60_000L);
+        Promise<Void> loading = Promise.promise();
+        IgInclusionJob job = jobService.submit(VALIDATOR, US_CORE, started -> {
+            started.markLoading(() -> List.of(US_CORE));
+            return loading.future();
+        });
+        assertSame(job, jobService.get(job.getId()));
+        assertEquals(IgInclusionJob.Status.LOADING, job.getStatus());
+
+        // The running inclusion is returned rather than started again
+        AtomicInteger started = new AtomicInteger();
+        assertSame(job, jobService.submit(VALIDATOR, US_CORE, again -> {
+            started.incrementAndGet();
+            return Future.succeededFuture();
+        }));
+        assertEquals(0, started.get());
+
+        job.markBuilding();
+        loading.complete();
+        assertEquals(IgInclusionJob.Status.SUCCEEDED, job.getStatus());
+        JsonObject json = job.toJson();
+        assertEquals("hl7.fhir.us.core#7.0.0", json.getJsonArray("loadedIgPackages").getString(0));
+        assertNotNull(json.getLong("finishedAt"));
+        assertTrue(json.getJsonObject("timings").getLong("totalMs") >= 0);
+        assertNull(jobService.get("unknown"));
+    }
+
+    @Test
+    public void testFailedJobKeepsTheError() {
+        IgInclusionJobService jobService = new IgInclusionJobService(0L);
+        IgInclusionJob failed = jobService.submit(VALIDATOR, US_CORE, job -> Future.failedFuture("IG package not found"));
+        assertEquals(IgInclusionJob.Status.FAILED, failed.getStatus());
+        assertEquals("IG package not found", failed.toJson().getString("error"));
+
+        // Finished jobs are dropped once the retention is over
+        IgInclusionJob next = jobService.submit(VALIDATOR, US_CORE, job -> Future.succeededFuture());
+        assertNotSame(failed, next);
+        assertNull(jobService.get(failed.getId()));
+    }
+}
@@ -5,6 +5,7 @@ import io.vertx.junit5.VertxExtension;
 import io.vertx.sqlclient.Pool;
 import nzi.fhir.validator.core.enums.SupportedFhirVersion;
 import nzi.fhir.validator.core.model.IGPackageIdentity;
+import nzi.fhir.validator.core.model.IgPackageName;
 import nzi.fhir.validator.testcontainers.BaseTestContainer;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -16,6 +17,8 @@ import org.junit.jupiter.api.extension.ExtendWith;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -49,6 +52,18 @@ class IgPackageServiceTest extends BaseTestContainer {
         }
     }
 
+    @Test
+    @DisplayName("Should only import from below the local package directory")
+    void whenImportDirectoryIsOutsideLocalDirectory_thenRejected() {
+        Path localDirectory = Path.of("/var/lib/fhir/packages");
+        assertEquals(localDirectory, IgPackageService.resolveImportDirectory(localDirectory.toString(), null));
+        assertEquals(localDirectory.resolve("hl7/fhir/us"), IgPackageService.resolveImportDirectory(localDirectory.toString(), "hl7/fhir/us"));
+        assertEquals(localDirectory.resolve("hl7"), IgPackageService.resolveImportDirectory(localDirectory.toString(), "/var/lib/fhir/packages/hl7"));
+        assertThrows(IllegalArgumentException.class, () -> IgPackageService.resolveImportDirectory(localDirectory.toString(), "/etc"));
+        assertThrows(IllegalArgumentException.class, () -> IgPackageService.resolveImportDirectory(localDirectory.toString(), "../../.."));
+        assertThrows(IllegalArgumentException.class, () -> IgPackageService.resolveImportDirectory(null, "/var/lib/fhir/packages"));
+    }
+
     @Test
     @DisplayName("Should successfully register and load US Core IG package")
     void whenRegisterAndLoadUsCorePackage_thenSucceeds(VertxTestContext testContext) throws IOException {
@@ -132,6 +147,32 @@ class IgPackageServiceTest extends BaseTestContainer {
                 .join();
     }
 
+    @Test
+    @DisplayName("Should resolve resources of the included IG packages from the resource index")
+    void whenFindResourceInIncludedPackages_thenOnlyTheirResourcesAreFound() throws IOException {
+        String valueSetUrl = "http://hl7.org/fhir/us/core/ValueSet/us-core-problem-or-health-concern";
+        IGPackageIdentity usCore = new IGPackageIdentity(PACKAGE_NAME, PACKAGE_VERSION, SupportedFhirVersion.R4);
+        igPackageService.registerIg(loadUsCorePackage(), false)
+                .compose(npmPackage -> igPackageService.findResource(valueSetUrl, null, List.of(new IgPackageName(PACKAGE_NAME, PACKAGE_VERSION))))
+                .compose(resource -> {
+                    assertEquals("ValueSet", resource.getString("resourceType"));
+                    return igPackageService.findResource(valueSetUrl, null, List.of(new IgPackageName("hl7.fhir.dk.core", "3.4.0")));
+                })
+                .map(resource -> {
+                    assertNull(resource);
+                    return null;
+                })
+                .toCompletionStage()
+                .toCompletableFuture()
+                .join();
+
+        IgResourceIndexValidationSupport support = new IgResourceIndexValidationSupport(FhirContextLoader.getInstance().getContext(SupportedFhirVersion.R4),
+                igPackageService, () -> List.of(usCore), () -> 0);
+        assertNotNull(support.fetchValueSet(valueSetUrl));
+        assertNull(support.fetchStructureDefinition(valueSetUrl));
+        assertNull(support.fetchValueSet("http://hl7.org/fhir/us/core/ValueSet/unknown"));
+    }
+
     @Test
     @DisplayName("Should fail when loading non-existent IG package")
     void whenLoadNonExistentPackage_thenFails(VertxTestContext testContext) {
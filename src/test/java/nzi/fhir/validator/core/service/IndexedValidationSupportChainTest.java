@@ -0,0 +1,118 @@
+package nzi.fhir.validator.core.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class IndexedValidationSupportChainTest {
+    private static final String US_CORE_PATIENT = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient";
+
+    @Test
+    public void testVersionedLookupsResolveTheRequestedVersion() throws Exception {
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        CustomNpmPackageValidationSupport npmSupport = new CustomNpmPackageValidationSupport(fhirContext, null);
+        try (InputStream inputStream = getClass().getResourceAsStream("/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz")) {
+            npmSupport.loadResourcesFromPackage(NpmPackage.fromPackage(inputStream));
+        }
+        // An older copy of the profile, asked for first
+        StructureDefinition older = new StructureDefinition();
+        older.setUrl(US_CORE_PATIENT);
+        older.setVersion("6.1.0");
+        older.setName("USCorePatientProfile");
+        PrePopulatedValidationSupport olderSupport = new PrePopulatedValidationSupport(fhirContext);
+        olderSupport.addStructureDefinition(older);
+
+        AtomicLong revision = new AtomicLong();
+        IndexedValidationSupportChain chain = new IndexedValidationSupportChain(fhirContext, revision::get);
+        chain.addValidationSupport(new DefaultProfileValidationSupport(fhirContext), List.of("http://hl7.org/fhir/"));
+        chain.addValidationSupport(olderSupport);
+        chain.addValidationSupport(npmSupport);
+        chain.getRoutingTable().addExact(olderSupport, US_CORE_PATIENT);
+
+        StructureDefinition current = (StructureDefinition) chain.fetchStructureDefinition(US_CORE_PATIENT + "|7.0.0");
+        assertNotNull(current);
+        assertEquals("7.0.0", current.getVersion());
+        assertEquals("6.1.0", ((StructureDefinition) chain.fetchStructureDefinition(US_CORE_PATIENT + "|6.1.0")).getVersion());
+        // The unversioned URL resolves in chain order
+        assertEquals("6.1.0", ((StructureDefinition) chain.fetchStructureDefinition(US_CORE_PATIENT)).getVersion());
+
+        long hits = chain.getStats().getLong("hits");
+        assertSame(current, chain.fetchResource(StructureDefinition.class, US_CORE_PATIENT + "|7.0.0"));
+        assertEquals(hits + 1, chain.getStats().getLong("hits"));
+        assertNotNull(chain.fetchStructureDefinition("http://hl7.org/fhir/StructureDefinition/Patient|4.0.1"));
+
+        // Unknown versions are not resolved to another version
+        int entries = chain.getIndexSize();
+        assertNull(chain.fetchStructureDefinition(US_CORE_PATIENT + "|5.0.1"));
+        assertEquals(entries, chain.getIndexSize());
+
+        // The index is dropped once resources are added
+        revision.incrementAndGet();
+        assertEquals("7.0.0", ((StructureDefinition) chain.fetchStructureDefinition(US_CORE_PATIENT + "|7.0.0")).getVersion());
+        assertTrue(chain.getIndexSize() < entries);
+    }
+
+    @Test
+    public void testLookupsAreRoutedToTheOwningSupport() throws Exception {
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        CustomNpmPackageValidationSupport npmSupport = new CustomNpmPackageValidationSupport(fhirContext, null);
+        try (InputStream inputStream = getClass().getResourceAsStream("/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz")) {
+            npmSupport.loadResourcesFromPackage(NpmPackage.fromPackage(inputStream));
+        }
+        AtomicInteger profileLookups = new AtomicInteger();
+        IValidationSupport profiles = new BaseValidationSupport(fhirContext) {
+            @Override
+            public IBaseResource fetchStructureDefinition(String url) {
+                profileLookups.incrementAndGet();
+                return null;
+            }
+        };
+        AtomicInteger fallbackLookups = new AtomicInteger();
+        IValidationSupport fallback = new BaseValidationSupport(fhirContext) {
+            @Override
+            public IBaseResource fetchStructureDefinition(String url) {
+                fallbackLookups.incrementAndGet();
+                return null;
+            }
+        };
+
+        IndexedValidationSupportChain chain = new IndexedValidationSupportChain(fhirContext, npmSupport::getRevision);
+        chain.addValidationSupport(new DefaultProfileValidationSupport(fhirContext), List.of("http://hl7.org/fhir/"));
+        chain.addValidationSupport(profiles);
+        chain.addValidationSupport(npmSupport);
+
+        assertNotNull(chain.fetchStructureDefinition(US_CORE_PATIENT));
+        assertNotNull(chain.fetchStructureDefinition("http://hl7.org/fhir/StructureDefinition/Observation"));
+        assertEquals(0, profileLookups.get());
+        assertEquals(2, chain.getStats().getLong("routed"));
+
+        // An owner's miss is final
+        assertNull(chain.fetchStructureDefinition("http://hl7.org/fhir/StructureDefinition/unknown"));
+        assertEquals(0, profileLookups.get());
+
+        // Without an owner, only the fallback is asked
+        assertNull(chain.fetchStructureDefinition("http://example.org/fhir/StructureDefinition/unknown"));
+        assertEquals(0, fallbackLookups.get());
+        chain.setFallbackValidationSupport(fallback);
+        assertNull(chain.fetchStructureDefinition("http://example.org/fhir/StructureDefinition/other"));
+        assertEquals(0, profileLookups.get());
+        assertEquals(1, fallbackLookups.get());
+        assertEquals(2, chain.getStats().getLong("fallbacks"));
+    }
+}
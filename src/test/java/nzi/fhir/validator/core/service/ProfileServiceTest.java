@@ -1,6 +1,7 @@
 package nzi.fhir.validator.core.service;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
 import ca.uhn.fhir.parser.DataFormatException;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
@@ -9,11 +10,16 @@ import io.vertx.sqlclient.Pool;
 import nzi.fhir.validator.core.enums.SupportedFhirVersion;
 import nzi.fhir.validator.testcontainers.BaseTestContainer;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.DisplayName;
 
+import java.io.InputStream;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class ProfileServiceTest extends BaseTestContainer {
@@ -187,6 +193,31 @@ class ProfileServiceTest extends BaseTestContainer {
             }).toCompletionStage().toCompletableFuture().join();
     }
 
+    @Test
+    @DisplayName("Should prefetch declared profiles with the profiles they derive from")
+    void whenPrefetchDeclaredProfiles_thenBaseChainIsCached() {
+        String derivedUrl = "http://example.com/fhir/StructureDefinition/derived-profile";
+        JsonObject[] profiles = new JsonObject[]{
+            new JsonObject(TEST_PROFILE_JSON),
+            new JsonObject()
+                .put("resourceType", "StructureDefinition")
+                .put("url", derivedUrl)
+                .put("fhirVersion", "4.0.1")
+                .put("baseDefinition", TEST_PROFILE_URL)
+        };
+        org.hl7.fhir.r4.model.Patient patient = new org.hl7.fhir.r4.model.Patient();
+        patient.getMeta().addProfile(derivedUrl + "|1.0.0");
+        assertEquals(java.util.Set.of(derivedUrl + "|1.0.0"), ProfileService.declaredProfiles(fhirContext, patient));
+
+        profileService.registerProfiles(profiles)
+            .compose(v -> profileService.prefetchProfiles(ProfileService.declaredProfiles(fhirContext, patient)))
+            .onComplete(ar -> {
+                assertTrue(ar.succeeded());
+                assertNotNull(profileService.getCachedProfile(derivedUrl));
+                assertNotNull(profileService.getCachedProfile(TEST_PROFILE_URL));
+            }).toCompletionStage().toCompletableFuture().join();
+    }
+
     @Test
     @DisplayName("Should successfully retrieve profile after service restart")
     void whenGetProfileAfterServerRestart_thenSucceeds() {
@@ -206,6 +237,35 @@ class ProfileServiceTest extends BaseTestContainer {
             }).toCompletionStage().toCompletableFuture().join();
     }
 
+    @Test
+    @DisplayName("Should resolve a registered profile before an IG resource with the same URL")
+    void whenProfileSharesUrlWithIgResource_thenRegisteredProfileWins() throws Exception {
+        String usCorePatient = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient";
+        CustomNpmPackageValidationSupport npmSupport = new CustomNpmPackageValidationSupport(fhirContext, null);
+        try (InputStream inputStream = getClass().getResourceAsStream("/ig/packages/hl7/fhir/us/core/hl7.fhir.us.core-7.0.0.tgz")) {
+            npmSupport.loadResourcesFromPackage(NpmPackage.fromPackage(inputStream));
+        }
+        profileService.registerProfile(new JsonObject()
+                        .put("resourceType", "StructureDefinition")
+                        .put("id", "local-us-core-patient")
+                        .put("url", usCorePatient)
+                        .put("version", "7.0.0-local")
+                        .put("fhirVersion", "4.0.1"))
+                .toCompletionStage().toCompletableFuture().join();
+
+        // Ordered like the chain of the validators
+        IndexedValidationSupportChain chain = new IndexedValidationSupportChain(fhirContext,
+                () -> npmSupport.getRevision() + ProfileService.getRevision());
+        chain.addValidationSupport(new DefaultProfileValidationSupport(fhirContext), List.of("http://hl7.org/fhir/", "http://terminology.hl7.org/"));
+        chain.addValidationSupport(new CustomProfileValidationSupport(fhirContext, profileService));
+        chain.addValidationSupport(npmSupport);
+
+        StructureDefinition resolved = (StructureDefinition) chain.fetchStructureDefinition(usCorePatient);
+        assertEquals("7.0.0-local", resolved.getVersion());
+        // The IG version is still found by its versioned URL
+        assertEquals("7.0.0", ((StructureDefinition) chain.fetchStructureDefinition(usCorePatient + "|7.0.0")).getVersion());
+    }
+
     @AfterEach
     void tearDown() {
         if (vertx != null) {
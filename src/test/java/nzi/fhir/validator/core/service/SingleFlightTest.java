@@ -0,0 +1,55 @@
+package nzi.fhir.validator.core.service;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallersShareOneLoad() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        Promise<String> pending = Promise.promise();
+
+        Future<String> first = singleFlight.execute("us-core-patient", () -> {
+            loads.incrementAndGet();
+            return pending.future();
+        });
+        Future<String> second = singleFlight.execute("us-core-patient", () -> {
+            loads.incrementAndGet();
+            return Future.succeededFuture("other");
+        });
+        assertSame(first, second);
+        assertEquals(1, singleFlight.inFlightCount());
+
+        pending.complete("profile");
+        assertEquals("profile", second.result());
+        assertEquals(0, singleFlight.inFlightCount());
+
+        // Completed loads are not cached
+        Future<String> third = singleFlight.execute("us-core-patient", () -> {
+            loads.incrementAndGet();
+            return Future.succeededFuture("reloaded");
+        });
+        assertEquals("reloaded", third.result());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testFailureIsSharedAndCleared() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        Future<String> failed = singleFlight.execute("key", () -> {
+            throw new IllegalStateException("boom");
+        });
+        assertTrue(failed.failed());
+        assertEquals(0, singleFlight.inFlightCount());
+    }
+}
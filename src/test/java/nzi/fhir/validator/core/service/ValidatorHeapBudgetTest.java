@@ -0,0 +1,27 @@
+package nzi.fhir.validator.core.service;
+
+import nzi.fhir.validator.core.enums.SupportedFhirVersion;
+import nzi.fhir.validator.core.model.ValidatorIdentity;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Md Nazrul Islam
+ */
+public class ValidatorHeapBudgetTest {
+
+    @Test
+    public void testEnsureCapacity() {
+        long mb = 1024L * 1024L;
+        ValidatorIdentity identity = ValidatorIdentity.createFromFhirVersion(SupportedFhirVersion.R4);
+        ValidatorHeapBudget budget = new ValidatorHeapBudget(8 * mb, ValidatorHeapBudget.Policy.REFUSE, mb, 5);
+
+        assertDoesNotThrow(() -> budget.ensureCapacity(identity, 2 * mb));
+        ValidatorHeapBudget.HeapBudgetExceededException exception = assertThrows(
+                ValidatorHeapBudget.HeapBudgetExceededException.class,
+                () -> budget.ensureCapacity(identity, 16 * mb));
+        assertTrue(exception.getMessage().contains("budget"));
+        assertEquals(8 * mb, budget.toJson().getLong("budgetBytes"));
+    }
+}
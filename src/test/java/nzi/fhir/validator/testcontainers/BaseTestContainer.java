@@ -80,8 +80,13 @@ public class BaseTestContainer {
                 ig_package_id TEXT NOT NULL,
                 ig_package_version TEXT NOT NULL,
                 ig_package_meta JSONB NOT NULL,
-                content_raw BYTEA NOT NULL,
+                content_raw BYTEA,
+                content_hash VARCHAR(64),
+                content_size BIGINT,
                 dependencies TEXT[],
+                resolved_dependencies JSONB,
+                conformance_binary BYTEA,
+                conformance_binary_format TEXT,
                 created_at TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP,
                 modified_at TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP,
                 PRIMARY KEY (ig_package_id, ig_package_version)
@@ -106,10 +111,64 @@ public class BaseTestContainer {
                 included_ig_packages TEXT[] NOT NULL DEFAULT '{}',
                 included_profiles TEXT[] NOT NULL DEFAULT '{}',
                 is_active BOOLEAN NOT NULL DEFAULT TRUE,
+                resource_load_policy JSONB NULL,
                 created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
                 updated_at TIMESTAMP NULL,
                 UNIQUE (validator_id, fhir_version)
-            )
+            );
+        """.formatted(DB_POSTGRES_SCHEMA_NAME);
+
+        createTableSQL += """
+            CREATE TABLE IF NOT EXISTS %s.fhir_validator_snapshots (
+                validator_id VARCHAR(36) NOT NULL,
+                fhir_version VARCHAR(16) NOT NULL,
+                fingerprint VARCHAR(64) NOT NULL,
+                snapshot BYTEA NOT NULL,
+                created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                PRIMARY KEY (validator_id, fhir_version)
+            );
+        """.formatted(DB_POSTGRES_SCHEMA_NAME);
+
+        createTableSQL += """
+            CREATE TABLE IF NOT EXISTS %s.fhir_ig_package_blobs (
+                content_hash VARCHAR(64) PRIMARY KEY,
+                content_size BIGINT NOT NULL,
+                chunk_count INT NOT NULL,
+                created_at TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP
+            );
+        """.formatted(DB_POSTGRES_SCHEMA_NAME);
+
+        createTableSQL += """
+            CREATE TABLE IF NOT EXISTS %1$s.fhir_ig_package_chunks (
+                content_hash VARCHAR(64) NOT NULL REFERENCES %1$s.fhir_ig_package_blobs (content_hash) ON DELETE CASCADE,
+                chunk_index INT NOT NULL,
+                chunk BYTEA NOT NULL,
+                PRIMARY KEY (content_hash, chunk_index)
+            );
+        """.formatted(DB_POSTGRES_SCHEMA_NAME);
+        createTableSQL += """
+            DO $$ BEGIN
+                ALTER TABLE %1$s.fhir_implementation_guides
+                    ADD CONSTRAINT fhir_implementation_guides_blob_fk FOREIGN KEY (content_hash)
+                        REFERENCES %1$s.fhir_ig_package_blobs (content_hash);
+            EXCEPTION WHEN duplicate_object THEN NULL;
+            END $$;
+        """.formatted(DB_POSTGRES_SCHEMA_NAME);
+
+        createTableSQL += """
+            CREATE TABLE IF NOT EXISTS %1$s.fhir_ig_resources (
+                id BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY,
+                ig_package_id TEXT NOT NULL,
+                ig_package_version TEXT NOT NULL,
+                resource_type TEXT NOT NULL,
+                resource_id TEXT,
+                url TEXT NOT NULL,
+                resource_version TEXT,
+                resource_json JSONB NOT NULL,
+                FOREIGN KEY (ig_package_id, ig_package_version)
+                    REFERENCES %1$s.fhir_implementation_guides (ig_package_id, ig_package_version) ON DELETE CASCADE
+            );
+            CREATE INDEX IF NOT EXISTS fhir_ig_resources_url_version_idx ON %1$s.fhir_ig_resources (url, resource_version)
         """.formatted(DB_POSTGRES_SCHEMA_NAME);
 
         pgPool.query(createTableSQL)
@@ -120,9 +179,13 @@ public class BaseTestContainer {
     }
 
     protected static void dropTables(Pool pgPool){
-        String dropTableSQL = "DROP TABLE IF EXISTS %s.fhir_implementation_guides;".formatted(DB_POSTGRES_SCHEMA_NAME);
+        String dropTableSQL = "DROP TABLE IF EXISTS %s.fhir_ig_resources;".formatted(DB_POSTGRES_SCHEMA_NAME);
+        dropTableSQL += "DROP TABLE IF EXISTS %s.fhir_implementation_guides;".formatted(DB_POSTGRES_SCHEMA_NAME);
         dropTableSQL += "DROP TABLE IF EXISTS %s.fhir_profiles; ".formatted(DB_POSTGRES_SCHEMA_NAME);
-        dropTableSQL += "DROP TABLE IF EXISTS %s.fhir_validator_logs".formatted(DB_POSTGRES_SCHEMA_NAME);
+        dropTableSQL += "DROP TABLE IF EXISTS %s.fhir_validator_logs; ".formatted(DB_POSTGRES_SCHEMA_NAME);
+        dropTableSQL += "DROP TABLE IF EXISTS %s.fhir_validator_snapshots; ".formatted(DB_POSTGRES_SCHEMA_NAME);
+        dropTableSQL += "DROP TABLE IF EXISTS %s.fhir_ig_package_chunks; ".formatted(DB_POSTGRES_SCHEMA_NAME);
+        dropTableSQL += "DROP TABLE IF EXISTS %s.fhir_ig_package_blobs".formatted(DB_POSTGRES_SCHEMA_NAME);
         pgPool.query(dropTableSQL)
                 .execute()
                 .toCompletionStage()
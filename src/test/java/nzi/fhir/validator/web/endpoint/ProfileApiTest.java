@@ -1,6 +1,8 @@
 package nzi.fhir.validator.web.endpoint;
 
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.client.WebClient;
@@ -154,6 +156,72 @@ class ProfileApiTest extends BaseTestContainer {
                 .onFailure(testContext::failNow);
     }
 
+    @Test
+    void testRegisterProfilesInBulk(VertxTestContext testContext) {
+        JsonArray entries = new JsonArray();
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            JsonObject profile = new JsonObject()
+                    .put("resourceType", "StructureDefinition")
+                    .put("url", "http://example.org/fhir/StructureDefinition/bulk-profile-" + i)
+                    .put("name", "BulkProfile" + i)
+                    .put("status", "active")
+                    .put("kind", "resource")
+                    .put("abstract", false)
+                    .put("type", "Patient")
+                    .put("baseDefinition", "http://hl7.org/fhir/StructureDefinition/Patient")
+                    .put("derivation", "constraint");
+            entries.add(new JsonObject().put("resource", profile));
+            ndjson.append(profile.encode()).append('\n');
+        }
+        JsonObject bundle = new JsonObject()
+                .put("resourceType", "Bundle")
+                .put("type", "collection")
+                .put("entry", entries);
+
+        client.post(testPort, "localhost", "/R4/register-profiles")
+                .as(BodyCodec.jsonObject())
+                .sendJsonObject(bundle)
+                .compose(response -> {
+                    assertEquals(200, response.statusCode());
+                    assertEquals(20, response.body().getInteger("count"));
+                    return client.post(testPort, "localhost", "/R4/register-profiles")
+                            .putHeader("Content-Type", "application/x-ndjson")
+                            .as(BodyCodec.jsonObject())
+                            .sendBuffer(Buffer.buffer(ndjson.toString()));
+                })
+                .onSuccess(response -> {
+                    assertEquals(200, response.statusCode());
+                    assertEquals(20, response.body().getJsonArray("profileUrls").size());
+                    testContext.completeNow();
+                })
+                .onFailure(testContext::failNow);
+    }
+
+    @Test
+    void testRegisterProfilesInBulkWithInvalidProfile(VertxTestContext testContext) {
+        JsonObject bundle = new JsonObject()
+                .put("resourceType", "Bundle")
+                .put("type", "collection")
+                .put("entry", new JsonArray()
+                        .add(new JsonObject().put("resource", new JsonObject()
+                                .put("resourceType", "StructureDefinition")
+                                .put("url", "http://example.org/fhir/StructureDefinition/valid-profile")))
+                        .add(new JsonObject().put("resource", new JsonObject()
+                                .put("resourceType", "Patient")
+                                .put("url", "http://example.org/fhir/StructureDefinition/not-a-profile"))));
+
+        client.post(testPort, "localhost", "/R4/register-profiles")
+                .as(BodyCodec.jsonObject())
+                .sendJsonObject(bundle)
+                .onSuccess(response -> {
+                    assertEquals(400, response.statusCode());
+                    assertTrue(response.body().getString("error").contains("not-a-profile"));
+                    testContext.completeNow();
+                })
+                .onFailure(testContext::failNow);
+    }
+
     //@Test
     void testRegisterProfileWithInvalidVersion(VertxTestContext testContext) {
         // Create a valid request
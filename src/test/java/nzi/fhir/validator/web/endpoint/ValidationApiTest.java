@@ -188,10 +188,10 @@ class ValidationApiTest extends BaseTestContainer {
                         if (ar.succeeded()) {
                             var response = ar.result();
                             testContext.verify(() -> {
-                                assertEquals(200, response.statusCode());
-                                JsonObject responseBody = response.bodyAsJsonObject();
-                                assertEquals("success", responseBody.getString("status"));
-                                testContext.completeNow();
+                                assertEquals(202, response.statusCode());
+                                JsonObject job = response.bodyAsJsonObject();
+                                assertEquals("/jobs/" + job.getString("jobId"), response.getHeader("Location"));
+                                pollJob(client, job.getString("jobId"), testContext);
                             });
                         } else {
                             testContext.failNow(ar.cause());
@@ -201,6 +201,35 @@ class ValidationApiTest extends BaseTestContainer {
         .onFailure(testContext::failNow);
     }
 
+    /**
+     * Polls the IG inclusion job until it is finished, expecting it to succeed.
+     */
+    private void pollJob(WebClient client, String jobId, VertxTestContext testContext) {
+        client.get(testPort, "localhost", "/jobs/" + jobId)
+                .send(testContext.succeeding(response -> testContext.verify(() -> {
+                    assertEquals(200, response.statusCode());
+                    JsonObject job = response.bodyAsJsonObject();
+                    switch (job.getString("status")) {
+                        case "SUCCEEDED" -> {
+                            assertTrue(job.getJsonArray("loadedIgPackages").contains("hl7.fhir.dk.core#3.4.0"));
+                            testContext.completeNow();
+                        }
+                        case "FAILED" -> testContext.failNow(job.getString("error"));
+                        default -> vertx.setTimer(200, id -> pollJob(client, jobId, testContext));
+                    }
+                })));
+    }
+
+    @Test
+    void testGetUnknownJob(VertxTestContext testContext) {
+        WebClient client = WebClient.create(vertx);
+        client.get(testPort, "localhost", "/jobs/unknown")
+                .send(testContext.succeeding(response -> testContext.verify(() -> {
+                    assertEquals(404, response.statusCode());
+                    testContext.completeNow();
+                })));
+    }
+
     @Test
     void testIncludeImplementationGuideInvalidVersion(VertxTestContext testContext) {
         WebClient client = WebClient.create(vertx);
@@ -252,7 +281,18 @@ class ValidationApiTest extends BaseTestContainer {
                 .sendJsonObject(requestBody, testContext.succeeding(response -> testContext.verify(() -> {
                     // The actual response will depend on whether the package exists in the database
                     // Here we're just verifying that the request is processed without errors
-                    assert response.statusCode() == 200 || response.statusCode() == 400;
+                    assert response.statusCode() == 202 || response.statusCode() == 400;
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void testRemoveImplementationGuideNotIncluded(VertxTestContext testContext) {
+        WebClient client = WebClient.create(vertx);
+
+        client.delete(testPort, "localhost", "/R4/include-ig/hl7.fhir.not.included")
+                .send(testContext.succeeding(response -> testContext.verify(() -> {
+                    assert response.statusCode() == 404;
                     testContext.completeNow();
                 })));
     }